@@ -0,0 +1,627 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.cassandra.thrift.AuthenticationRequest;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of non-blocking {@link Cassandra.AsyncClient}s, so that many calls can be in flight without a thread
+ * waiting for each of them. The connections are {@link TNonblockingSocket}s driven by
+ * {@link PoolConfiguration#getAsyncSelectorThreads()} {@link TAsyncClientManager} selector threads.
+ * <br/>
+ * The pool works alongside a {@link ConnectionPool}, whose configuration, ring and hosts it shares: connections are
+ * opened to the hosts of the ring, failing over according to {@link PoolConfiguration#getFailoverPolicy()}, and a
+ * failure marks the host as bad and requests a ring refresh, as for the blocking connections. Logging in and
+ * setting the keyspace are part of opening a connection, which is otherwise probed with describe_cluster_name.
+ * Idle connections are validated on borrow if {@link PoolConfiguration#isTestOnBorrow()} is set, and evicted by
+ * the pool sweeper after {@link PoolConfiguration#getMinEvictableIdleTimeMillis()}. The pool holds up to
+ * {@link PoolConfiguration#getMaxActive()} connections of its own.
+ * <br/>
+ * Connections are handed to an {@link AsyncMethodCallback}, on the borrowing thread if one is idle, otherwise on
+ * the thread which opens or releases one, typically a selector thread. Callbacks must not block.
+ * The non-blocking transport is always framed.
+ * 
+ * @author Tristan Tarrant
+ */
+public class AsyncConnectionPool {
+	private static final Logger log = LoggerFactory.getLogger(AsyncConnectionPool.class);
+
+	private final ConnectionPool pool;
+	private final PoolConfiguration properties;
+	private final TProtocolFactory protocolFactory = new TBinaryProtocol.Factory();
+	private final TAsyncClientManager[] managers;
+	private final AtomicInteger nextManager = new AtomicInteger(0);
+
+	/**
+	 * The idle connections, most recently returned first
+	 */
+	private final LinkedBlockingDeque<PooledAsyncClient> idle = new LinkedBlockingDeque<PooledAsyncClient>();
+
+	/**
+	 * The borrowers waiting for a connection, in order of arrival
+	 */
+	private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+
+	/**
+	 * The number of connections, opened or being opened
+	 */
+	private final AtomicInteger size = new AtomicInteger(0);
+
+	/**
+	 * The number of connections handed out
+	 */
+	private final AtomicInteger active = new AtomicInteger(0);
+
+	private final MaintenanceTask sweeper;
+
+	/**
+	 * Closes the idle connections to the hosts which are ejected
+	 */
+	private final CassandraHost.Listener ejectionListener = new CassandraHost.Listener() {
+		@Override
+		public void ejected(CassandraHost host) {
+			closeIdle(host);
+		}
+
+		@Override
+		public void restored(CassandraHost host) {
+		}
+	};
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates an asynchronous pool sharing the configuration and the ring of a blocking pool
+	 * 
+	 * @param pool
+	 *            the blocking pool
+	 * @throws TException
+	 *             if the selector threads could not be started
+	 */
+	public AsyncConnectionPool(ConnectionPool pool) throws TException {
+		this.pool = pool;
+		this.properties = pool.getPoolProperties();
+		managers = new TAsyncClientManager[Math.max(1, properties.getAsyncSelectorThreads())];
+		try {
+			for (int i = 0; i < managers.length; i++) {
+				managers[i] = new TAsyncClientManager();
+			}
+		} catch (IOException x) {
+			stopManagers();
+			throw new TException("[" + getName() + "] Unable to start the selector threads", x);
+		}
+		pool.getCassandraRing().addHostListener(ejectionListener);
+		if (properties.isPoolSweeperEnabled()) {
+			sweeper = new ConnectionPool.SweeperTask("asyncCheckIdle", pool) {
+				@Override
+				protected void runTask() {
+					checkIdle();
+				}
+			};
+			sweeper.start();
+		} else {
+			sweeper = null;
+		}
+	}
+
+	/**
+	 * Returns the blocking pool this pool shares its configuration and ring with
+	 * 
+	 * @return the blocking pool
+	 */
+	public ConnectionPool getConnectionPool() {
+		return pool;
+	}
+
+	/**
+	 * Returns the name of this pool
+	 * 
+	 * @return the name of the blocking pool
+	 */
+	public String getName() {
+		return pool.getName();
+	}
+
+	/**
+	 * Borrows a connection. An idle connection is handed out immediately, otherwise one is opened if the pool holds
+	 * fewer than {@link PoolConfiguration#getMaxActive()} connections, otherwise the callback waits for one to be
+	 * released, for up to {@link PoolConfiguration#getMaxWait()} milliseconds.
+	 * 
+	 * @param callback
+	 *            receives the connection, which must be returned with {@link #release(Cassandra.AsyncClient)}, or the
+	 *            reason why none could be borrowed
+	 */
+	public void getConnection(AsyncMethodCallback<Cassandra.AsyncClient> callback) {
+		if (closed) {
+			callback.onError(new TException("[" + getName() + "] Connection pool closed."));
+			return;
+		}
+		if (pool.isClusterDown()) {
+			callback.onError(new ClusterDownException("[" + getName() + "] All hosts are down."));
+			return;
+		}
+		PooledAsyncClient client = idle.pollFirst();
+		if (client != null) {
+			handOut(client, callback);
+		} else if (reserveCapacity()) {
+			connect(pool.getCassandraRing().getHosts().iterator(), 0, callback);
+		} else {
+			Waiter waiter = new Waiter(callback);
+			waiters.add(waiter);
+			long maxWait = properties.getMaxWait();
+			if (maxWait > 0) {
+				waiter.timeout = MaintenanceTask.getScheduler().schedule(waiter, maxWait, TimeUnit.MILLISECONDS);
+			}
+			// a connection may have been released before we were queued
+			dispatch();
+		}
+	}
+
+	/**
+	 * Returns a connection to the pool. It is closed instead if its last call failed, if it is still running a call,
+	 * if it is older than {@link PoolConfiguration#getMaxAge()} or if the pool is closed. Releasing a connection which
+	 * has already been released is logged and ignored.
+	 * 
+	 * @param client
+	 *            a connection obtained from {@link #getConnection(AsyncMethodCallback)}
+	 */
+	public void release(Cassandra.AsyncClient client) {
+		if (!(client instanceof PooledAsyncClient) || ((PooledAsyncClient) client).getPool() != this) {
+			log.warn("[" + getName() + "] Attempt to release a connection which was not obtained from this pool: " + client);
+			return;
+		}
+		PooledAsyncClient con = (PooledAsyncClient) client;
+		if (!con.release()) {
+			log.warn("[" + getName() + "] Attempt to release a connection which is not borrowed: " + client);
+			return;
+		}
+		active.decrementAndGet();
+		long now = System.currentTimeMillis();
+		long maxAge = properties.getMaxAge();
+		if (closed || con.hasError() || con.isBusy() || (maxAge > 0 && now - con.getCreated() > maxAge)) {
+			discard(con);
+			return;
+		}
+		con.setTimestamp(now);
+		idle.offerFirst(con);
+		dispatch();
+	}
+
+	/**
+	 * Hands the idle connections to the waiting borrowers, and opens connections for them while below capacity
+	 */
+	private void dispatch() {
+		while (!waiters.isEmpty()) {
+			PooledAsyncClient client = idle.pollFirst();
+			if (client == null && !reserveCapacity()) {
+				return;
+			}
+			Waiter waiter = nextWaiter();
+			if (waiter == null) {
+				// the waiters have timed out meanwhile
+				if (client != null) {
+					idle.offerFirst(client);
+				} else {
+					size.decrementAndGet();
+				}
+				return;
+			}
+			if (client != null) {
+				handOut(client, waiter.callback);
+			} else {
+				connect(pool.getCassandraRing().getHosts().iterator(), 0, waiter.callback);
+			}
+		}
+	}
+
+	private Waiter nextWaiter() {
+		for (Waiter waiter = waiters.poll(); waiter != null; waiter = waiters.poll()) {
+			if (waiter.claim()) {
+				return waiter;
+			}
+		}
+		return null;
+	}
+
+	private boolean reserveCapacity() {
+		while (true) {
+			int current = size.get();
+			if (current >= properties.getMaxActive()) {
+				return false;
+			}
+			if (size.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Hands an idle connection to a borrower, validating it first if needed
+	 */
+	private void handOut(final PooledAsyncClient client, final AsyncMethodCallback<Cassandra.AsyncClient> callback) {
+		long now = System.currentTimeMillis();
+		if (!properties.isTestOnBorrow() || (properties.getValidationInterval() > 0 && now - client.getLastValidated() < properties.getValidationInterval())) {
+			deliver(client, callback);
+			return;
+		}
+		final long start = System.nanoTime();
+		try {
+			client.describe_cluster_name(new AsyncMethodCallback<Cassandra.AsyncClient.describe_cluster_name_call>() {
+				@Override
+				public void onComplete(Cassandra.AsyncClient.describe_cluster_name_call response) {
+					try {
+						response.getResult();
+						client.getCassandraHost().recordValidationTime(System.nanoTime() - start);
+						client.setLastValidated(System.currentTimeMillis());
+						deliver(client, callback);
+					} catch (TException x) {
+						invalid(client, callback, x);
+					}
+				}
+
+				@Override
+				public void onError(Exception x) {
+					invalid(client, callback, x);
+				}
+			});
+		} catch (TException x) {
+			invalid(client, callback, x);
+		}
+	}
+
+	private void invalid(PooledAsyncClient client, AsyncMethodCallback<Cassandra.AsyncClient> callback, Exception x) {
+		if (log.isDebugEnabled()) {
+			log.debug("[" + getName() + "] Unable to validate " + client, x);
+		}
+		discard(client);
+		getConnection(callback);
+	}
+
+	private void deliver(PooledAsyncClient client, AsyncMethodCallback<Cassandra.AsyncClient> callback) {
+		client.borrow();
+		active.incrementAndGet();
+		client.setTimestamp(System.currentTimeMillis());
+		try {
+			callback.onComplete(client);
+		} catch (RuntimeException x) {
+			log.warn("[" + getName() + "] Connection callback failed", x);
+		}
+	}
+
+	private void fail(AsyncMethodCallback<Cassandra.AsyncClient> callback, Exception cause) {
+		try {
+			callback.onError(cause);
+		} catch (RuntimeException x) {
+			log.warn("[" + getName() + "] Connection callback failed", x);
+		}
+	}
+
+	/**
+	 * Opens a connection to the next usable host, within the capacity already reserved for it
+	 * 
+	 * @param hosts
+	 *            the hosts left to try
+	 * @param tried
+	 *            the number of hosts which have failed
+	 * @param callback
+	 *            receives the connection
+	 */
+	private void connect(final Iterator<CassandraHost> hosts, final int tried, final AsyncMethodCallback<Cassandra.AsyncClient> callback) {
+		CassandraHost host = null;
+		long trial = CircuitBreaker.DENIED;
+		while (host == null) {
+			if (closed || tried > properties.getFailoverPolicy().numRetries || !hosts.hasNext()) {
+				size.decrementAndGet();
+				fail(callback, new TException("[" + getName() + "] Could not connect to any hosts"));
+				dispatch();
+				return;
+			}
+			CassandraHost next = hosts.next();
+			// If the host is in rotation or its retry time has come, attempt to get a connection
+			trial = next.acquireConnect(System.currentTimeMillis());
+			if (trial != CircuitBreaker.DENIED) {
+				host = next;
+			}
+		}
+		final CassandraHost target = host;
+		final long targetTrial = trial;
+		final PooledAsyncClient client;
+		try {
+			TNonblockingSocket socket = new TNonblockingSocket(host.getHost(), properties.getPort(), properties.getSocketTimeout());
+			client = new PooledAsyncClient(this, host, protocolFactory, nextManager(), socket);
+			client.setTimeout(properties.getSocketTimeout());
+		} catch (IOException x) {
+			failed(null, target, x, hosts, tried, callback);
+			return;
+		}
+		target.timestamp();
+		final long start = System.nanoTime();
+		// the first call connects, the connection is ready once the keyspace is set
+		final Runnable ready = new Runnable() {
+			@Override
+			public void run() {
+				target.recordConnectTime(System.nanoTime() - start);
+				// restores the host if this was a trial
+				target.recordTrialSuccess(targetTrial);
+				if (log.isDebugEnabled()) {
+					log.debug("[" + getName() + "] Obtained a new asynchronous connection to " + target);
+				}
+				deliver(client, callback);
+			}
+		};
+		final Runnable setKeyspace = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (properties.getKeySpace() != null) {
+						client.set_keyspace(properties.getKeySpace(), new AsyncMethodCallback<Cassandra.AsyncClient.set_keyspace_call>() {
+							@Override
+							public void onComplete(Cassandra.AsyncClient.set_keyspace_call response) {
+								try {
+									response.getResult();
+									ready.run();
+								} catch (Exception x) {
+									failed(client, target, x, hosts, tried, callback);
+								}
+							}
+
+							@Override
+							public void onError(Exception x) {
+								failed(client, target, x, hosts, tried, callback);
+							}
+						});
+					} else {
+						client.describe_cluster_name(new AsyncMethodCallback<Cassandra.AsyncClient.describe_cluster_name_call>() {
+							@Override
+							public void onComplete(Cassandra.AsyncClient.describe_cluster_name_call response) {
+								try {
+									response.getResult();
+									ready.run();
+								} catch (Exception x) {
+									failed(client, target, x, hosts, tried, callback);
+								}
+							}
+
+							@Override
+							public void onError(Exception x) {
+								failed(client, target, x, hosts, tried, callback);
+							}
+						});
+					}
+				} catch (TException x) {
+					failed(client, target, x, hosts, tried, callback);
+				}
+			}
+		};
+		if (properties.getUsername() == null) {
+			setKeyspace.run();
+			return;
+		}
+		AuthenticationRequest authenticationRequest = new AuthenticationRequest();
+		authenticationRequest.putToCredentials("username", properties.getUsername());
+		authenticationRequest.putToCredentials("password", properties.getPassword());
+		try {
+			client.login(authenticationRequest, new AsyncMethodCallback<Cassandra.AsyncClient.login_call>() {
+				@Override
+				public void onComplete(Cassandra.AsyncClient.login_call response) {
+					try {
+						response.getResult();
+						setKeyspace.run();
+					} catch (Exception x) {
+						failed(client, target, x, hosts, tried, callback);
+					}
+				}
+
+				@Override
+				public void onError(Exception x) {
+					failed(client, target, x, hosts, tried, callback);
+				}
+			});
+		} catch (TException x) {
+			failed(client, target, x, hosts, tried, callback);
+		}
+	}
+
+	/**
+	 * Gives up on a host, and fails over to the next one
+	 */
+	private void failed(PooledAsyncClient client, CassandraHost host, Exception x, Iterator<CassandraHost> hosts, int tried,
+			AsyncMethodCallback<Cassandra.AsyncClient> callback) {
+		if (client != null) {
+			client.close();
+		}
+		host.timestamp();
+		host.eject();
+		log.warn("[" + getName() + "] Failed asynchronous connection to " + host, x);
+		// the host may have left the ring
+		pool.requestRingRefresh();
+		connect(hosts, tried + 1, callback);
+	}
+
+	private TAsyncClientManager nextManager() {
+		return managers[(nextManager.getAndIncrement() & Integer.MAX_VALUE) % managers.length];
+	}
+
+	/**
+	 * Closes a connection, making room for a new one
+	 */
+	private void discard(PooledAsyncClient client) {
+		client.close();
+		size.decrementAndGet();
+		dispatch();
+	}
+
+	/**
+	 * Closes the connections which have been idle longer than {@link PoolConfiguration#getMinEvictableIdleTimeMillis()},
+	 * oldest first, down to {@link PoolConfiguration#getMinIdle()} idle connections
+	 */
+	public void checkIdle() {
+		long releaseTime = properties.getMinEvictableIdleTimeMillis();
+		long now = System.currentTimeMillis();
+		for (Iterator<PooledAsyncClient> oldest = idle.descendingIterator(); oldest.hasNext() && idle.size() > properties.getMinIdle();) {
+			PooledAsyncClient client = oldest.next();
+			if (releaseTime > 0 && now - client.getTimestamp() <= releaseTime) {
+				// this one is still fresh, and so are the ones returned after it
+				break;
+			}
+			if (idle.remove(client)) {
+				if (log.isDebugEnabled()) {
+					log.debug("[" + getName() + "] Releasing idle connection " + client);
+				}
+				discard(client);
+			}
+		}
+	}
+
+	/**
+	 * Closes the idle connections to a host
+	 * 
+	 * @param host
+	 *            the host
+	 */
+	public void closeIdle(CassandraHost host) {
+		for (Iterator<PooledAsyncClient> i = idle.iterator(); i.hasNext();) {
+			PooledAsyncClient client = i.next();
+			if (client.getCassandraHost() == host && idle.remove(client)) {
+				discard(client);
+			}
+		}
+	}
+
+	/**
+	 * Closes the pool: the idle connections are closed, the waiting borrowers fail, and the connections in use are
+	 * closed when they are released. The blocking pool is left open.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		pool.getCassandraRing().removeHostListener(ejectionListener);
+		if (sweeper != null) {
+			sweeper.cancel();
+		}
+		for (Waiter waiter = nextWaiter(); waiter != null; waiter = nextWaiter()) {
+			fail(waiter.callback, new TException("[" + getName() + "] Connection pool closed."));
+		}
+		for (PooledAsyncClient client = idle.pollFirst(); client != null; client = idle.pollFirst()) {
+			discard(client);
+		}
+		stopManagers();
+	}
+
+	private void stopManagers() {
+		for (TAsyncClientManager manager : managers) {
+			if (manager != null) {
+				manager.stop();
+			}
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns the number of connections, in use, idle or being opened
+	 * 
+	 * @return the size of the pool
+	 */
+	public int getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Returns the number of connections handed out
+	 * 
+	 * @return the number of connections in use
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of idle connections
+	 * 
+	 * @return the number of idle connections
+	 */
+	public int getIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * Returns the number of borrowers waiting for a connection
+	 * 
+	 * @return the number of waiters
+	 */
+	public int getWaitCount() {
+		return waiters.size();
+	}
+
+	/**
+	 * A borrower waiting for a connection, until it is handed one or its wait times out
+	 */
+	private class Waiter implements Runnable {
+		final AsyncMethodCallback<Cassandra.AsyncClient> callback;
+		final AtomicBoolean claimed = new AtomicBoolean(false);
+		volatile ScheduledFuture<?> timeout;
+
+		Waiter(AsyncMethodCallback<Cassandra.AsyncClient> callback) {
+			this.callback = callback;
+		}
+
+		boolean claim() {
+			if (!claimed.compareAndSet(false, true)) {
+				return false;
+			}
+			ScheduledFuture<?> timeout = this.timeout;
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+			return true;
+		}
+
+		/**
+		 * Expires the wait
+		 */
+		@Override
+		public void run() {
+			if (claimed.compareAndSet(false, true)) {
+				waiters.remove(this);
+				fail(callback, new TException("[" + getName() + "] Timeout: Pool empty. Unable to fetch a connection in " + (properties.getMaxWait() / 1000)
+						+ " seconds, none available[" + active.get() + " in use]."));
+			}
+		}
+	}
+}
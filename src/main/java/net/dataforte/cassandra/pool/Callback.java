@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+/**
+ * An operation run by {@link ConnectionPool#execute(Callback)} on a pooled connection. The pool borrows the
+ * connection, returns it afterwards, and retries the operation on another host if its transport fails and the
+ * operation has been declared idempotent.
+ * 
+ * @param <C>
+ *            the type of the connection
+ * @param <T>
+ *            the type of the result
+ * @author Tristan Tarrant
+ */
+public interface Callback<C, T> {
+	/**
+	 * Runs the operation. The connection must not be kept or released.
+	 * 
+	 * @param connection
+	 *            a borrowed connection
+	 * @return the result of the operation
+	 * @throws Exception
+	 *             any failure of the operation, failures of the transport are retried
+	 */
+	T execute(C connection) throws Exception;
+}
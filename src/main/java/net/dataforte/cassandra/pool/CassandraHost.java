@@ -16,20 +16,85 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Represents a connection to a Cassandra host
+ * <br/>
+ * The health of the host is tracked by a {@link CircuitBreaker}, fed by the connections and calls to it. The
+ * {@link Listener}s are told when the host is ejected.
  * 
  * @author Tristan Tarrant
  */
 public class CassandraHost {
+	/**
+	 * Receives the changes of the health of a host
+	 */
+	public interface Listener {
+		/**
+		 * Called when the breaker of a host opens, on the thread which recorded the failure
+		 * 
+		 * @param host
+		 *            the host which was ejected
+		 */
+		void ejected(CassandraHost host);
+
+		/**
+		 * Called when the breaker of a host closes, on the thread which recorded the success
+		 * 
+		 * @param host
+		 *            the host which was restored
+		 */
+		void restored(CassandraHost host);
+	}
+
+	/**
+	 * The weight of a new sample in the moving averages of the host
+	 */
+	public static final double STATS_ALPHA = 0.2;
+	/**
+	 * How many times slower than its average latency a host is considered right after an error
+	 */
+	public static final double ERROR_PENALTY = 10;
+	/**
+	 * The time constant with which the error penalty decays, in milliseconds
+	 */
+	public static final long ERROR_DECAY_MILLIS = 30000;
+	/**
+	 * The number of calls after which the latency histogram of the host forgets half of its samples
+	 */
+	public static final int LATENCY_WINDOW = 1000;
+	/**
+	 * The number of calls the latency percentiles of the host are estimated after
+	 */
+	public static final int LATENCY_MIN_SAMPLES = 20;
 
 	String host;
 	long lastUsed;
-	boolean good;
+	private final ExponentialMovingAverage connectTime = new ExponentialMovingAverage(STATS_ALPHA);
+	private final ExponentialMovingAverage latency = new ExponentialMovingAverage(STATS_ALPHA);
+	private final ExponentialMovingAverage validationTime = new ExponentialMovingAverage(STATS_ALPHA);
+	private final LatencyHistogram latencies = new LatencyHistogram(LATENCY_WINDOW);
+	private volatile long lastError = 0;
+	private final AtomicInteger active = new AtomicInteger(0);
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+	private final CircuitBreaker breaker;
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
 
 	public CassandraHost(String host) {
+		this(host, null);
+	}
+
+	/**
+	 * @param host
+	 *            the address of the host
+	 * @param properties
+	 *            the properties of the circuit breaker of the host, if null the defaults are used
+	 */
+	public CassandraHost(String host, PoolConfiguration properties) {
 		this.host = host;
-		good = true;
+		this.breaker = new CircuitBreaker(properties);
 	}
 
 	public String getHost() {
@@ -44,16 +109,265 @@ public class CassandraHost {
 		return lastUsed;
 	}
 
+	/**
+	 * Returns true if the host is in rotation, i.e. its breaker is closed
+	 * 
+	 * @return true if the host is healthy
+	 */
 	public boolean isGood() {
-		return good;
+		return breaker.getState() == CircuitBreaker.State.CLOSED;
 	}
 
+	/**
+	 * Restores the host, or ejects it
+	 * 
+	 * @param good
+	 *            true to close the breaker of the host, false to open it
+	 */
 	public void setGood(boolean good) {
-		this.good = good;
+		if (good) {
+			if (breaker.reset()) {
+				restored();
+			}
+		} else {
+			eject();
+		}
+	}
+
+	/**
+	 * Ejects the host: its breaker opens until the next retry
+	 */
+	public void eject() {
+		if (breaker.trip(System.currentTimeMillis())) {
+			ejected();
+		}
+	}
+
+	/**
+	 * Returns true if a connection may be opened to this host, see {@link CircuitBreaker#allowRequest(long)}. If the
+	 * host has been ejected and its retry time has come, the caller makes the trial connection.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if a connection may be opened
+	 */
+	public boolean allowConnect(long now) {
+		return breaker.allowRequest(now);
+	}
+
+	/**
+	 * Like {@link #allowConnect(long)}, but returns the token of the trial connection the caller makes, if any, see
+	 * {@link CircuitBreaker#acquire(long)}
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return {@link CircuitBreaker#DENIED} if no connection may be opened, otherwise the token to pass to
+	 *         {@link #recordTrialSuccess(long)} once connected
+	 */
+	public long acquireConnect(long now) {
+		return breaker.acquire(now);
+	}
+
+	/**
+	 * Returns the circuit breaker tracking the health of this host
+	 * 
+	 * @return the breaker
+	 */
+	public CircuitBreaker getBreaker() {
+		return breaker;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.addIfAbsent(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	private void ejected() {
+		for (Listener listener : listeners) {
+			listener.ejected(this);
+		}
+	}
+
+	private void restored() {
+		for (Listener listener : listeners) {
+			listener.restored(this);
+		}
+	}
+
+	/**
+	 * Records the time it took to open a connection to this host
+	 * 
+	 * @param nanos
+	 */
+	public void recordConnectTime(long nanos) {
+		connectTime.update(nanos);
+		breaker.onSuccess();
+	}
+
+	/**
+	 * Records the success of a trial connection to this host, which restores it unless another trial has been let
+	 * through since
+	 * 
+	 * @param trial
+	 *            the token returned by {@link #acquireConnect(long)}
+	 */
+	public void recordTrialSuccess(long trial) {
+		if (breaker.onTrialSuccess(trial)) {
+			restored();
+		}
+	}
+
+	/**
+	 * Records the latency of a call to this host
+	 * 
+	 * @param nanos
+	 */
+	public void recordLatency(long nanos) {
+		latency.update(nanos);
+		latencies.update(nanos);
+		breaker.onSuccess();
+	}
+
+	/**
+	 * Records the round trip time of the validation of a connection to this host
+	 * 
+	 * @param nanos
+	 */
+	public void recordValidationTime(long nanos) {
+		validationTime.update(nanos);
+	}
+
+	/**
+	 * Records a failure to communicate with this host, which ejects it if its breaker trips
+	 */
+	public void recordError() {
+		long now = System.currentTimeMillis();
+		lastError = now;
+		if (breaker.onFailure(now)) {
+			ejected();
+		}
+	}
+
+	/**
+	 * Counts a connection to this host checked out by the application
+	 */
+	public void incrementActive() {
+		active.incrementAndGet();
+	}
+
+	/**
+	 * Counts a connection to this host returned by the application
+	 */
+	public void decrementActive() {
+		active.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of connections to this host currently checked out by the application
+	 * 
+	 * @return the number of active connections
+	 */
+	public int getActive() {
+		return active.get();
+	}
+
+	/**
+	 * Counts a call to this host which is waiting for a response
+	 */
+	public void incrementInFlight() {
+		inFlight.incrementAndGet();
+	}
+
+	/**
+	 * Counts a call to this host which has received a response, or failed
+	 */
+	public void decrementInFlight() {
+		inFlight.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of calls to this host which are waiting for a response
+	 * 
+	 * @return the number of calls in flight
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Returns the moving average of the time it takes to open a connection to this host
+	 * 
+	 * @return the average connect time in nanoseconds, {@link Double#NaN} if no connection has been opened yet
+	 */
+	public double getConnectTime() {
+		return connectTime.get();
+	}
+
+	/**
+	 * Returns the moving average of the latency of the calls to this host
+	 * 
+	 * @return the average latency in nanoseconds, {@link Double#NaN} if no call has been made yet
+	 */
+	public double getLatency() {
+		return latency.get();
+	}
+
+	/**
+	 * Estimates a percentile of the latency of the recent calls to this host
+	 * 
+	 * @param percentile
+	 *            between 0 and 1, e.g. 0.95
+	 * @return the percentile in nanoseconds, {@link Double#NaN} if fewer than {@link #LATENCY_MIN_SAMPLES} calls have
+	 *         been made
+	 */
+	public double getLatencyPercentile(double percentile) {
+		return latencies.getCount() < LATENCY_MIN_SAMPLES ? Double.NaN : latencies.getPercentile(percentile);
+	}
+
+	/**
+	 * Returns the moving average of the round trip time of the validations of the connections to this host
+	 * 
+	 * @return the average validation time in nanoseconds, {@link Double#NaN} if no connection has been validated yet
+	 */
+	public double getValidationTime() {
+		return validationTime.get();
+	}
+
+	/**
+	 * Returns when the last error happened
+	 * 
+	 * @return the time of the last error in milliseconds, 0 if there has never been one
+	 */
+	public long getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Returns the score of this host, the lower the better: the average call latency, or the average connect time
+	 * if no call has been made yet, multiplied by a penalty for recent errors. A host which has never been used has
+	 * a score of 0, so that it gets tried, unless it has failed, in which case its score is infinite.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the score
+	 */
+	public double getScore(long now) {
+		double score = latency.hasSamples() ? latency.get() : connectTime.get();
+		long lastError = this.lastError;
+		if (Double.isNaN(score)) {
+			return (lastError == 0) ? 0 : Double.POSITIVE_INFINITY;
+		}
+		if (lastError != 0) {
+			score *= 1 + ERROR_PENALTY * Math.exp(-(double) (now - lastError) / ERROR_DECAY_MILLIS);
+		}
+		return score;
 	}
 
 	public String toString() {
-		return "[" + host + ",status=" + good + ",timestamp=" + lastUsed + "]";
+		return "[" + host + ",status=" + breaker + ",timestamp=" + lastUsed + ",latency=" + latency + ",connectTime=" + connectTime + ",active=" + active + ",inFlight=" + inFlight + "]";
 	}
 
 	@Override
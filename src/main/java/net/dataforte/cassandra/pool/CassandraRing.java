@@ -16,14 +16,19 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cassandra.thrift.Cassandra;
 import org.apache.cassandra.thrift.InvalidRequestException;
@@ -33,84 +38,325 @@ import org.apache.thrift.TException;
 
 /**
  * Represents the Cassandra ring (all of the hosts in the cluster)
+ * <br/>
+ * The hosts and the token map are held in an immutable {@link Snapshot}, which a refresh replaces atomically, so
+ * that readers never need to lock or copy. The hosts are iterated in the order of the policy with a {@link HostIterator}
+ * which is reused by each thread, so that connecting doesn't allocate.
  * 
  * @author Tristan Tarrant
  *
  */
 public class CassandraRing {
-	private HostCyclePolicy policy;
-	private Random random = new Random();
-	private Map<String, CassandraHost> hosts;
+	/**
+	 * The probability with which the {@link HostCyclePolicy#LATENCY_AWARE} policy shuffles the hosts instead of ordering them by score
+	 */
+	public static final double EXPLORATION_PROBABILITY = 0.05;
+
+	private final HostCyclePolicy policy;
+	private final AtomicInteger roundRobin = new AtomicInteger(0);
+	private final ThreadLocal<HostIterator> iterators = new ThreadLocal<HostIterator>() {
+		@Override
+		protected HostIterator initialValue() {
+			return new HostIterator(policy, roundRobin);
+		}
+	};
+	private final PoolConfiguration properties;
+	/**
+	 * Every host the ring has known by address, shared with the other rings of the cluster if any, so that a host
+	 * which leaves the ring and joins it again keeps its breaker, statistics and sub-pool
+	 */
+	private final ConcurrentMap<String, CassandraHost> knownHosts;
+	private final List<CassandraHost.Listener> listeners = new CopyOnWriteArrayList<CassandraHost.Listener>();
+	private volatile Snapshot snapshot;
+	private volatile long lastRefresh = 0;
+	private volatile String partitioner;
 
 	public CassandraRing(String hosts[]) {
 		this(hosts, HostCyclePolicy.RANDOM);
 	}
 
 	public CassandraRing(String hosts[], HostCyclePolicy policy) {
+		this(hosts, policy, null);
+	}
+
+	/**
+	 * @param hosts
+	 *            the addresses of the initial hosts
+	 * @param policy
+	 *            the order in which the hosts are tried
+	 * @param properties
+	 *            the properties of the circuit breakers of the hosts, if null the defaults are used
+	 */
+	public CassandraRing(String hosts[], HostCyclePolicy policy, PoolConfiguration properties) {
+		this(hosts, policy, properties, null);
+	}
+
+	/**
+	 * @param hosts
+	 *            the addresses of the initial hosts
+	 * @param policy
+	 *            the order in which the hosts are tried
+	 * @param properties
+	 *            the properties of the circuit breakers of the hosts, if null the defaults are used
+	 * @param sharedHosts
+	 *            the hosts of the cluster, which are reused by address and to which the new hosts are added, see
+	 *            {@link ClusterRegistry}, or null if the ring has its own hosts
+	 */
+	CassandraRing(String hosts[], HostCyclePolicy policy, PoolConfiguration properties, ConcurrentMap<String, CassandraHost> sharedHosts) {
 		this.policy = policy;
-		this.hosts = hostArrayToMap(hosts);
+		this.properties = properties;
+		this.knownHosts = (sharedHosts != null) ? sharedHosts : new ConcurrentHashMap<String, CassandraHost>();
+		this.snapshot = new Snapshot(0, hostArrayToMap(hosts, null), null);
+	}
+
+	/**
+	 * Adds a listener to all the hosts of the ring, including the ones discovered later
+	 * 
+	 * @param listener
+	 */
+	public synchronized void addHostListener(CassandraHost.Listener listener) {
+		listeners.add(listener);
+		for (CassandraHost host : snapshot.hostsByAddress.values()) {
+			host.addListener(listener);
+		}
+	}
+
+	/**
+	 * Removes a listener from all the hosts of the ring, including the ones which have left it
+	 * 
+	 * @param listener
+	 */
+	public synchronized void removeHostListener(CassandraHost.Listener listener) {
+		listeners.remove(listener);
+		for (CassandraHost host : knownHosts.values()) {
+			host.removeListener(listener);
+		}
 	}
 	
 	/**
 	 * Maintain the host map, preserving any information about previously known hosts
 	 * 
 	 * @param hostAddresses
+	 * @param hosts
+	 *            the previously known hosts
 	 * @return 
 	 */
-	private Map<String, CassandraHost> hostArrayToMap(String hostAddresses[]) {
+	private Map<String, CassandraHost> hostArrayToMap(String hostAddresses[], Map<String, CassandraHost> hosts) {
 		Map<String, CassandraHost> hostsMap = new HashMap<String, CassandraHost>();
 		for(String hostAddress : hostAddresses) {
 			CassandraHost host = hosts==null?null:hosts.get(hostAddress);
 			if(host==null) {
-				host = new CassandraHost(hostAddress);
+				// a host which has been in the ring before, or which is known to another ring of the cluster
+				host = knownHosts.get(hostAddress);
+				if (host == null) {
+					host = new CassandraHost(hostAddress, properties);
+					CassandraHost known = knownHosts.putIfAbsent(hostAddress, host);
+					if (known != null) {
+						host = known;
+					}
+				}
+				for (CassandraHost.Listener listener : listeners) {
+					host.addListener(listener);
+				}
 			}
 			hostsMap.put(hostAddress, host);
 		}
 		return hostsMap;
 	}
 
-	public synchronized void refresh(Cassandra.Iface connection) throws TException, InvalidRequestException {
+	public void refresh(Cassandra.Iface connection) throws TException, InvalidRequestException {
+		refresh(connection, null);
+	}
+
+	/**
+	 * Refreshes the hosts and the token map of the ring, and publishes them as a new snapshot. The ring is only locked
+	 * to publish the snapshot, once the RPCs have returned.
+	 * 
+	 * @param connection
+	 * @param keyspace
+	 *            the keyspace whose replicas are mapped, if null the first keyspace other than system is used
+	 * @throws TException
+	 * @throws InvalidRequestException
+	 */
+	public void refresh(Cassandra.Iface connection, String keyspace) throws TException, InvalidRequestException {
 
-		// Obtain a set of available keyspaces
-		List<KsDef> ks = connection.describe_keyspaces();
-		String keyspace = null;
-		for (KsDef k : ks) {
-			if (!"system".equalsIgnoreCase(k.getName())) {
-				keyspace = k.getName();
-				break;
+		if (keyspace == null) {
+			// Obtain a set of available keyspaces
+			List<KsDef> ks = connection.describe_keyspaces();
+			for (KsDef k : ks) {
+				if (!"system".equalsIgnoreCase(k.getName())) {
+					keyspace = k.getName();
+					break;
+				}
 			}
 		}
 		if(keyspace==null) {
 			// cannot get a ring without a keyspace
+			lastRefresh = System.currentTimeMillis();
 			return;
 		}
 		// Get a token range for the keyspace
 		List<TokenRange> ranges = connection.describe_ring(keyspace);
+		// The partitioner of a cluster never changes
+		if (partitioner == null) {
+			partitioner = connection.describe_partitioner();
+		}
+		publish(ranges);
+	}
+
+	/**
+	 * Publishes a new snapshot of the ring, made of the hosts of the specified token ranges
+	 * 
+	 * @param ranges
+	 *            the token ranges of the keyspace
+	 */
+	private synchronized void publish(List<TokenRange> ranges) {
 		Set<String> addresses = new HashSet<String>();
 		// Cycle all of the token ranges adding the endpoint addresses to a
 		// set, so that duplicates are discarded
 		for (TokenRange range : ranges) {
 			addresses.addAll(range.getEndpoints());
 		}
-		this.hosts = hostArrayToMap(addresses.toArray(new String[] {}));
+		Snapshot current = this.snapshot;
+		Map<String, CassandraHost> hosts = hostArrayToMap(addresses.toArray(new String[] {}), current.hostsByAddress);
+		Partitioner p = Partitioner.forClassName(partitioner);
+		this.snapshot = new Snapshot(current.version + 1, hosts, (p == null) ? null : new TokenMap(p, ranges, hosts));
+		lastRefresh = System.currentTimeMillis();
 	}
 
+	/**
+	 * Returns when the ring was last refreshed successfully
+	 * 
+	 * @return the time of the last refresh in milliseconds, 0 if it has never been refreshed
+	 */
+	public long getLastRefresh() {
+		return lastRefresh;
+	}
+
+	/**
+	 * Returns the current snapshot of the ring
+	 * 
+	 * @return the snapshot
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns the version of the current snapshot of the ring, which is incremented by every refresh
+	 * 
+	 * @return the version
+	 */
+	public long getVersion() {
+		return snapshot.version;
+	}
+
+	/**
+	 * Returns the map of the tokens of the ring to their replicas
+	 * 
+	 * @return the token map, or null if the ring has not been refreshed yet or if the tokens of the partitioner of the
+	 *         cluster can't be computed
+	 */
+	public TokenMap getTokenMap() {
+		return snapshot.tokenMap;
+	}
+
+	/**
+	 * Returns the replicas of a row key ordered according to the policy
+	 * 
+	 * @param key
+	 *            the row key
+	 * @return the replicas, or an empty list if they are not known
+	 */
+	public List<CassandraHost> getReplicas(ByteBuffer key) {
+		TokenMap tokenMap = snapshot.tokenMap;
+		if (tokenMap == null) {
+			return Collections.emptyList();
+		}
+		List<CassandraHost> replicas = tokenMap.getReplicas(key);
+		return toList(new HostIterator(policy, roundRobin).reset(replicas.toArray(new CassandraHost[replicas.size()])));
+	}
+
+	public HostCyclePolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns an iterator over the hosts of the current snapshot, in the order of the policy. The iterator belongs to
+	 * the calling thread and is reset by the next call to this method on the same thread, so it must not be kept
+	 * around nor used by another thread. Apart from the first call on a thread, this doesn't allocate.
+	 * 
+	 * @return the hosts, ordered according to the policy
+	 */
+	public HostIterator hostIterator() {
+		return iterators.get().reset(snapshot.hosts);
+	}
+
+	/**
+	 * Returns a list of hosts ordered according to the policy. Unlike {@link #hostIterator()}, this allocates a new list.
+	 * 
+	 * @return the hosts, ordered according to the policy
+	 */
 	public List<CassandraHost> getHosts() {
-		// Returns a list of hosts ordered according to the policy
-		switch (this.policy) {
-		case RANDOM:
-			List<CassandraHost> list = new ArrayList<CassandraHost>(hosts.values());
-			Collections.shuffle(list, random);
-			return list;
-		case ROUND_ROBIN:
-		default:
-			return new OffsetArrayList<CassandraHost>(hosts.values(), random.nextInt(hosts.size()));
+		return toList(new HostIterator(policy, roundRobin).reset(snapshot.hosts));
+	}
+
+	private static List<CassandraHost> toList(HostIterator iterator) {
+		List<CassandraHost> list = new ArrayList<CassandraHost>(iterator.size());
+		while (iterator.hasNext()) {
+			list.add(iterator.next());
 		}
+		return list;
 	}
 
 	@Override
 	public String toString() {
-		return "CassandraRing [policy=" + policy + ", activeHosts=" + hosts.values() + "]";
+		Snapshot snapshot = this.snapshot;
+		return "CassandraRing [policy=" + policy + ", version=" + snapshot.version + ", activeHosts=" + Arrays.asList(snapshot.hosts) + ", tokenMap=" + snapshot.tokenMap + "]";
 	}
 
+	/**
+	 * An immutable view of the ring, published by a refresh
+	 */
+	public static class Snapshot {
+		private final long version;
+		/**
+		 * The hosts, sorted by address so that the order is stable across refreshes
+		 */
+		private final CassandraHost[] hosts;
+		private final Map<String, CassandraHost> hostsByAddress;
+		private final TokenMap tokenMap;
+
+		Snapshot(long version, Map<String, CassandraHost> hostsByAddress, TokenMap tokenMap) {
+			this.version = version;
+			this.hostsByAddress = Collections.unmodifiableMap(hostsByAddress);
+			String[] addresses = hostsByAddress.keySet().toArray(new String[hostsByAddress.size()]);
+			Arrays.sort(addresses);
+			this.hosts = new CassandraHost[addresses.length];
+			for (int i = 0; i < addresses.length; i++) {
+				hosts[i] = hostsByAddress.get(addresses[i]);
+			}
+			this.tokenMap = tokenMap;
+		}
+
+		public long getVersion() {
+			return version;
+		}
+
+		public int size() {
+			return hosts.length;
+		}
+
+		public CassandraHost get(int index) {
+			return hosts[index];
+		}
+
+		public CassandraHost get(String address) {
+			return hostsByAddress.get(address);
+		}
+
+		public TokenMap getTokenMap() {
+			return tokenMap;
+		}
+	}
 }
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The circuit breaker of a {@link CassandraHost}, which tracks its health from the outcome of the calls and
+ * connections to it.
+ * <ul>
+ * <li>{@link State#CLOSED}: the host is in rotation. It is ejected, i.e. the breaker opens, after
+ * {@link PoolProperties#hostFailureThreshold hostFailureThreshold} consecutive failures, when the moving average of
+ * its error rate reaches {@link PoolProperties#hostErrorRateThreshold hostErrorRateThreshold}, or right away when a
+ * connection to it fails.</li>
+ * <li>{@link State#OPEN}: no connection is opened to the host until the retry time, which starts
+ * {@link PoolProperties#hostRetryInitialInterval hostRetryInitialInterval} milliseconds after the ejection and backs
+ * off exponentially, up to {@link PoolProperties#hostRetryInterval hostRetryInterval}, with jitter.</li>
+ * <li>{@link State#HALF_OPEN}: the retry time has come, a single trial connection is let through. If it succeeds
+ * the breaker closes, otherwise it opens again for twice as long. If the trial never reports back, another one is
+ * let through after the same interval. Only the trial can close the breaker: each trial gets a token from
+ * {@link #acquire(long)}, which its success is reported with, so the late answers of calls made before the host was
+ * ejected are ignored.</li>
+ * </ul>
+ * With {@link PoolProperties#backgroundHostProbe backgroundHostProbe} the trials are only made by the
+ * {@link HostProber}, through {@link #tryTrial(long)}, and connections are only let through while the breaker is
+ * closed.
+ * The state is read without locking, the transitions are synchronized.
+ * 
+ * @author Tristan Tarrant
+ */
+public class CircuitBreaker {
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * The number of calls after which the error rate of a host is considered
+	 */
+	public static final int MIN_CALLS = 20;
+	/**
+	 * The weight of a call in the moving average of the error rate
+	 */
+	public static final double ERROR_RATE_ALPHA = 0.1;
+
+	/**
+	 * Returned by {@link #acquire(long)} when the breaker is closed, so that no trial is needed
+	 */
+	public static final long NO_TRIAL = 0;
+	/**
+	 * Returned by {@link #acquire(long)} when no connection may be opened
+	 */
+	public static final long DENIED = -1;
+
+	private static final PoolConfiguration DEFAULTS = new PoolProperties();
+
+	static {
+		// without a pool there is no prober
+		DEFAULTS.setBackgroundHostProbe(false);
+	}
+
+	private final PoolConfiguration properties;
+	private volatile State state = State.CLOSED;
+	private volatile long retryAt;
+	private volatile ExponentialMovingAverage errorRate = new ExponentialMovingAverage(ERROR_RATE_ALPHA);
+	private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+	private final AtomicInteger calls = new AtomicInteger(0);
+	/**
+	 * The number of times the breaker opened since it was last closed
+	 */
+	private int trips;
+	/**
+	 * The token of the last trial let through, guarded by this
+	 */
+	private long trial;
+
+	/**
+	 * @param properties
+	 *            the properties the thresholds and intervals are read from, if null the defaults are used
+	 */
+	public CircuitBreaker(PoolConfiguration properties) {
+		this.properties = (properties != null) ? properties : DEFAULTS;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * Returns when the next trial is let through, if the breaker is not closed
+	 * 
+	 * @return the time of the next trial in milliseconds
+	 */
+	public long getRetryAt() {
+		return retryAt;
+	}
+
+	/**
+	 * Returns the moving average of the error rate of the calls since the breaker was last closed
+	 * 
+	 * @return the error rate between 0 and 1, {@link Double#NaN} if no call has been made
+	 */
+	public double getErrorRate() {
+		return errorRate.get();
+	}
+
+	/**
+	 * Returns true if a connection may be opened: the breaker is closed, or the retry time has come and the trials
+	 * are not left to the {@link HostProber}, see {@link #tryTrial(long)}
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if a connection may be opened
+	 */
+	public boolean allowRequest(long now) {
+		return acquire(now) != DENIED;
+	}
+
+	/**
+	 * Like {@link #allowRequest(long)}, but returns the token of the trial the caller makes, if any. The success of
+	 * the trial is reported with {@link #onTrialSuccess(long)}, its failure with {@link #onFailure(long)}.
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return {@link #NO_TRIAL} if the breaker is closed, {@link #DENIED} if no connection may be opened, otherwise
+	 *         the token of the trial
+	 */
+	public long acquire(long now) {
+		if (state == State.CLOSED) {
+			return NO_TRIAL;
+		}
+		return properties.isBackgroundHostProbe() ? DENIED : claimTrial(now);
+	}
+
+	/**
+	 * Claims the trial connection if the retry time has come: the breaker becomes half-open, and the caller reports
+	 * the outcome of the trial with {@link #reset()} or {@link #onFailure(long)}
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if the caller makes the trial, or the breaker is closed
+	 */
+	public boolean tryTrial(long now) {
+		return claimTrial(now) != DENIED;
+	}
+
+	private long claimTrial(long now) {
+		if (state == State.CLOSED) {
+			return NO_TRIAL;
+		}
+		if (now < retryAt) {
+			return DENIED;
+		}
+		synchronized (this) {
+			if (state == State.CLOSED) {
+				return NO_TRIAL;
+			}
+			if (now < retryAt) {
+				return DENIED;
+			}
+			state = State.HALF_OPEN;
+			// let another trial through if this one never reports back
+			retryAt = now + backoff();
+			return ++trial;
+		}
+	}
+
+	/**
+	 * Records a successful call or connection. An open or half-open breaker is left as it is: it may be the late
+	 * answer to a call made before the host was ejected, only the trial closes the breaker, see
+	 * {@link #onTrialSuccess(long)}.
+	 */
+	public void onSuccess() {
+		if (state == State.CLOSED) {
+			if (consecutiveFailures.get() != 0) {
+				consecutiveFailures.set(0);
+			}
+			count();
+			errorRate.update(0);
+		}
+	}
+
+	/**
+	 * Records the success of a trial, which closes the breaker unless another trial has been let through since
+	 * 
+	 * @param trial
+	 *            the token returned by {@link #acquire(long)}
+	 * @return true if the breaker closed
+	 */
+	public boolean onTrialSuccess(long trial) {
+		if (trial == NO_TRIAL || state != State.HALF_OPEN) {
+			return false;
+		}
+		synchronized (this) {
+			return trial == this.trial && state == State.HALF_OPEN && reset();
+		}
+	}
+
+	/**
+	 * Records a failed call
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if the breaker opened
+	 */
+	public boolean onFailure(long now) {
+		State current = state;
+		if (current == State.OPEN) {
+			return false;
+		}
+		if (current == State.CLOSED) {
+			int consecutive = consecutiveFailures.incrementAndGet();
+			int counted = count();
+			errorRate.update(1);
+			int failureThreshold = properties.getHostFailureThreshold();
+			int errorRateThreshold = properties.getHostErrorRateThreshold();
+			if (!(failureThreshold > 0 && consecutive >= failureThreshold)
+					&& !(errorRateThreshold > 0 && counted >= MIN_CALLS && errorRate.get() * 100 >= errorRateThreshold)) {
+				return false;
+			}
+		}
+		return trip(now);
+	}
+
+	/**
+	 * Opens the breaker
+	 * 
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return true if the breaker was not already open
+	 */
+	public synchronized boolean trip(long now) {
+		if (state == State.OPEN) {
+			return false;
+		}
+		trips++;
+		long backoff = backoff();
+		// anywhere between half and all of the backoff, so that clients don't retry in lockstep
+		retryAt = now + backoff - (long) (Math.random() * (backoff / 2));
+		state = State.OPEN;
+		return true;
+	}
+
+	/**
+	 * Closes the breaker
+	 * 
+	 * @return true if the breaker was not already closed
+	 */
+	public synchronized boolean reset() {
+		if (state == State.CLOSED) {
+			return false;
+		}
+		trips = 0;
+		retryAt = 0;
+		consecutiveFailures.set(0);
+		calls.set(0);
+		errorRate = new ExponentialMovingAverage(ERROR_RATE_ALPHA);
+		state = State.CLOSED;
+		return true;
+	}
+
+	/**
+	 * Counts a call towards the minimum the error rate needs
+	 * 
+	 * @return the number of calls counted, capped at {@link #MIN_CALLS}
+	 */
+	private int count() {
+		int counted = calls.get();
+		return (counted < MIN_CALLS) ? calls.incrementAndGet() : counted;
+	}
+
+	/**
+	 * Returns the interval before the next trial, which doubles at each trip
+	 */
+	private synchronized long backoff() {
+		long max = Math.max(1, properties.getHostRetryInterval());
+		long interval = Math.min(max, Math.max(1, properties.getHostRetryInitialInterval()));
+		for (int i = 1; i < trips && interval < max; i++) {
+			interval *= 2;
+		}
+		return Math.min(interval, max);
+	}
+
+	@Override
+	public String toString() {
+		return state.toString();
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import org.apache.thrift.TException;
+
+/**
+ * Thrown by the borrows while all the hosts of the cluster have been ejected, see {@link ConnectionPool#isClusterDown()}.
+ * The borrows fail right away, instead of trying to connect and waiting for a connection, until a host is restored.
+ * 
+ * @author Tristan Tarrant
+ */
+public class ClusterDownException extends TException {
+	private static final long serialVersionUID = 1L;
+
+	public ClusterDownException(String message) {
+		super(message);
+	}
+}
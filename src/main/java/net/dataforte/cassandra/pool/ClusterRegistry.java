@@ -0,0 +1,210 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The state of the Cassandra clusters shared by the pools of the JVM which set
+ * {@link PoolProperties#shareClusterState shareClusterState}, so that a node which dies is ejected once for all of
+ * them, instead of each pool finding out with its own timed out connections.
+ * <br/>
+ * A cluster is identified by its configured hosts, in any order, and its port. Its pools share the
+ * {@link CassandraHost}s, i.e. their circuit breakers and statistics, whatever their keyspace. The pools which also
+ * have the same keyspace and {@link HostCyclePolicy} share a {@link CassandraRing}. The rings of a cluster are kept up
+ * to date by a single {@link RingRefresher}, over a single connection, which runs on the schedule of the first of its
+ * pools with {@link PoolProperties#automaticHostDiscovery automaticHostDiscovery}, and is handed over to the next one
+ * when that pool is closed. A cluster is forgotten once its last pool is closed.
+ * 
+ * @author Tristan Tarrant
+ */
+public class ClusterRegistry {
+	/**
+	 * Guarded by the class
+	 */
+	private static final Map<String, Cluster> clusters = new HashMap<String, Cluster>();
+	/**
+	 * The cluster of each pool, guarded by the class
+	 */
+	private static final Map<ConnectionPool, Cluster> members = new HashMap<ConnectionPool, Cluster>();
+
+	private ClusterRegistry() {
+	}
+
+	/**
+	 * Registers a pool with its cluster, and returns the ring it shares with the pools with the same cluster, keyspace
+	 * and cycle policy, creating it if needed. Each call must be matched by a call to {@link #release(ConnectionPool)}.
+	 * 
+	 * @param pool
+	 *            the pool, whose properties identify its cluster
+	 * @return the shared ring
+	 */
+	public static synchronized CassandraRing acquire(ConnectionPool pool) {
+		PoolConfiguration properties = pool.getPoolProperties();
+		String key = getClusterKey(properties);
+		Cluster cluster = clusters.get(key);
+		if (cluster == null) {
+			cluster = new Cluster(key);
+			clusters.put(key, cluster);
+		}
+		String ringKey = properties.getKeySpace() + "/" + properties.getHostCyclePolicy();
+		SharedRing shared = cluster.rings.get(ringKey);
+		if (shared == null) {
+			shared = new SharedRing(new CassandraRing(properties.getConfiguredHosts(), properties.getHostCyclePolicy(), properties, cluster.hosts),
+					properties.getKeySpace());
+			cluster.rings.put(ringKey, shared);
+		}
+		shared.references++;
+		cluster.pools.put(pool, ringKey);
+		members.put(pool, cluster);
+		return shared.ring;
+	}
+
+	/**
+	 * Unregisters a pool registered with {@link #acquire(ConnectionPool)}, forgetting its ring once no pool uses it,
+	 * and handing the refresher of its cluster over to another pool if it was running on the schedule of this one
+	 * 
+	 * @param pool
+	 *            the pool
+	 */
+	public static synchronized void release(ConnectionPool pool) {
+		Cluster cluster = members.remove(pool);
+		if (cluster == null) {
+			return;
+		}
+		String ringKey = cluster.pools.remove(pool);
+		SharedRing shared = cluster.rings.get(ringKey);
+		if (--shared.references == 0) {
+			cluster.rings.remove(ringKey);
+		}
+		if (cluster.refresher != null && cluster.refresher.getPool() == pool) {
+			cluster.refresher.cancel();
+			cluster.refresher = cluster.newRefresher();
+			if (cluster.refresher != null) {
+				cluster.refresher.start();
+			}
+		}
+		if (cluster.pools.isEmpty()) {
+			clusters.remove(cluster.key);
+		}
+	}
+
+	/**
+	 * Returns the refresher of the rings of the cluster of a pool, creating it if needed
+	 * 
+	 * @param pool
+	 *            a pool registered with {@link #acquire(ConnectionPool)}
+	 * @return the refresher, or null if no pool of the cluster has automatic host discovery
+	 */
+	static synchronized RingRefresher getRefresher(ConnectionPool pool) {
+		Cluster cluster = members.get(pool);
+		if (cluster == null) {
+			return null;
+		}
+		if (cluster.refresher == null) {
+			cluster.refresher = cluster.newRefresher();
+		}
+		return cluster.refresher;
+	}
+
+	/**
+	 * Returns the rings of the cluster of a pool
+	 * 
+	 * @param pool
+	 *            a pool registered with {@link #acquire(ConnectionPool)}
+	 * @return each ring of the cluster, with the keyspace whose replicas it maps
+	 */
+	static synchronized Map<CassandraRing, String> getRings(ConnectionPool pool) {
+		Map<CassandraRing, String> rings = new LinkedHashMap<CassandraRing, String>();
+		Cluster cluster = members.get(pool);
+		if (cluster != null) {
+			for (SharedRing shared : cluster.rings.values()) {
+				rings.put(shared.ring, shared.keyspace);
+			}
+		}
+		return rings;
+	}
+
+	/**
+	 * Returns the hosts of a cluster known to the registry
+	 * 
+	 * @param properties
+	 *            the properties of a pool of the cluster
+	 * @return the hosts of the cluster by address, empty if no pool of the cluster is open
+	 */
+	public static synchronized Map<String, CassandraHost> getHosts(PoolConfiguration properties) {
+		Cluster cluster = clusters.get(getClusterKey(properties));
+		return (cluster == null) ? new HashMap<String, CassandraHost>() : new HashMap<String, CassandraHost>(cluster.hosts);
+	}
+
+	/**
+	 * Returns the number of clusters known to the registry
+	 * 
+	 * @return the number of clusters with at least one open pool
+	 */
+	public static synchronized int size() {
+		return clusters.size();
+	}
+
+	static String getClusterKey(PoolConfiguration properties) {
+		String[] hosts = properties.getConfiguredHosts().clone();
+		Arrays.sort(hosts);
+		return Arrays.toString(hosts) + ":" + properties.getPort();
+	}
+
+	private static class Cluster {
+		final String key;
+		final ConcurrentHashMap<String, CassandraHost> hosts = new ConcurrentHashMap<String, CassandraHost>();
+		final Map<String, SharedRing> rings = new HashMap<String, SharedRing>();
+		/**
+		 * The pools of the cluster in the order they were registered, with the key of their ring
+		 */
+		final Map<ConnectionPool, String> pools = new LinkedHashMap<ConnectionPool, String>();
+		RingRefresher refresher;
+
+		Cluster(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return a refresher running on the schedule of the oldest pool with automatic host discovery, or null
+		 */
+		RingRefresher newRefresher() {
+			for (ConnectionPool pool : pools.keySet()) {
+				if (pool.getPoolProperties().isAutomaticHostDiscovery()) {
+					return new RingRefresher(pool);
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class SharedRing {
+		final CassandraRing ring;
+		final String keyspace;
+		int references;
+
+		SharedRing(CassandraRing ring, String keyspace) {
+			this.ring = ring;
+			this.keyspace = keyspace;
+		}
+	}
+}
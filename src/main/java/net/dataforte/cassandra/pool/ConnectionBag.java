@@ -0,0 +1,565 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.lang.ref.WeakReference;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free store for both the idle and the busy connections of a {@link ConnectionPool}.
+ * <br/>
+ * Connections never move between collections: they are all kept in a single shared set and
+ * ownership is expressed through the CAS state of each {@link PooledConnection}.
+ * A borrowing thread first looks at the connections it has itself returned recently (a thread-local list),
+ * then scans the shared set trying to claim an idle connection and only parks, waiting for a hand-off
+ * from a returning thread, when nothing is free.
+ * <br/>
+ * The pool sees the bag through the two {@link BlockingQueue} views returned by {@link #getIdleQueue()} and
+ * {@link #getBusyQueue()}, so that the usual idle/busy bookkeeping keeps working. Only the methods used by
+ * the connection pool are implemented efficiently.
+ *
+ * @author Tristan Tarrant
+ */
+public class ConnectionBag {
+	/**
+	 * Maximum number of recently returned connections remembered by each thread
+	 */
+	static final int THREAD_LIST_SIZE = 16;
+
+	/**
+	 * All the connections managed by this bag, regardless of their state
+	 */
+	final ConcurrentHashMap<PooledConnection, Boolean> shared = new ConcurrentHashMap<PooledConnection, Boolean>();
+
+	/**
+	 * The connections most recently returned by the current thread. They are only weakly referenced, so that the
+	 * lists of long-lived threads don't keep removed connections, and their pools, from being collected.
+	 */
+	final ThreadLocal<List<WeakReference<PooledConnection>>> threadList = new ThreadLocal<List<WeakReference<PooledConnection>>>() {
+		@Override
+		protected List<WeakReference<PooledConnection>> initialValue() {
+			return new ArrayList<WeakReference<PooledConnection>>(THREAD_LIST_SIZE);
+		}
+	};
+
+	/**
+	 * Used to hand a returned connection directly to a waiting thread
+	 */
+	final SynchronousQueue<PooledConnection> handoffQueue = new SynchronousQueue<PooledConnection>(true);
+
+	/**
+	 * Number of threads waiting for a connection
+	 */
+	final AtomicInteger waiters = new AtomicInteger(0);
+
+	/**
+	 * Number of connections in the {@link PooledConnection#STATE_NOT_IN_USE} or
+	 * {@link PooledConnection#STATE_RESERVED} state
+	 */
+	final AtomicInteger idleCount = new AtomicInteger(0);
+
+	/**
+	 * Number of connections in the {@link PooledConnection#STATE_IN_USE} state
+	 */
+	final AtomicInteger busyCount = new AtomicInteger(0);
+
+	/**
+	 * The returns of connections, oldest first. A connection has a record for each of its returns, only the one of
+	 * its last return is live while it is idle: the others are dropped when they are met.
+	 */
+	final ConcurrentLinkedQueue<Return> returns = new ConcurrentLinkedQueue<Return>();
+
+	/**
+	 * Approximate number of records in {@link #returns}
+	 */
+	final AtomicInteger returnCount = new AtomicInteger(0);
+
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+	private final IdleQueue idleQueue = new IdleQueue();
+
+	private final BusyQueue busyQueue = new BusyQueue();
+
+	/**
+	 * Returns the view of the idle connections
+	 *
+	 * @return a queue whose poll operations claim an idle connection and whose offer operations return one
+	 */
+	public BlockingQueue<PooledConnection> getIdleQueue() {
+		return idleQueue;
+	}
+
+	/**
+	 * Returns the view of the connections which have been handed out
+	 *
+	 * @return a queue which reflects the connections currently in use
+	 */
+	public BlockingQueue<PooledConnection> getBusyQueue() {
+		return busyQueue;
+	}
+
+	/**
+	 * Attempts to claim an idle connection without waiting
+	 *
+	 * @return a connection now in the {@link PooledConnection#STATE_IN_USE} state, or null if none is available
+	 */
+	public PooledConnection borrow() {
+		// Try the connections recently returned by this thread first, most recent first
+		List<WeakReference<PooledConnection>> list = threadList.get();
+		for (int i = list.size() - 1; i >= 0; i--) {
+			PooledConnection con = list.remove(i).get();
+			if (con != null && claim(con)) {
+				return con;
+			}
+		}
+		// Fall back to the shared set
+		if (idleCount.get() > 0) {
+			for (PooledConnection con : shared.keySet()) {
+				if (claim(con)) {
+					return con;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Claims an idle connection, waiting for one to be returned if necessary
+	 *
+	 * @param timeout how long to wait
+	 * @param unit the unit of the timeout
+	 * @return a connection now in the {@link PooledConnection#STATE_IN_USE} state, or null if the timeout elapsed
+	 * @throws InterruptedException
+	 */
+	public PooledConnection borrow(long timeout, TimeUnit unit) throws InterruptedException {
+		PooledConnection con = borrow();
+		if (con != null || timeout <= 0) {
+			return con;
+		}
+		long remaining = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + remaining;
+		waiters.incrementAndGet();
+		try {
+			do {
+				con = handoffQueue.poll(remaining, TimeUnit.NANOSECONDS);
+				if (con != null && claim(con)) {
+					return con;
+				}
+				// a connection may have been returned while we were not yet parked
+				con = borrow();
+				if (con != null) {
+					return con;
+				}
+				remaining = deadline - System.nanoTime();
+			} while (remaining > 0);
+			return null;
+		} finally {
+			waiters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns a connection to the bag, making it available to other borrowers. If threads are waiting, the
+	 * connection is handed to one of them directly.
+	 *
+	 * @param con the connection being returned
+	 * @return false if the connection was not in use
+	 */
+	public boolean requite(PooledConnection con) {
+		register(con);
+		if (!con.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_NOT_IN_USE)) {
+			return false;
+		}
+		busyCount.decrementAndGet();
+		idleCount.incrementAndGet();
+		recordReturn(con);
+		for (int i = 0; waiters.get() > 0; i++) {
+			if (con.getState() != PooledConnection.STATE_NOT_IN_USE || handoffQueue.offer(con)) {
+				return true;
+			} else if ((i & 0xff) == 0xff) {
+				LockSupport.parkNanos(10000L);
+			} else {
+				Thread.yield();
+			}
+		}
+		List<WeakReference<PooledConnection>> list = threadList.get();
+		if (list.size() >= THREAD_LIST_SIZE) {
+			prune(list);
+		}
+		if (list.size() < THREAD_LIST_SIZE) {
+			list.add(new WeakReference<PooledConnection>(con));
+		}
+		return true;
+	}
+
+	/**
+	 * Forgets the connections of a thread list which are no longer idle: claimed by other threads, removed from the
+	 * bag, or collected
+	 */
+	private static void prune(List<WeakReference<PooledConnection>> list) {
+		for (Iterator<WeakReference<PooledConnection>> i = list.iterator(); i.hasNext();) {
+			PooledConnection con = i.next().get();
+			if (con == null || con.getState() != PooledConnection.STATE_NOT_IN_USE) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes a connection from the bag. The connection will never be handed out again
+	 *
+	 * @param con the connection to remove
+	 * @return true if the connection was part of the bag
+	 */
+	public boolean remove(PooledConnection con) {
+		if (shared.remove(con) == null) {
+			return false;
+		}
+		int previous = con.getAndSetState(PooledConnection.STATE_REMOVED);
+		// reserved connections are idle connections claimed by a maintenance task
+		if (previous == PooledConnection.STATE_NOT_IN_USE || previous == PooledConnection.STATE_RESERVED) {
+			idleCount.decrementAndGet();
+		} else if (previous == PooledConnection.STATE_IN_USE) {
+			busyCount.decrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of threads waiting for a connection to be returned to the bag
+	 *
+	 * @return the number of waiting threads
+	 */
+	public int getWaitingThreadCount() {
+		return waiters.get();
+	}
+
+	/**
+	 * Adds a connection which is not yet known to the bag. New connections are in use by the thread which
+	 * created them.
+	 */
+	private void register(PooledConnection con) {
+		if (!shared.containsKey(con) && con.getState() == PooledConnection.STATE_IN_USE && shared.putIfAbsent(con, Boolean.TRUE) == null) {
+			busyCount.incrementAndGet();
+		}
+	}
+
+	private boolean claim(PooledConnection con) {
+		if (con.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE)) {
+			idleCount.decrementAndGet();
+			busyCount.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns an iterator over the idle connections in the order they were returned, oldest first. The returns are
+	 * read lazily, so a caller which stops at the first recently returned connection only looks at the older ones.
+	 *
+	 * @return an iterator whose removal takes the connection out of the bag
+	 */
+	public Iterator<PooledConnection> oldestIdleFirst() {
+		return new BagIterator(new ReturnIterator());
+	}
+
+	/**
+	 * Records the return of a connection, dropping the records which no longer match an idle connection once they
+	 * outnumber the connections of the bag
+	 */
+	private void recordReturn(PooledConnection con) {
+		returns.offer(new Return(con));
+		if (returnCount.incrementAndGet() > 2 * (idleCount.get() + busyCount.get()) + THREAD_LIST_SIZE && compacting.compareAndSet(false, true)) {
+			try {
+				int live = 0;
+				for (Iterator<Return> i = returns.iterator(); i.hasNext();) {
+					if (i.next().isLive()) {
+						live++;
+					} else {
+						i.remove();
+					}
+				}
+				returnCount.set(live);
+			} finally {
+				compacting.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the connections in the specified state
+	 */
+	private List<PooledConnection> values(int state) {
+		List<PooledConnection> list = new ArrayList<PooledConnection>();
+		for (PooledConnection con : shared.keySet()) {
+			if (con.getState() == state) {
+				list.add(con);
+			}
+		}
+		return list;
+	}
+
+	// ------------------------------------------------------------------
+	// Queue views used by the connection pool
+	// ------------------------------------------------------------------
+	abstract class View extends AbstractQueue<PooledConnection> implements BlockingQueue<PooledConnection> {
+		final int state;
+
+		View(int state) {
+			this.state = state;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public boolean contains(Object o) {
+			return shared.containsKey(o) && ((PooledConnection) o).getState() == state;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		@Override
+		public Iterator<PooledConnection> iterator() {
+			return new BagIterator(values(state).iterator());
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public boolean offer(PooledConnection e, long timeout, TimeUnit unit) throws InterruptedException {
+			return offer(e);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public void put(PooledConnection e) throws InterruptedException {
+			offer(e);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public PooledConnection take() throws InterruptedException {
+			return poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 */
+		public int remainingCapacity() {
+			return Integer.MAX_VALUE - size();
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @throws UnsupportedOperationException - this operation is not supported
+		 */
+		public int drainTo(Collection<? super PooledConnection> c) {
+			return drainTo(c, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @throws UnsupportedOperationException - this operation is not supported
+		 */
+		public int drainTo(Collection<? super PooledConnection> c, int maxElements) {
+			throw new UnsupportedOperationException("int drainTo(Collection<? super E> c, int maxElements)");
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @throws UnsupportedOperationException - this operation is not supported
+		 */
+		public PooledConnection peek() {
+			throw new UnsupportedOperationException("E peek()");
+		}
+	}
+
+	/**
+	 * Idle connections: poll claims, offer returns
+	 */
+	class IdleQueue extends View {
+		IdleQueue() {
+			super(PooledConnection.STATE_NOT_IN_USE);
+		}
+
+		public boolean offer(PooledConnection e) {
+			return requite(e);
+		}
+
+		public PooledConnection poll() {
+			return borrow();
+		}
+
+		public PooledConnection poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return borrow(timeout, unit);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			return ConnectionBag.this.remove((PooledConnection) o);
+		}
+
+		public int size() {
+			return idleCount.get();
+		}
+	}
+
+	/**
+	 * Busy connections: membership is implied by the connection state, so offer and remove only check it
+	 */
+	class BusyQueue extends View {
+		BusyQueue() {
+			super(PooledConnection.STATE_IN_USE);
+		}
+
+		public boolean offer(PooledConnection e) {
+			register(e);
+			return true;
+		}
+
+		/**
+		 * Returns a connection in use without changing its state. Only used when the pool is closing and
+		 * abandons the busy connections.
+		 */
+		public PooledConnection poll() {
+			for (PooledConnection con : shared.keySet()) {
+				if (con.getState() == state) {
+					return con;
+				}
+			}
+			return null;
+		}
+
+		public PooledConnection poll(long timeout, TimeUnit unit) throws InterruptedException {
+			return poll();
+		}
+
+		/**
+		 * The connection stays in the bag: it either is returned to the idle view with
+		 * {@link IdleQueue#offer(PooledConnection)} or removed when it is released
+		 */
+		@Override
+		public boolean remove(Object o) {
+			return contains(o);
+		}
+
+		public int size() {
+			return busyCount.get();
+		}
+	}
+
+	//------------------------------------------------------------------
+	// Iterator over a snapshot of the bag, removal takes the connection out of the bag
+	//------------------------------------------------------------------
+	class BagIterator implements Iterator<PooledConnection> {
+		final Iterator<PooledConnection> snapshot;
+		PooledConnection element = null;
+
+		BagIterator(Iterator<PooledConnection> snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		public boolean hasNext() {
+			return snapshot.hasNext();
+		}
+
+		public PooledConnection next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			element = snapshot.next();
+			return element;
+		}
+
+		public void remove() {
+			if (element != null) {
+				ConnectionBag.this.remove(element);
+			}
+		}
+	}
+
+	//------------------------------------------------------------------
+	// Returns of connections, in order
+	//------------------------------------------------------------------
+	static final class Return {
+		final PooledConnection con;
+		final long timestamp;
+
+		Return(PooledConnection con) {
+			this.con = con;
+			this.timestamp = con.getTimestamp();
+		}
+
+		/**
+		 * @return true if the connection is idle, possibly reserved, and hasn't been returned again since
+		 */
+		boolean isLive() {
+			int state = con.getState();
+			return (state == PooledConnection.STATE_NOT_IN_USE || state == PooledConnection.STATE_RESERVED) && con.getTimestamp() == timestamp;
+		}
+	}
+
+	/**
+	 * Iterates over the live returns, oldest first, dropping the others
+	 */
+	class ReturnIterator implements Iterator<PooledConnection> {
+		final Iterator<Return> records = returns.iterator();
+		PooledConnection next = null;
+
+		public boolean hasNext() {
+			while (next == null && records.hasNext()) {
+				Return record = records.next();
+				if (record.isLive()) {
+					next = record.con;
+				} else {
+					records.remove();
+				}
+			}
+			return next != null;
+		}
+
+		public PooledConnection next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			PooledConnection con = next;
+			next = null;
+			return con;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
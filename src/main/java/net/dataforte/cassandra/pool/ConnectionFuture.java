@@ -0,0 +1,322 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection borrowed through {@link ConnectionPool#getConnectionAsync()}, without blocking the calling thread.
+ * <br/>
+ * If no connection is idle, the future waits in the fair idle queue of the pool like a blocked borrower would. A
+ * connection handed to it is validated, and the listeners are notified, on a thread of the maintenance executor
+ * rather than on the thread which returns the connection while holding its lock. It fails with a {@link TException} once {@link PoolConfiguration#getMaxWait()} has elapsed, and
+ * cancelling it removes it from the queue. A connection which arrives after either has happened goes back to the pool.
+ * 
+ * @author Tristan Tarrant
+ */
+public class ConnectionFuture implements Future<Cassandra.Client>, FairBlockingQueue.ItemListener<PooledConnection> {
+	private static final Logger log = LoggerFactory.getLogger(ConnectionFuture.class);
+
+	/**
+	 * Notified once when the future completes, on the thread which completes it
+	 */
+	public interface Listener {
+		/**
+		 * @param connection
+		 *            the borrowed connection, to be released to the pool as usual
+		 */
+		void onConnection(Cassandra.Client connection);
+
+		/**
+		 * @param cause
+		 *            a {@link TException} if the connection could not be borrowed, a {@link CancellationException}
+		 *            if the future has been cancelled
+		 */
+		void onFailure(Throwable cause);
+	}
+
+	private final ConnectionPool pool;
+	private final ConnectionPool.SubPool[] order;
+	private final long start = System.currentTimeMillis();
+	private final AtomicBoolean completed = new AtomicBoolean(false);
+	private final CountDownLatch done = new CountDownLatch(1);
+	/**
+	 * The listeners still to be notified, guarded by this
+	 */
+	private final List<Listener> listeners = new ArrayList<Listener>(1);
+	private volatile Cassandra.Client connection;
+	private volatile Throwable failure;
+	/**
+	 * The pending poll of the idle queue of the home sub-pool
+	 */
+	private volatile Future<PooledConnection> waiter;
+	private volatile ScheduledFuture<?> timeout;
+
+	ConnectionFuture(ConnectionPool pool, ConnectionPool.SubPool[] order) {
+		this.pool = pool;
+		this.order = order;
+	}
+
+	/**
+	 * Takes an idle connection, or opens one if the pool is below its capacity and isn't replenished in the background,
+	 * otherwise starts waiting
+	 */
+	void borrow() {
+		try {
+			pool.wakeReplenisher();
+			for (PooledConnection con = pool.poll(order); con != null; con = pool.poll(order)) {
+				PooledConnection result = pool.borrowConnection(System.currentTimeMillis(), con);
+				if (result != null) {
+					complete(result, null);
+					return;
+				}
+			}
+			if (!pool.getPoolProperties().isBackgroundReplenish()) {
+				PooledConnection created = pool.createBelowCapacity(System.currentTimeMillis(), order);
+				if (created != null) {
+					complete(created, null);
+					return;
+				}
+			}
+		} catch (TException x) {
+			complete(null, x);
+			return;
+		}
+		await();
+	}
+
+	/**
+	 * Registers as a waiter of the home sub-pool
+	 */
+	private void await() {
+		long maxWait = pool.getPoolProperties().getMaxWait();
+		if (maxWait > 0 && timeout == null) {
+			timeout = MaintenanceTask.getScheduler().schedule(new Runnable() {
+				@Override
+				public void run() {
+					expire();
+				}
+			}, Math.max(0, start + maxWait - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		}
+		ConnectionPool.SubPool home = order[0];
+		home.waitcount.incrementAndGet();
+		// connections are now handed to the home sub-pool, steal once more before waiting on it
+		PooledConnection con = pool.poll(order);
+		if (con != null) {
+			take(con);
+			return;
+		}
+		@SuppressWarnings("unchecked")
+		FairBlockingQueue<PooledConnection> queue = (FairBlockingQueue<PooledConnection>) home.idle;
+		waiter = queue.pollAsync(this);
+		pool.wakeReplenisher();
+		if (completed.get()) {
+			// cancelled or expired before the waiter was known
+			withdraw();
+		}
+	}
+
+	/**
+	 * Called with the connection handed to the waiter, on the thread which returns it. The hand-off is completed on
+	 * another thread, since the returning thread still holds the lock of the connection.
+	 * 
+	 * @param con
+	 *            an idle connection, now owned by this future
+	 */
+	@Override
+	public void itemAvailable(final PooledConnection con) {
+		MaintenanceTask.getIoExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				take(con);
+			}
+		});
+	}
+
+	/**
+	 * Borrows the connection handed to the waiter, or stolen from another sub-pool
+	 * 
+	 * @param con
+	 *            an idle connection, now owned by this future
+	 */
+	private void take(PooledConnection con) {
+		order[0].waitcount.decrementAndGet();
+		try {
+			PooledConnection result = pool.borrowConnection(System.currentTimeMillis(), con);
+			if (result != null) {
+				complete(result, null);
+			} else if (!completed.get()) {
+				// removed from the pool in the meantime
+				await();
+			}
+		} catch (TException x) {
+			complete(null, x);
+		}
+	}
+
+	/**
+	 * Fails the future once maxWait has elapsed
+	 */
+	private void expire() {
+		if (completed.get()) {
+			return;
+		}
+		// leave the queue first, so that the waiter is gone once the future is done
+		withdraw();
+		long maxWait = pool.getPoolProperties().getMaxWait();
+		complete(null, new TException("[" + pool.getName() + "] Timeout: Pool empty. Unable to fetch a connection in " + (maxWait / 1000)
+				+ " seconds, none available[" + pool.getActive() + " in use]."));
+	}
+
+	/**
+	 * Removes the waiter from the idle queue, unless a connection has already been handed to it
+	 */
+	private void withdraw() {
+		Future<PooledConnection> waiter = this.waiter;
+		if (waiter != null && waiter.cancel(false)) {
+			order[0].waitcount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Completes the future, unless it is already complete, in which case a borrowed connection is returned to the pool
+	 * 
+	 * @param con
+	 *            the borrowed connection, or null
+	 * @param cause
+	 *            the failure if con is null
+	 * @return true if this call completed the future
+	 */
+	private boolean complete(PooledConnection con, Throwable cause) {
+		if (!completed.compareAndSet(false, true)) {
+			if (con != null) {
+				pool.returnConnection(con);
+			}
+			return false;
+		}
+		ScheduledFuture<?> timeout = this.timeout;
+		if (timeout != null) {
+			timeout.cancel(false);
+		}
+		if (con != null) {
+			connection = con.getConnection();
+		} else {
+			failure = cause;
+		}
+		done.countDown();
+		List<Listener> pending;
+		synchronized (this) {
+			pending = new ArrayList<Listener>(listeners);
+			listeners.clear();
+		}
+		for (Listener listener : pending) {
+			notify(listener);
+		}
+		return true;
+	}
+
+	private void notify(Listener listener) {
+		try {
+			if (connection != null) {
+				listener.onConnection(connection);
+			} else {
+				listener.onFailure(failure);
+			}
+		} catch (RuntimeException x) {
+			log.warn("[" + pool.getName() + "] Connection listener failed", x);
+		}
+	}
+
+	/**
+	 * Registers a listener, which is notified immediately by the current thread if the future is already complete
+	 * 
+	 * @param listener
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (done.getCount() > 0) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		notify(listener);
+	}
+
+	/**
+	 * Stops waiting for a connection. Fails if a connection has already been borrowed, it belongs to the caller of
+	 * {@link #get()} then.
+	 * 
+	 * @param mayInterruptIfRunning
+	 *            ignored, no thread is blocked on behalf of this future
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (completed.get()) {
+			return false;
+		}
+		withdraw();
+		return complete(null, new CancellationException());
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return failure instanceof CancellationException;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public Cassandra.Client get() throws InterruptedException, ExecutionException {
+		done.await();
+		return result();
+	}
+
+	@Override
+	public Cassandra.Client get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result();
+	}
+
+	private Cassandra.Client result() throws ExecutionException {
+		if (connection != null) {
+			return connection;
+		} else if (failure instanceof CancellationException) {
+			throw (CancellationException) failure;
+		} else {
+			throw new ExecutionException(failure);
+		}
+	}
+}
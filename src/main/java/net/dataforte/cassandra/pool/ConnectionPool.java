@@ -16,15 +16,33 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.cassandra.thrift.AuthenticationException;
 import org.apache.cassandra.thrift.AuthorizationException;
@@ -55,14 +73,38 @@ public class ConnectionPool {
 	 */
 	private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
 
+	/**
+	 * The resolution of the suspect and abandon checks, in milliseconds
+	 */
+	public static final long ABANDON_TICK_MILLIS = 500;
+
+	/**
+	 * How long a borrower waits on the sub-pool of a host before looking at the other hosts again, in milliseconds:
+	 * the connections of a host are only ever returned to its own sub-pool
+	 */
+	static final long HOST_WAIT_SLICE_MILLIS = 50;
+
 	// ===============================================================================
 	// INSTANCE/QUICK ACCESS VARIABLE
 	// ===============================================================================
 	/**
-	 * Carries the size of the pool, instead of relying on a queue
-	 * implementation that usually iterates over to get an exact count
+	 * The sub-pools the pool is split into. Each sub-pool carries its own idle queue, size and wait counters.
+	 * There is a single sub-pool, unless the pool is striped ({@link PoolConfiguration#getStripes()}) or
+	 * partitioned by host ({@link PoolConfiguration#isPartitionedByHost()}). When partitioned by host, the
+	 * array is replaced with a larger copy whenever a new host is discovered.
+	 */
+	private volatile SubPool[] subPools;
+
+	/**
+	 * The order in which the sub-pools are tried by a thread whose home is the sub-pool at the same index,
+	 * unless the pool is partitioned by host
+	 */
+	private SubPool[][] borrowOrders;
+
+	/**
+	 * The sub-pool of each host, if the pool is partitioned by host
 	 */
-	private AtomicInteger size = new AtomicInteger(0);
+	private ConcurrentHashMap<CassandraHost, SubPool> hostSubPools;
 
 	/**
 	 * All the information about the connection pool These are the properties
@@ -77,16 +119,89 @@ public class ConnectionPool {
 	private BlockingQueue<PooledConnection> busy;
 
 	/**
-	 * Contains all the idle connections
+	 * Contains all the idle connections, this is either the idle queue of the only sub-pool or a
+	 * {@link SubPoolBlockingQueue} over all of them
 	 */
 	private BlockingQueue<PooledConnection> idle;
-	
-	private Map<Cassandra.Client, PooledConnection> connectionMap;
 
 	/**
-	 * The thread that is responsible for checking abandoned and idle threads and for keeping an up-to-date list of Cassandra hosts
+	 * The lock-free store backing both the idle and the busy queues, if enabled
+	 */
+	private ConnectionBag bag;
+
+	/**
+	 * The pending suspect and abandon checks of the borrowed connections, if the pool sweeper is enabled
+	 */
+	private volatile TimingWheel<PooledConnection> abandonWheel;
+
+	/**
+	 * The background tasks of the pool, which run on the scheduler shared by all pools
+	 */
+	private final List<MaintenanceTask> maintenanceTasks = new CopyOnWriteArrayList<MaintenanceTask>();
+
+	/**
+	 * The task that keeps the ring up to date, if automatic host discovery is enabled and the cluster state is not
+	 * shared, in which case the one of the cluster is used
+	 */
+	private volatile RingRefresher ringRefresher;
+
+	/**
+	 * The task that opens connections off the request path, if background replenishing is enabled
+	 */
+	private volatile Replenisher replenisher;
+
+	/**
+	 * The threads validating the idle connections, created by the first pass of {@link #testAllIdle()}
+	 */
+	private ThreadPoolExecutor validator;
+
+	/**
+	 * Runs the hedged reads, created on first use
+	 */
+	private HedgingExecutor hedging;
+
+	/**
+	 * True once all the hosts have been ejected, see {@link #isClusterDown()}
+	 */
+	private volatile boolean clusterDown = false;
+
+	/**
+	 * Closes the idle connections to the hosts which are ejected, so that they aren't handed out, and tracks whether
+	 * the cluster is down
+	 */
+	private final CassandraHost.Listener ejectionListener = new CassandraHost.Listener() {
+		@Override
+		public void ejected(final CassandraHost host) {
+			if (isClosed()) {
+				return;
+			}
+			log.warn("[" + getName() + "] Ejected host " + host);
+			if (getPoolProperties().isBackgroundHostProbe() && !clusterDown && allEjected()) {
+				clusterDown = true;
+				log.error("[" + getName() + "] All hosts are down, borrows fail until one is restored.");
+			}
+			// don't hold up the thread whose call failed
+			MaintenanceTask.getIoExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					closeIdle(host);
+				}
+			});
+		}
+
+		@Override
+		public void restored(CassandraHost host) {
+			if (clusterDown) {
+				clusterDown = false;
+				log.info("[" + getName() + "] Host " + host + " restored, the cluster is up.");
+			}
+		}
+	};
+
+	/**
+	 * Completes once the initial connections have been opened
 	 */
-	private volatile PoolMaintenance poolMaintenance;
+	private volatile FutureTask<Void> ready;
 
 	/**
 	 * Pool closed flag
@@ -98,11 +213,6 @@ public class ConnectionPool {
 	 */
 	protected net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean jmxPool = null;
 
-	/**
-	 * counter to track how many threads are waiting for a connection
-	 */
-	private AtomicInteger waitcount = new AtomicInteger(0);
-	
 	/**
 	 * the object which contains the list of active Cassandra nodes
 	 */
@@ -149,6 +259,255 @@ public class ConnectionPool {
 		return con.getConnection();
 	}
 
+	/**
+	 * Borrows a connection to a replica of a row key, so that requests about that row don't need to be
+	 * forwarded by a coordinator node. The replicas are tried first, then the other hosts of the ring.
+	 * <br/>
+	 * The replicas are only known if the pool is partitioned by host ({@link PoolProperties#partitionedByHost partitionedByHost}),
+	 * {@link PoolProperties#automaticHostDiscovery automaticHostDiscovery} is enabled and the ring has been refreshed with a
+	 * partitioner whose tokens can be computed on the client side (see {@link Partitioner}). Otherwise this behaves
+	 * like {@link #getConnection()}.
+	 * 
+	 * @param rowKey
+	 *            the row key, its position is not changed
+	 * @return Connection - a connection to a replica of the row key, if one is available
+	 * @throws TException
+	 *             - if the wait times out or a failure occurs creating a
+	 *             connection
+	 */
+	public Cassandra.Client getConnection(ByteBuffer rowKey) throws TException {
+		// check out a connection
+		PooledConnection con = borrowConnection(-1, getBorrowOrder(rowKey));
+		return con.getConnection();
+	}
+
+	/**
+	 * Returns a {@link Cassandra.Iface} which borrows a connection for each call and returns it as soon as the call
+	 * completes, so that connections are only held while waiting for Cassandra. login and set_keyspace pin the
+	 * connection until the proxy, which is also {@link java.io.Closeable}, is closed. See
+	 * {@link PerCallConnectionHandler}.
+	 * 
+	 * @return a proxy over the connections of this pool
+	 */
+	public Cassandra.Iface getPerCallConnection() {
+		return PerCallConnectionHandler.newProxy(this);
+	}
+
+	/**
+	 * Runs an operation on a pooled connection, see {@link #execute(ByteBuffer, Callback, boolean)}. The operation is
+	 * not retried after a transport failure, since it may have been applied.
+	 * 
+	 * @param callback
+	 *            the operation
+	 * @return the result of the operation
+	 * @throws Exception
+	 *             the failure of the operation, or a {@link TException} if no connection could be borrowed
+	 */
+	public <T> T execute(Callback<Cassandra.Client, T> callback) throws Exception {
+		return execute(null, callback, false);
+	}
+
+	/**
+	 * Runs an operation on a pooled connection, see {@link #execute(ByteBuffer, Callback, boolean)}
+	 * 
+	 * @param callback
+	 *            the operation
+	 * @param idempotent
+	 *            true if the operation can be retried after a transport failure
+	 * @return the result of the operation
+	 * @throws Exception
+	 *             the failure of the operation, or a {@link TException} if no connection could be borrowed
+	 */
+	public <T> T execute(Callback<Cassandra.Client, T> callback, boolean idempotent) throws Exception {
+		return execute(null, callback, idempotent);
+	}
+
+	/**
+	 * Runs an operation on a pooled connection, which is returned to the pool afterwards. If the transport fails,
+	 * the connection is closed, its host is marked as bad, and an idempotent operation is retried on a connection to
+	 * another host, as many times as {@link PoolProperties#failoverPolicy failoverPolicy} allows. No retry is started
+	 * once {@link PoolProperties#maxOperationTime maxOperationTime} has elapsed, which also bounds the time spent
+	 * waiting for connections.
+	 * 
+	 * @param rowKey
+	 *            the row key the operation is about, to borrow connections to its replicas, or null
+	 * @param callback
+	 *            the operation
+	 * @param idempotent
+	 *            true if the operation can be retried after a transport failure
+	 * @return the result of the operation
+	 * @throws Exception
+	 *             the failure of the operation, or a {@link TException} if no connection could be borrowed
+	 */
+	public <T> T execute(ByteBuffer rowKey, Callback<Cassandra.Client, T> callback, boolean idempotent) throws Exception {
+		long maxOperationTime = getPoolProperties().getMaxOperationTime();
+		long deadline = maxOperationTime > 0 ? System.currentTimeMillis() + maxOperationTime : Long.MAX_VALUE;
+		int retries = getPoolProperties().getFailoverPolicy().numRetries;
+		Set<CassandraHost> failed = new HashSet<CassandraHost>();
+		for (int attempt = 0;; attempt++) {
+			PooledConnection con = borrowConnection(deadline, rowKey, failed);
+			try {
+				T result = callback.execute(con.getConnection());
+				returnConnection(con);
+				return result;
+			} catch (TTransportException x) {
+				CassandraHost host = con.getCassandraHost();
+				// the state of the connection is unknown, don't reuse it
+				con.setDiscarded(true);
+				returnConnection(con);
+				if (host != null) {
+					host.timestamp();
+					// the breaker of the host decides whether it is ejected
+					host.recordError();
+					failed.add(host);
+					log.warn("[" + getName() + "] Transport failure on " + host + (idempotent && attempt < retries ? ", retrying" : ""), x);
+				}
+				requestRingRefresh();
+				if (!idempotent || attempt >= retries || System.currentTimeMillis() >= deadline) {
+					throw x;
+				}
+			} catch (Exception x) {
+				returnConnection(con);
+				throw x;
+			}
+		}
+	}
+
+	/**
+	 * Borrows a connection for an operation, to a host which hasn't failed it yet
+	 * 
+	 * @param deadline
+	 *            the time by which the operation must be done
+	 * @param rowKey
+	 *            the row key of the operation, or null
+	 * @param failed
+	 *            the hosts the operation has failed on
+	 * @return a connection in use
+	 * @throws TException
+	 *             if there is no time or no host left, or no connection could be borrowed
+	 */
+	private PooledConnection borrowConnection(long deadline, ByteBuffer rowKey, Set<CassandraHost> failed) throws TException {
+		long remaining = deadline - System.currentTimeMillis();
+		if (remaining <= 0) {
+			throw new TException("[" + getName() + "] Timeout: the operation could not complete in " + getPoolProperties().getMaxOperationTime() + "ms");
+		}
+		long maxWait = getPoolProperties().getMaxWait() <= 0 ? Long.MAX_VALUE : getPoolProperties().getMaxWait();
+		int wait = (int) Math.min(Integer.MAX_VALUE, Math.min(maxWait, remaining));
+		SubPool[] order = (rowKey != null) ? getBorrowOrder(rowKey) : getBorrowOrder();
+		if (hostSubPools != null && !failed.isEmpty()) {
+			// the connections of a sub-pool are bound to its host
+			List<SubPool> others = new ArrayList<SubPool>(order.length);
+			for (SubPool subPool : order) {
+				if (!failed.contains(subPool.host)) {
+					others.add(subPool);
+				}
+			}
+			if (others.isEmpty()) {
+				throw new TException("[" + getName() + "] No hosts left to retry the operation on.");
+			}
+			order = others.toArray(new SubPool[others.size()]);
+		}
+		PooledConnection con = borrowConnection(wait, order);
+		if (!failed.contains(con.getCassandraHost())) {
+			return con;
+		}
+		// an idle connection to a failed host, open it again to one of the other hosts
+		try {
+			con.lock();
+			con.reconnect(failed);
+		} catch (Exception x) {
+			busy.remove(con);
+			release(con);
+			throw (x instanceof TException) ? (TException) x : new TException(x);
+		} finally {
+			con.unlock();
+		}
+		if (failed.contains(con.getCassandraHost())) {
+			returnConnection(con);
+			throw new TException("[" + getName() + "] No hosts left to retry the operation on.");
+		}
+		return con;
+	}
+
+	/**
+	 * Borrows a connection to a host other than the specified one without waiting: an idle connection, or a new one if
+	 * the pool is below its capacity
+	 * 
+	 * @param rowKey
+	 *            the row key to borrow a connection to one of its replicas, or null
+	 * @param avoid
+	 *            the host the connection must not be to
+	 * @return a connection in use, or null if none to another host is at hand
+	 * @throws TException
+	 *             if the pool is closed or a connection could not be opened
+	 */
+	protected PooledConnection borrowConnectionAvoiding(ByteBuffer rowKey, CassandraHost avoid) throws TException {
+		if (isClosed()) {
+			throw new TException("[" + getName() + "] Connection pool closed.");
+		}
+		SubPool[] order = (rowKey != null) ? getBorrowOrder(rowKey) : getBorrowOrder();
+		if (hostSubPools != null) {
+			List<SubPool> others = new ArrayList<SubPool>(order.length);
+			for (SubPool subPool : order) {
+				if (subPool.host != avoid) {
+					others.add(subPool);
+				}
+			}
+			if (others.isEmpty()) {
+				return null;
+			}
+			order = others.toArray(new SubPool[others.size()]);
+		}
+		long now = System.currentTimeMillis();
+		PooledConnection con = poll(order);
+		con = (con != null) ? borrowConnection(now, con) : createBelowCapacity(now, order);
+		if (con != null && con.getCassandraHost() == avoid) {
+			returnConnection(con);
+			return null;
+		}
+		return con;
+	}
+
+	/**
+	 * Returns the executor which runs reads with hedging, see {@link HedgingExecutor}
+	 * 
+	 * @return the hedging executor of this pool
+	 */
+	public synchronized HedgingExecutor getHedgingExecutor() {
+		if (hedging == null) {
+			hedging = new HedgingExecutor(this);
+		}
+		return hedging;
+	}
+
+	/**
+	 * Borrows a connection without blocking the calling thread: an idle connection is handed out immediately, and if the
+	 * pool is below {@link PoolProperties#maxActive maxActive} a connection is opened by the calling thread, unless
+	 * {@link PoolProperties#backgroundReplenish backgroundReplenish} is enabled. Otherwise the returned future waits
+	 * for a connection to be returned, for up to {@link PoolProperties#maxWait maxWait} milliseconds.
+	 * <br/>
+	 * The idle queue must be a {@link FairBlockingQueue}, i.e. {@link PoolProperties#fairQueue fairQueue} must be
+	 * set and {@link PoolProperties#useConnectionBag useConnectionBag} must not.
+	 * 
+	 * @return a future which completes with the connection, see {@link ConnectionFuture}
+	 * @throws TException
+	 *             - if the pool is closed or doesn't support asynchronous retrieval
+	 */
+	public ConnectionFuture getConnectionAsync() throws TException {
+		if (isClosed()) {
+			throw new TException("[" + getName() + "] Connection pool closed.");
+		}
+		checkClusterDown();
+		SubPool[] order = getBorrowOrder();
+		// we can only retrieve a future if the underlying queue supports it
+		if (!(order[0].idle instanceof FairBlockingQueue<?>)) {
+			throw new TException("[" + getName() + "] Connection pool is misconfigured, doesn't support async retrieval. Set the 'fairQueue' property to 'true' and 'useConnectionBag' to 'false'");
+		}
+		ConnectionFuture future = new ConnectionFuture(this, order);
+		future.borrow();
+		return future;
+	}
+
 	/**
 	 * Returns the name of this pool
 	 * 
@@ -164,7 +523,11 @@ public class ConnectionPool {
 	 * @return number of threads waiting for a connection
 	 */
 	public int getWaitCount() {
-		return waitcount.get();
+		int waitcount = 0;
+		for (SubPool subPool : subPools) {
+			waitcount += subPool.waitcount.get();
+		}
+		return waitcount;
 	}
 
 	/**
@@ -184,7 +547,11 @@ public class ConnectionPool {
 	 * @return int - number of established connections to the database
 	 */
 	public int getSize() {
-		return size.get();
+		int size = 0;
+		for (SubPool subPool : subPools) {
+			size += subPool.size.get();
+		}
+		return size;
 	}
 
 	/**
@@ -237,8 +604,18 @@ public class ConnectionPool {
 		// prevent other threads from entering
 		this.closed = true;
 		// stop background thread
-		if (poolMaintenance != null) {
-			poolMaintenance.stopRunning();
+		for (MaintenanceTask task : maintenanceTasks) {
+			task.cancel();
+		}
+		stopValidator();
+		synchronized (this) {
+			if (hedging != null) {
+				hedging.shutdown();
+			}
+		}
+		cassandraRing.removeHostListener(ejectionListener);
+		if (getPoolProperties().isShareClusterState()) {
+			ClusterRegistry.release(this);
 		}
 
 		/* release all idle connections */
@@ -283,25 +660,98 @@ public class ConnectionPool {
 	protected void init(PoolConfiguration properties) throws TException {
 		poolProperties = properties;
 		
-		connectionMap = new HashMap<Cassandra.Client, PooledConnection>();
-		
-		cassandraRing = new CassandraRing(poolProperties.getConfiguredHosts());
+		if (poolProperties.isShareClusterState()) {
+			cassandraRing = ClusterRegistry.acquire(this);
+		} else {
+			cassandraRing = new CassandraRing(poolProperties.getConfiguredHosts(), poolProperties.getHostCyclePolicy(), poolProperties);
+		}
+		cassandraRing.addHostListener(ejectionListener);
 		
-		busy = new ArrayBlockingQueue<PooledConnection>(properties.getMaxActive(), false);
-
-		if (properties.isFairQueue()) {
-			idle = new FairBlockingQueue<PooledConnection>();			
+		if (properties.isUseConnectionBag()) {
+			if (properties.getStripes() > 1 || properties.isPartitionedByHost()) {
+				log.warn("The connection bag is a single sub-pool, ignoring stripes and partitionedByHost");
+			}
+			bag = new ConnectionBag();
+			busy = bag.getBusyQueue();
+			subPools = new SubPool[] { new SubPool(0, null, bag.getIdleQueue()) };
 		} else {
-			idle = new ArrayBlockingQueue<PooledConnection>(properties.getMaxActive(), properties.isFairQueue());
+			busy = new ArrayBlockingQueue<PooledConnection>(properties.getMaxActive(), false);
+
+			if (properties.isPartitionedByHost()) {
+				if (properties.getStripes() > 1) {
+					log.warn("The pool is partitioned by host, ignoring stripes: " + properties.getStripes());
+				}
+				// the sub-pools are created as the hosts are discovered
+				hostSubPools = new ConcurrentHashMap<CassandraHost, SubPool>();
+				subPools = new SubPool[0];
+			} else {
+				subPools = new SubPool[Math.max(1, properties.getStripes())];
+				for (int i = 0; i < subPools.length; i++) {
+					subPools[i] = new SubPool(i, null, createIdleQueue());
+				}
+			}
+		}
+		if (hostSubPools == null) {
+			borrowOrders = new SubPool[subPools.length][subPools.length];
+			for (int home = 0; home < subPools.length; home++) {
+				for (int i = 0; i < subPools.length; i++) {
+					borrowOrders[home][i] = subPools[(home + i) % subPools.length];
+				}
+			}
 		}
+		idle = (hostSubPools == null && subPools.length == 1) ? subPools[0].idle : new SubPoolBlockingQueue(subPools);
 
-		// if the evictor thread is supposed to run, start it now
+		// if the evictor is supposed to run, schedule its tasks now
 		if (properties.isPoolSweeperEnabled()) {
 			if(log.isDebugEnabled()) {
-				log.debug("Starting pool maintenance thread");
+				log.debug("Scheduling pool maintenance tasks");
 			}
-			poolMaintenance = new PoolMaintenance("[Pool-Maintenance]:" + properties.getName(), this, properties.getTimeBetweenEvictionRunsMillis());
-			poolMaintenance.start();
+			if (properties.getTimeBetweenEvictionRunsMillis() <= 0) {
+				log.warn("[" + getName() + "] Database connection pool maintenance interval is set to 0, defaulting to 30 seconds");
+			} else if (properties.getTimeBetweenEvictionRunsMillis() < 1000) {
+				log.warn("[" + getName() + "] Database connection pool maintenance interval is set to lower than 1 second.");
+			}
+			abandonWheel = new TimingWheel<PooledConnection>(ABANDON_TICK_MILLIS, 256, new TimingWheel.Handler<PooledConnection>() {
+				@Override
+				public void expired(TimingWheel.Timeout<PooledConnection> timeout) {
+					checkAbandoned(timeout);
+				}
+			});
+			startTask(new MaintenanceTask("checkAbandoned", this) {
+				@Override
+				protected long getInterval() {
+					return ABANDON_TICK_MILLIS;
+				}
+
+				@Override
+				protected void runTask() {
+					abandonWheel.advance(System.currentTimeMillis());
+				}
+			});
+			startTask(new SweeperTask("checkIdle", this) {
+				@Override
+				protected boolean isBlocking() {
+					return true;
+				}
+
+				@Override
+				protected void runTask() {
+					if (pool.getPoolProperties().getMinIdle() < pool.idle.size())
+						pool.checkIdle();
+				}
+			});
+			startTask(new SweeperTask("testIdle", this) {
+				@Override
+				protected boolean isBlocking() {
+					return true;
+				}
+
+				@Override
+				protected void runTask() {
+					if (pool.getPoolProperties().isTestWhileIdle())
+						pool.testAllIdle();
+				}
+			});
 		} // end if
 
 		// make sure the pool is properly configured
@@ -321,6 +771,10 @@ public class ConnectionPool {
 			log.warn("maxIdle is smaller than minIdle, setting maxIdle to: " + properties.getMinIdle());
 			properties.setMaxIdle(properties.getMinIdle());
 		}
+		if (properties.getMaxActivePerHost() > 0 && properties.getMinIdlePerHost() > properties.getMaxActivePerHost()) {
+			log.warn("minIdlePerHost is larger than maxActivePerHost, setting minIdlePerHost to: " + properties.getMaxActivePerHost());
+			properties.setMinIdlePerHost(properties.getMaxActivePerHost());
+		}
 
 		// create JMX MBean
 		if (this.getPoolProperties().isJmxEnabled()) {
@@ -330,30 +784,47 @@ public class ConnectionPool {
 			createMBean();
 		}
 
+		// learn the ring before filling the pool, so that the initial connections are spread across all of its hosts
+		if (properties.isAutomaticHostDiscovery() && !properties.isShareClusterState()) {
+			ringRefresher = new RingRefresher(this);
+			maintenanceTasks.add(ringRefresher);
+		}
+
+		// retry the hosts which get ejected off the request path
+		if (properties.isBackgroundHostProbe()) {
+			startTask(new HostProber(this));
+		}
+
 		// initialize the pool with its initial set of members
-		PooledConnection[] initialPool = new PooledConnection[poolProperties.getInitialSize()];
-		try {
-			for (int i = 0; i < initialPool.length; i++) {
-				initialPool[i] = this.borrowConnection(0); // don't wait, should
-															// be no contention
-			} // for
+		ready = new FutureTask<Void>(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				warmUp();
+				return null;
+			}
+		});
+		if (properties.isAsyncInit()) {
+			Thread warmUp = new Thread(ready, "[Pool-Init]:" + properties.getName());
+			warmUp.setDaemon(true);
+			warmUp.start();
+		} else {
+			ready.run();
+			try {
+				ready.get();
+			} catch (ExecutionException x) {
+				close(true);
+				throw new TException(x.getCause());
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				close(true);
+				throw new TException(x);
+			}
+		}
 
-		} catch (Exception x) {
-			if (jmxPool != null)
-				jmxPool.notify(net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean.NOTIFY_INIT, getStackTrace(x));
-			close(true);
-			throw new TException(x);
-		} finally {
-			// return the members as idle to the pool
-			for (int i = 0; i < initialPool.length; i++) {
-				if (initialPool[i] != null) {
-					try {
-						this.returnConnection(initialPool[i]);
-					} catch (Exception x) {/* NOOP */
-					}
-				} // end if
-			} // for
-		} // catch
+		if (properties.isBackgroundReplenish()) {
+			replenisher = new Replenisher(this);
+			startTask(replenisher);
+		}
 
 		closed = false;
 		if(log.isInfoEnabled()) {
@@ -366,85 +837,296 @@ public class ConnectionPool {
 		}
 	}
 
-	// ===============================================================================
-	// CONNECTION POOLING IMPL LOGIC
-	// ===============================================================================
-
 	/**
-	 * thread safe way to abandon a connection signals a connection to be
-	 * abandoned. this will disconnect the connection, and log the stack trace
-	 * if logAbanded=true
+	 * Learns the ring and opens the initial connections of the pool. Runs during {@link #init(PoolConfiguration)},
+	 * or in the background if {@link PoolConfiguration#isAsyncInit()} is set.
 	 * 
-	 * @param con
-	 *            PooledConnection
+	 * @throws Exception
+	 *             if one of the initial connections could not be opened
 	 */
-	protected void abandon(PooledConnection con) {
-		if (con == null)
-			return;
-		try {
-			con.lock();
-			String trace = con.getStackTrace();
-			if (getPoolProperties().isLogAbandoned()) {
-				log.warn("[" + getName() + "] Connection has been abandoned " + con + ":" + trace);
-			}
-			if (jmxPool != null) {
-				jmxPool.notify(net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean.NOTIFY_ABANDON, trace);
+	protected void warmUp() throws Exception {
+		RingRefresher refresher = getRingRefresher();
+		if (refresher != null) {
+			// a shared ring may already have been learnt by another pool of the cluster
+			if (ringRefresher != null || cassandraRing.getLastRefresh() == 0) {
+				refresher.refresh();
 			}
-			// release the connection
-			release(con);
-			// we've asynchronously reduced the number of connections
-			// we could have threads stuck in idle.poll(timeout) that will never
-			// be notified
-			if (waitcount.get() > 0)
-				idle.offer(new PooledConnection(poolProperties, this));
-		} finally {
-			con.unlock();
+			refresher.start();
 		}
-	}
-
-	/**
-	 * thread safe way to abandon a connection signals a connection to be
-	 * abandoned. this will disconnect the connection, and log the stack trace
-	 * if logAbanded=true
-	 * 
-	 * @param con
-	 *            PooledConnection
-	 */
-	protected void suspect(PooledConnection con) {
-		if (con == null)
-			return;
-		if (con.isSuspect())
-			return;
 		try {
-			con.lock();
-			String trace = con.getStackTrace();
-			if (getPoolProperties().isLogAbandoned()) {
-				log.warn("[" + getName() + "] Connection has been marked suspect, possibly abandoned " + con + "[" + (System.currentTimeMillis() - con.getTimestamp()) + " ms.]:"
-						+ trace);
+			fill(poolProperties.getInitialSize(), poolProperties.getInitialFillParallelism());
+			if (log.isDebugEnabled()) {
+				log.debug("[" + getName() + "] Opened " + poolProperties.getInitialSize() + " initial connections");
 			}
-			if (jmxPool != null) {
-				jmxPool.notify(net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean.SUSPECT_ABANDONED_NOTIFICATION, trace);
+		} catch (Exception x) {
+			if (jmxPool != null)
+				jmxPool.notify(net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean.NOTIFY_INIT, getStackTrace(x));
+			if (poolProperties.isAsyncInit()) {
+				log.warn("[" + getName() + "] Unable to open the initial connections", x);
 			}
-			con.setSuspect(true);
-		} finally {
-			con.unlock();
+			throw x;
 		}
 	}
 
 	/**
-	 * thread safe way to release a connection
+	 * Opens connections concurrently, using up to parallelism threads, and returns them to the pool as idle
+	 * connections once they are all open. The connections are spread across the hosts by the same logic
+	 * which picks a host when borrowing. Stops at the first failure.
 	 * 
-	 * @param con
-	 *            PooledConnection
+	 * @param size
+	 *            the number of connections to open
+	 * @param parallelism
+	 *            the maximum number of connections opened at the same time
+	 * @throws Exception
+	 *             the first failure, after the connections already opened have been returned
 	 */
-	protected void release(PooledConnection con) {
-		if (con == null)
-			return;
+	protected void fill(int size, int parallelism) throws Exception {
+		final AtomicReferenceArray<PooledConnection> initialPool = new AtomicReferenceArray<PooledConnection>(size);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		parallelism = Math.max(1, Math.min(size, parallelism));
 		try {
-			con.lock();
-			if (con.release()) {
-				// counter only decremented once
-				size.addAndGet(-1);
+			if (parallelism == 1) {
+				for (int i = 0; i < size; i++) {
+					initialPool.set(i, borrowConnection(0)); // don't wait, should be no contention
+				}
+			} else {
+				final String name = "[Pool-Fill]:" + getName();
+				ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name);
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				for (int i = 0; i < size; i++) {
+					final int index = i;
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (failure.get() != null)
+								return;
+							try {
+								initialPool.set(index, borrowConnection(0));
+							} catch (Exception x) {
+								failure.compareAndSet(null, x);
+							}
+						}
+					});
+				}
+				executor.shutdown();
+				boolean interrupted = false;
+				while (!executor.isTerminated()) {
+					try {
+						executor.awaitTermination(1, TimeUnit.SECONDS);
+					} catch (InterruptedException x) {
+						// the connections being opened must be returned before leaving
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+				if (failure.get() != null) {
+					throw failure.get();
+				}
+			}
+		} finally {
+			// return the members as idle to the pool
+			for (int i = 0; i < size; i++) {
+				if (initialPool.get(i) != null) {
+					try {
+						this.returnConnection(initialPool.get(i));
+					} catch (Exception x) {/* NOOP */
+					}
+				} // end if
+			} // for
+		}
+	}
+
+	/**
+	 * Schedules a background task of the pool, and cancels it when the pool is closed
+	 * 
+	 * @param task
+	 */
+	protected void startTask(MaintenanceTask task) {
+		maintenanceTasks.add(task);
+		task.start();
+	}
+
+	/**
+	 * Returns the background tasks of the pool, with the statistics of their runs
+	 * 
+	 * @return the maintenance tasks
+	 */
+	public List<MaintenanceTask> getMaintenanceTasks() {
+		return Collections.unmodifiableList(maintenanceTasks);
+	}
+
+	/**
+	 * Returns a future which completes once the pool has opened its initial connections. Unless
+	 * {@link PoolConfiguration#isAsyncInit()} is set, it has already completed when the pool is created.
+	 * 
+	 * @return the readiness of the pool
+	 */
+	public Future<Void> getReadyFuture() {
+		return ready;
+	}
+
+	/**
+	 * Returns true if all the hosts of the cluster have been ejected. While the cluster is down, if the hosts are
+	 * probed in the background ({@link PoolProperties#backgroundHostProbe backgroundHostProbe}), the borrows fail
+	 * right away with a {@link ClusterDownException}, instead of trying every host and waiting for
+	 * {@link PoolProperties#maxWait maxWait}, until the {@link HostProber} restores a host.
+	 * 
+	 * @return true if the cluster is down
+	 */
+	public boolean isClusterDown() {
+		if (!clusterDown) {
+			return false;
+		}
+		if (!allEjected()) {
+			// restored meanwhile, or the ring has gained hosts
+			clusterDown = false;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Fails fast while the cluster is down
+	 * 
+	 * @throws ClusterDownException
+	 *             if all the hosts have been ejected
+	 */
+	private void checkClusterDown() throws ClusterDownException {
+		if (isClusterDown()) {
+			throw new ClusterDownException("[" + getName() + "] All hosts are down, failing until one is restored.");
+		}
+	}
+
+	private boolean allEjected() {
+		CassandraRing.Snapshot snapshot = cassandraRing.getSnapshot();
+		for (int i = 0; i < snapshot.size(); i++) {
+			if (snapshot.get(i).isGood()) {
+				return false;
+			}
+		}
+		return snapshot.size() > 0;
+	}
+
+	/**
+	 * @return true if the pool has opened its initial connections, false if it is still opening them or failed to
+	 */
+	public boolean isReady() {
+		if (!ready.isDone())
+			return false;
+		try {
+			ready.get();
+			return true;
+		} catch (Exception x) {
+			return false;
+		}
+	}
+
+	// ===============================================================================
+	// CONNECTION POOLING IMPL LOGIC
+	// ===============================================================================
+
+	/**
+	 * thread safe way to abandon a connection signals a connection to be
+	 * abandoned. this will disconnect the connection, and log the stack trace
+	 * if logAbanded=true
+	 * 
+	 * @param con
+	 *            PooledConnection
+	 */
+	protected void abandon(PooledConnection con) {
+		if (con == null)
+			return;
+		try {
+			con.lock();
+			String trace = con.getStackTrace();
+			if (getPoolProperties().isLogAbandoned()) {
+				log.warn("[" + getName() + "] Connection has been abandoned " + con + ":" + trace);
+			}
+			if (jmxPool != null) {
+				jmxPool.notify(net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean.NOTIFY_ABANDON, trace);
+			}
+			// release the connection
+			release(con);
+			// we've asynchronously reduced the number of connections
+			// we could have threads stuck in idle.poll(timeout) that will never
+			// be notified, give them a new connection in place of the abandoned one
+			if (getWaitCount() > 0) {
+				SubPool subPool = subPools[con.getSubPool()];
+				if (reserveCapacity(subPool)) {
+					PooledConnection placeholder = create();
+					placeholder.setSubPool(subPool.index);
+					if (subPool.host != null) {
+						placeholder.bindTo(subPool.host);
+					}
+					if (!offerIdle(placeholder)) {
+						subPool.size.decrementAndGet();
+					}
+				}
+			}
+		} finally {
+			con.unlock();
+		}
+	}
+
+	/**
+	 * thread safe way to abandon a connection signals a connection to be
+	 * abandoned. this will disconnect the connection, and log the stack trace
+	 * if logAbanded=true
+	 * 
+	 * @param con
+	 *            PooledConnection
+	 */
+	protected void suspect(PooledConnection con) {
+		if (con == null)
+			return;
+		if (con.isSuspect())
+			return;
+		try {
+			con.lock();
+			String trace = con.getStackTrace();
+			if (getPoolProperties().isLogAbandoned()) {
+				log.warn("[" + getName() + "] Connection has been marked suspect, possibly abandoned " + con + "[" + (System.currentTimeMillis() - con.getTimestamp()) + " ms.]:"
+						+ trace);
+			}
+			if (jmxPool != null) {
+				jmxPool.notify(net.dataforte.cassandra.pool.jmx.ConnectionPoolMBean.SUSPECT_ABANDONED_NOTIFICATION, trace);
+			}
+			con.setSuspect(true);
+		} finally {
+			con.unlock();
+		}
+	}
+
+	/**
+	 * thread safe way to release a connection
+	 * 
+	 * @param con
+	 *            PooledConnection
+	 */
+	protected void release(PooledConnection con) {
+		if (con == null)
+			return;
+		try {
+			con.lock();
+			con.setBorrowed(false);
+			cancelAbandonCheck(con);
+			if (con.release()) {
+				// counter only decremented once
+				subPools[con.getSubPool()].size.addAndGet(-1);
+				if (bag != null) {
+					bag.remove(con);
+				} else {
+					con.getAndSetState(PooledConnection.STATE_REMOVED);
+				}
+				wakeReplenisher();
 			}
 		} finally {
 			con.unlock();
@@ -464,15 +1146,33 @@ public class ConnectionPool {
 	 * @throws SQLException
 	 */
 	private PooledConnection borrowConnection(int wait) throws TException {
+		return borrowConnection(wait, getBorrowOrder());
+	}
+
+	/**
+	 * Thread safe way to retrieve a connection from the pool, trying the sub-pools in the specified order
+	 * 
+	 * @param wait
+	 *            - time to wait, overrides the maxWait from the properties, set
+	 *            to -1 if you wish to use maxWait, 0 if you wish no wait time.
+	 * @param order
+	 *            - the order in which the sub-pools are tried, the first one is where we wait
+	 * @return PooledConnection
+	 * @throws TException
+	 */
+	private PooledConnection borrowConnection(int wait, SubPool[] order) throws TException {
 
 		if (isClosed()) {
 			throw new TException("[" + getName() + "] Connection pool closed.");
 		} // end if
+		checkClusterDown();
 
+		wakeReplenisher();
 		// get the current time stamp
 		long now = System.currentTimeMillis();
+		SubPool home = order[0];
 		// see if there is one available immediately
-		PooledConnection con = idle.poll();
+		PooledConnection con = poll(order);
 
 		while (true) {
 			if (con != null) {
@@ -488,16 +1188,10 @@ public class ConnectionPool {
 			// atomic variable - a connection can become idle while we are
 			// creating
 			// a new connection
-			if (size.get() < getPoolProperties().getMaxActive()) {
-				// atomic duplicate check
-				if (size.addAndGet(1) > getPoolProperties().getMaxActive()) {
-					// if we got here, two threads passed through the first if
-					size.decrementAndGet();
-				} else {
-					// create a connection, we're below the limit
-					return createConnection(now, con);
-				}
-			} // end if
+			PooledConnection created = createBelowCapacity(now, order);
+			if (created != null) {
+				return created;
+			}
 
 			// calculate wait time for this iteration
 			long maxWait = wait;
@@ -508,17 +1202,24 @@ public class ConnectionPool {
 			}
 
 			long timetowait = Math.max(0, maxWait - (System.currentTimeMillis() - now));
-			waitcount.incrementAndGet();
+			if (home.host != null && order.length > 1) {
+				timetowait = Math.min(timetowait, HOST_WAIT_SLICE_MILLIS);
+			}
+			home.waitcount.incrementAndGet();
 			try {
-				// retrieve an existing connection
-				con = idle.poll(timetowait, TimeUnit.MILLISECONDS);
+				// connections are now handed to the home sub-pool, steal once more before waiting on it
+				con = poll(order);
+				if (con == null) {
+					// retrieve an existing connection
+					con = home.idle.poll(timetowait, TimeUnit.MILLISECONDS);
+				}
 			} catch (InterruptedException ex) {
 				Thread.interrupted();// clear the flag, and bail out
 				TException sx = new TException("[" + getName() + "] Pool wait interrupted.");
 				sx.initCause(ex);
 				throw sx;
 			} finally {
-				waitcount.decrementAndGet();
+				home.waitcount.decrementAndGet();
 			}
 			if (maxWait == 0 && con == null) { // no wait, return one if we have
 												// one
@@ -546,6 +1247,44 @@ public class ConnectionPool {
 		} // while
 	}
 
+	/**
+	 * Creates a connection in the first sub-pool of the order which is below its capacity, failing over to the
+	 * next ones if the sub-pools are bound to hosts
+	 * 
+	 * @param now
+	 *            timestamp of when this was called
+	 * @param order
+	 *            the sub-pools to try
+	 * @return a new connection in use, or null if all the sub-pools are full
+	 * @throws TException
+	 *             if the connection could not be opened
+	 */
+	protected PooledConnection createBelowCapacity(long now, SubPool[] order) throws TException {
+		TException failure = null;
+		int failures = 0;
+		for (SubPool subPool : order) {
+			if (reserveCapacity(subPool)) {
+				// create a connection, we're below the limit
+				if (subPool.host == null) {
+					return createConnection(now, null, subPool);
+				}
+				try {
+					return createConnection(now, null, subPool);
+				} catch (TException x) {
+					// the connection was bound to the host of the sub-pool, fail over to the next host
+					failure = x;
+					if (++failures > getPoolProperties().getFailoverPolicy().numRetries) {
+						throw x;
+					}
+				}
+			} // end if
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return null;
+	}
+
 	/**
 	 * Creates a Cassandra connection and tries to connect to the database.
 	 * 
@@ -553,24 +1292,31 @@ public class ConnectionPool {
 	 *            timestamp of when this was called
 	 * @param con
 	 *            the previous pooled connection - argument not used
+	 * @param subPool
+	 *            the sub-pool whose limits the connection counts against
 	 * @return a PooledConnection that has been connected
 	 * @throws SQLException
 	 */
-	protected PooledConnection createConnection(long now, PooledConnection con) throws TException {
+	protected PooledConnection createConnection(long now, PooledConnection con, SubPool subPool) throws TException {
 		// no connections where available we'll create one
 		boolean error = false;
 		try {
 			// connect and validate the connection
 			con = create();
+			con.setSubPool(subPool.index);
+			if (subPool.host != null) {
+				con.bindTo(subPool.host);
+			}
 			con.lock();
 			con.connect();
 			if (con.validate(PooledConnection.VALIDATE_INIT)) {
-				connectionMap.put(con.getConnection(), con);
 				// no need to lock a new one, its not contented
 				con.setTimestamp(now);
 				if (getPoolProperties().isLogAbandoned()) {
 					con.setStackTrace(getThreadDump());
 				}
+				con.setBorrowed(true);
+				scheduleAbandonCheck(con);
 				if (!busy.offer(con)) {
 					log.debug("[" + getName() + "] Connection doesn't fit into busy array, connection will not be traceable.");
 				}				
@@ -622,7 +1368,7 @@ public class ConnectionPool {
 		try {
 			con.lock();
 
-			if (con.isReleased()) {
+			if (!claim(con)) {
 				return null;
 			}
 
@@ -637,6 +1383,8 @@ public class ConnectionPool {
 					// set the stack trace for this pool
 					con.setStackTrace(getThreadDump());
 				}
+				con.setBorrowed(true);
+				scheduleAbandonCheck(con);
 				if (!busy.offer(con)) {
 					log.debug("[" + getName() + "] Connection doesn't fit into busy array, connection will not be traceable.");
 				}
@@ -656,6 +1404,8 @@ public class ConnectionPool {
 						// set the stack trace for this pool
 						con.setStackTrace(getThreadDump());
 					}
+					con.setBorrowed(true);
+					scheduleAbandonCheck(con);
 					if (!busy.offer(con)) {
 						log.debug("[" + getName() + "] Connection doesn't fit into busy array, connection will not be traceable.");
 					}
@@ -708,9 +1458,87 @@ public class ConnectionPool {
 		}
 	}
 
+	/**
+	 * Claims a connection obtained from the idle queue on behalf of a borrower. The {@link ConnectionBag} claims
+	 * connections itself when they are polled, the other idle queues simply hand them over.
+	 * 
+	 * @param con
+	 *            - the connection taken from the idle queue
+	 * @return true if the connection now belongs to the borrower, false if it has been removed from the pool
+	 */
+	private boolean claim(PooledConnection con) {
+		if (bag != null) {
+			return con.getState() == PooledConnection.STATE_IN_USE;
+		}
+		while (!con.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE)) {
+			if (con.getState() != PooledConnection.STATE_RESERVED) {
+				return false;
+			}
+			// a maintenance task running without connection locks is still using it
+			Thread.yield();
+		}
+		return true;
+	}
+
+	/**
+	 * Makes a connection available to borrowers by putting it in the idle queue
+	 * 
+	 * @param con
+	 *            - a connection in use
+	 * @return true if the idle queue accepted the connection
+	 */
+	private boolean offerIdle(PooledConnection con) {
+		// the bag changes the state itself
+		if (bag == null && !con.compareAndSetState(PooledConnection.STATE_IN_USE, PooledConnection.STATE_NOT_IN_USE)) {
+			return false;
+		}
+		return idle.offer(con);
+	}
+
+	/**
+	 * Claims an idle connection for a maintenance task, so that it won't be handed out until {@link #unreserve}
+	 * is called
+	 * 
+	 * @param con
+	 *            - an idle connection
+	 * @return false if the connection has been borrowed or removed in the meantime
+	 */
+	protected boolean reserve(PooledConnection con) {
+		return con.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_RESERVED);
+	}
+
+	/**
+	 * Makes a connection claimed by {@link #reserve} available again, unless it has been removed in the
+	 * meantime
+	 * 
+	 * @param con
+	 *            - a reserved connection
+	 */
+	protected void unreserve(PooledConnection con) {
+		con.compareAndSetState(PooledConnection.STATE_RESERVED, PooledConnection.STATE_NOT_IN_USE);
+	}
+
+	/**
+	 * Returns a connection obtained through {@link #getConnection()} to the pool. The
+	 * {@link PooledCassandraClient} knows its {@link PooledConnection}, so no lookup is needed. Returning a connection
+	 * again, e.g. closing it after releasing it, has no effect.
+	 * 
+	 * @param connection
+	 *            - the connection to return
+	 */
 	public void release(Cassandra.Client connection) {
-		PooledConnection pooledConnection = connectionMap.get(connection);
-		this.returnConnection(pooledConnection);
+		if (connection instanceof PooledCassandraClient) {
+			PooledCassandraClient client = (PooledCassandraClient) connection;
+			PooledConnection con = client.getPooledConnection();
+			// a client returned twice, or replaced by a reconnection, must not give back a connection lent to someone else since
+			if (con.getConnection() == client && con.getState() == PooledConnection.STATE_IN_USE && client.markReturned()) {
+				this.returnConnection(con);
+			} else if (log.isDebugEnabled()) {
+				log.debug("[" + getName() + "] Ignoring the release of a connection which has already been returned: " + connection);
+			}
+		} else if (connection != null) {
+			log.warn("[" + getName() + "] Attempt to release a connection which was not obtained from a pool: " + connection);
+		}
 	}
 
 	/**
@@ -734,12 +1562,14 @@ public class ConnectionPool {
 			try {
 				con.lock();
 
-				if (busy.remove(con)) {
+				if (con.getState() == PooledConnection.STATE_IN_USE && busy.remove(con)) {
+					con.setBorrowed(false);
+					cancelAbandonCheck(con);
 
 					if (!shouldClose(con, PooledConnection.VALIDATE_RETURN)) {
 						con.setStackTrace(null);
 						con.setTimestamp(System.currentTimeMillis());
-						if (((idle.size() >= poolProperties.getMaxIdle()) && !poolProperties.isPoolSweeperEnabled()) || (!idle.offer(con))) {
+						if (((idle.size() >= poolProperties.getMaxIdle()) && !poolProperties.isPoolSweeperEnabled()) || (!offerIdle(con))) {
 							if (log.isDebugEnabled()) {
 								log.debug("[" + getName() + "] Connection [" + con + "] will be closed and not returned to the pool, idle[" + idle.size() + "]>=maxIdle["
 										+ poolProperties.getMaxIdle() + "] idle.offer failed.");
@@ -779,9 +1609,83 @@ public class ConnectionPool {
 		return (used / max * 100f) >= perc;
 	}
 
+	/**
+	 * Schedules the next suspect or abandon check of a borrowed connection, according to its timestamp
+	 * 
+	 * @param con
+	 *            - a borrowed connection
+	 */
+	protected void scheduleAbandonCheck(PooledConnection con) {
+		TimingWheel<PooledConnection> wheel = abandonWheel;
+		if (wheel == null)
+			return;
+		long deadline = Long.MAX_VALUE;
+		if (getPoolProperties().isRemoveAbandoned() && getPoolProperties().getRemoveAbandonedTimeout() > 0) {
+			deadline = con.getTimestamp() + con.getAbandonTimeout();
+		}
+		int sto = getPoolProperties().getSuspectTimeout();
+		if (sto > 0 && !con.isSuspect()) {
+			deadline = Math.min(deadline, con.getTimestamp() + sto * 1000L);
+		}
+		con.setAbandonTimer((deadline == Long.MAX_VALUE) ? null : wheel.schedule(con, deadline));
+	}
+
+	/**
+	 * Cancels the pending suspect or abandon check of a connection, if any
+	 * 
+	 * @param con
+	 */
+	protected void cancelAbandonCheck(PooledConnection con) {
+		TimingWheel.Timeout<PooledConnection> timer = con.getAbandonTimer();
+		if (timer != null) {
+			timer.cancel();
+			con.setAbandonTimer(null);
+		}
+	}
+
+	/**
+	 * Called when the suspect or abandon check of a borrowed connection is due. Abandons the connection, or marks it
+	 * as suspect and schedules its abandon check.
+	 * 
+	 * @param timeout
+	 *            - the expired check
+	 */
+	protected void checkAbandoned(TimingWheel.Timeout<PooledConnection> timeout) {
+		PooledConnection con = timeout.getTarget();
+		try {
+			con.lock();
+			// the con has been returned to the pool since, ignore it
+			if (con.getAbandonTimer() != timeout || con.getState() != PooledConnection.STATE_IN_USE)
+				return;
+			con.setAbandonTimer(null);
+			long time = con.getTimestamp();
+			long now = System.currentTimeMillis();
+			if (getPoolProperties().isRemoveAbandoned() && (now - time) > con.getAbandonTimeout()) {
+				if (shouldAbandon()) {
+					busy.remove(con);
+					abandon(con);
+					return;
+				}
+				// the pool is not full enough yet, check again on the next tick
+				con.setAbandonTimer(abandonWheel.schedule(con, now + ABANDON_TICK_MILLIS));
+				return;
+			}
+			int sto = getPoolProperties().getSuspectTimeout();
+			if (sto > 0 && (now - time) > (sto * 1000L)) {
+				suspect(con);
+			}
+			scheduleAbandonCheck(con);
+		} catch (Exception e) {
+			log.warn("[" + getName() + "] checkAbandoned failed for " + con, e);
+		} finally {
+			con.unlock();
+		}
+	}
+
 	/**
 	 * Iterates through all the busy connections and checks for connections that
-	 * have timed out
+	 * have timed out. Not needed when the pool sweeper is enabled, which checks each
+	 * connection when its timeout expires.
 	 */
 	public void checkAbandoned() {
 		if(log.isTraceEnabled()) {
@@ -799,7 +1703,7 @@ public class ConnectionPool {
 					con.lock();
 					// the con has been returned to the pool
 					// ignore it
-					if (idle.contains(con))
+					if (con.getState() != PooledConnection.STATE_IN_USE)
 						continue;
 					long time = con.getTimestamp();
 					long now = System.currentTimeMillis();
@@ -826,42 +1730,30 @@ public class ConnectionPool {
 	}
 
 	/**
-	 * Iterates through the idle connections and resizes the idle pool based on
-	 * parameters {@link PoolProperties#maxIdle}, {@link PoolProperties#minIdle}
-	 * , {@link PoolProperties#minEvictableIdleTimeMillis}
+	 * Evicts the idle connections which have been idle longer than {@link PoolProperties#minEvictableIdleTimeMillis},
+	 * oldest first, down to {@link PoolProperties#minIdle} idle connections (and
+	 * {@link PoolProperties#minIdlePerHost} per host, and {@link PoolProperties#idleHeadroom} if the pool is
+	 * replenished in the background). Each sub-pool is visited in the order its connections were returned, so the
+	 * visit stops at the first connection which is still fresh instead of scanning the whole idle queue.
 	 */
 	public void checkIdle() {
 		try {
-			if (idle.size() == 0)
-				return;
+			int floor = getPoolProperties().getMinIdle();
+			if (replenisher != null) {
+				floor = Math.max(floor, getPoolProperties().getIdleHeadroom());
+			}
+			// the size of the batch is decided once, borrowers can only make it smaller
+			int batch = idle.size() - floor;
 			long now = System.currentTimeMillis();
-			Iterator<PooledConnection> unlocked = idle.iterator();
-			while ((idle.size() >= getPoolProperties().getMinIdle()) && unlocked.hasNext()) {
-				PooledConnection con = unlocked.next();
-				boolean setToNull = false;
-				try {
-					con.lock();
-					// the con been taken out, we can't clean it up
-					if (busy.contains(con))
-						continue;
-					long time = con.getTimestamp();
-					if ((con.getReleaseTime() > 0) && ((now - time) > con.getReleaseTime()) && (getSize() > getPoolProperties().getMinIdle())) {	
-						if(log.isDebugEnabled()) {
-							log.debug("[" + getName() + "] Releasing idle connection "+con);
-						}
-						release(con);
-						idle.remove(con);
-						
-						setToNull = true;
-					} else {
-						// do nothing
-					} // end if
-				} finally {
-					con.unlock();
-					if (setToNull)
-						con = null;
+			for (SubPool subPool : subPools) {
+				if (batch <= 0)
+					break;
+				int max = batch;
+				if (subPool.host != null) {
+					max = Math.min(max, subPool.idle.size() - getPoolProperties().getMinIdlePerHost());
 				}
-			} // while
+				batch -= evictIdle(subPool, now, max, floor);
+			}
 		} catch (ConcurrentModificationException e) {
 			log.debug("[" + getName() + "] checkIdle failed.", e);
 		} catch (Exception e) {
@@ -871,29 +1763,180 @@ public class ConnectionPool {
 	}
 
 	/**
-	 * Forces a validation of all idle connections if
-	 * {@link PoolProperties#testWhileIdle} is set.
+	 * Evicts up to max idle connections of a sub-pool which have been idle too long, oldest first
+	 * 
+	 * @param subPool
+	 * @param now
+	 * @param max
+	 *            the maximum number of connections to evict
+	 * @param floor
+	 *            the number of idle connections in the whole pool below which nothing is evicted
+	 * @return the number of evicted connections
+	 */
+	protected int evictIdle(SubPool subPool, long now, int max, int floor) {
+		int evicted = 0;
+		int hostFloor = subPool.host != null ? getPoolProperties().getMinIdlePerHost() : 0;
+		Iterator<PooledConnection> oldest = oldestFirst(subPool.idle);
+		while (evicted < max && oldest.hasNext()) {
+			PooledConnection con = oldest.next();
+			// the con been taken out, we can't clean it up
+			if (!reserve(con))
+				continue;
+			long releaseTime = con.getReleaseTime();
+			if (releaseTime <= 0 || (now - con.getTimestamp()) <= releaseTime) {
+				// this one is still fresh, and so are the ones returned after it
+				unreserve(con);
+				break;
+			}
+			// connections borrowed meanwhile count against the floor
+			if (idle.size() <= floor || subPool.idle.size() <= hostFloor) {
+				unreserve(con);
+				break;
+			}
+			if (!takeIdle(subPool, con)) {
+				continue;
+			}
+			if(log.isDebugEnabled()) {
+				log.debug("[" + getName() + "] Releasing idle connection "+con);
+			}
+			release(con);
+			evicted++;
+		}
+		return evicted;
+	}
+
+	/**
+	 * Closes the idle connections to a host
+	 * 
+	 * @param host
+	 *            - the host
+	 * @return the number of connections closed
+	 */
+	protected int closeIdle(CassandraHost host) {
+		int closed = 0;
+		for (SubPool subPool : subPools) {
+			if (subPool.host != null && subPool.host != host) {
+				continue;
+			}
+			for (Iterator<PooledConnection> i = oldestFirst(subPool.idle); i.hasNext();) {
+				PooledConnection con = i.next();
+				if (con.getCassandraHost() != host || !reserve(con)) {
+					continue;
+				}
+				// it may have been borrowed and reconnected to another host meanwhile
+				if (con.getCassandraHost() != host) {
+					unreserve(con);
+					continue;
+				}
+				if (takeIdle(subPool, con)) {
+					release(con);
+					closed++;
+				}
+			}
+		}
+		if (closed > 0 && log.isDebugEnabled()) {
+			log.debug("[" + getName() + "] Closed " + closed + " idle connections to " + host);
+		}
+		return closed;
+	}
+
+	/**
+	 * Takes a connection claimed by {@link #reserve} out of the idle queue of its sub-pool, before it gets locked: a
+	 * borrower which has just polled it holds its lock while waiting for the reservation to end, so the connection
+	 * is given up to it instead. The {@link ConnectionBag} never hands out reserved connections, and forgets them
+	 * when they are released.
+	 * 
+	 * @param subPool
+	 *            - the sub-pool of the connection
+	 * @param con
+	 *            - a reserved connection
+	 * @return true if the connection now belongs to the caller, false if it has been unreserved
+	 */
+	private boolean takeIdle(SubPool subPool, PooledConnection con) {
+		if (bag == null && !subPool.idle.remove(con)) {
+			unreserve(con);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the connections of an idle queue in the order they were returned to it, oldest first
+	 * 
+	 * @param queue
+	 *            - the idle queue of a sub-pool
+	 * @return an iterator over a snapshot of the queue, oldest first
+	 */
+	@SuppressWarnings("unchecked")
+	protected Iterator<PooledConnection> oldestFirst(BlockingQueue<PooledConnection> queue) {
+		if (queue instanceof FairBlockingQueue) {
+			// connections are offered to the head
+			return ((FairBlockingQueue<PooledConnection>) queue).descendingIterator();
+		} else if (bag != null) {
+			return bag.oldestIdleFirst();
+		} else {
+			// connections are offered to the tail
+			return queue.iterator();
+		}
+	}
+
+	/**
+	 * Forces a validation of all idle connections if {@link PoolProperties#testWhileIdle} is set. Up to
+	 * {@link PoolProperties#idleValidationParallelism} connections are validated at the same time, the ones which
+	 * have waited longest for a validation first, until {@link PoolProperties#idleValidationBudget} is spent.
 	 */
 	public void testAllIdle() {
 		try {
 			if (idle.size() == 0)
 				return;
-			Iterator<PooledConnection> unlocked = idle.iterator();
-			while (unlocked.hasNext()) {
-				PooledConnection con = unlocked.next();
-				try {
-					con.lock();
-					// the con been taken out, we can't clean it up
-					if (busy.contains(con))
-						continue;
-					if (!con.validate(PooledConnection.VALIDATE_IDLE)) {
-						idle.remove(con);
-						release(con);
+			final List<PooledConnection> candidates = new ArrayList<PooledConnection>();
+			for (Iterator<PooledConnection> unlocked = idle.iterator(); unlocked.hasNext();) {
+				candidates.add(unlocked.next());
+			}
+			Collections.sort(candidates, new Comparator<PooledConnection>() {
+				@Override
+				public int compare(PooledConnection a, PooledConnection b) {
+					long x = a.getLastValidated(), y = b.getLastValidated();
+					return x < y ? -1 : (x == y ? 0 : 1);
+				}
+			});
+			long budget = getPoolProperties().getIdleValidationBudget();
+			if (budget <= 0) {
+				int interval = getPoolProperties().getTimeBetweenEvictionRunsMillis();
+				budget = (interval <= 0) ? SweeperTask.DEFAULT_INTERVAL : interval;
+			}
+			final long deadline = System.currentTimeMillis() + budget;
+			final AtomicInteger next = new AtomicInteger(0);
+			Runnable worker = new Runnable() {
+				@Override
+				public void run() {
+					// a connection already being validated when the budget runs out is bounded by the socket timeout
+					while (!isClosed() && System.currentTimeMillis() < deadline) {
+						int i = next.getAndIncrement();
+						if (i >= candidates.size())
+							return;
+						testIdle(candidates.get(i));
 					}
-				} finally {
-					con.unlock();
 				}
-			} // while
+			};
+			int parallelism = Math.max(1, Math.min(candidates.size(), getPoolProperties().getIdleValidationParallelism()));
+			if (parallelism == 1) {
+				worker.run();
+			} else {
+				ExecutorService executor = getValidator(parallelism);
+				List<Future<?>> workers = new ArrayList<Future<?>>(parallelism);
+				for (int i = 0; i < parallelism; i++) {
+					workers.add(executor.submit(worker));
+				}
+				for (Future<?> w : workers) {
+					w.get();
+				}
+			}
+			if (next.get() < candidates.size() && log.isDebugEnabled()) {
+				log.debug("[" + getName() + "] Idle validation budget of " + budget + "ms spent, " + next.get() + " of " + candidates.size() + " connections validated");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		} catch (ConcurrentModificationException e) {
 			log.debug("[" + getName() + "] testAllIdle failed.", e);
 		} catch (Exception e) {
@@ -901,41 +1944,108 @@ public class ConnectionPool {
 		}
 
 	}
-	
+
 	/**
-	 * Refreshes the ring information
+	 * Validates an idle connection, and releases it if the validation fails. The connection is claimed while it
+	 * is being validated: it is taken out of the idle queue, so that borrowers never wait for the round trip, and
+	 * the {@link ConnectionBag} skips reserved connections by itself.
+	 * 
+	 * @param con
+	 *            - an idle connection
 	 */
-	public void refreshRing() {
+	protected void testIdle(PooledConnection con) {
+		// the con been taken out, we can't clean it up
+		if (!reserve(con))
+			return;
+		BlockingQueue<PooledConnection> queue = subPools[con.getSubPool()].idle;
+		if (bag == null && !queue.remove(con)) {
+			// a borrower has just polled it, and is waiting for it
+			unreserve(con);
+			return;
+		}
+		boolean valid;
 		try {
-			if (idle.size() == 0)
-				return;
-			Iterator<PooledConnection> unlocked = idle.iterator();
-			while (unlocked.hasNext()) {
-				PooledConnection con = unlocked.next();
-				try {
-					con.lock();
-					// the con been taken out, we can't use it
-					if (busy.contains(con))
-						continue;
-					cassandraRing.refresh(con.getConnection());
-					// we have successfully refreshed the ring, we can quit now
-					log.debug("[" + getName() + "] refreshRing success, ring = "+cassandraRing);
-					return;
-				} catch (TTransportException t) {
-					// there was an error retrieving ring information from this connection, remove it
-					log.warn("[" + getName() + "] removing connection to non-responding host ");
-					idle.remove(con);
-					release(con);
-				} finally {
-					con.unlock();
+			con.lock();
+			valid = con.validate(PooledConnection.VALIDATE_IDLE);
+		} finally {
+			con.unlock();
+		}
+		if (!valid || isClosed()) {
+			release(con);
+			return;
+		}
+		unreserve(con);
+		if (bag == null && (!queue.offer(con) || (isClosed() && queue.remove(con)))) {
+			release(con);
+		}
+	}
+
+	/**
+	 * Returns the threads validating the idle connections, creating them if needed
+	 * 
+	 * @param parallelism
+	 *            - the number of threads
+	 * @return the executor of the idle validations
+	 */
+	private synchronized ExecutorService getValidator(int parallelism) {
+		if (validator == null || validator.getMaximumPoolSize() != parallelism) {
+			if (validator != null) {
+				validator.shutdown();
+			}
+			final String name = "[Pool-Validate]:" + getName();
+			validator = new ThreadPoolExecutor(parallelism, parallelism, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name);
+					t.setDaemon(true);
+					return t;
 				}
-			} // while			
-		} catch (ConcurrentModificationException e) {
-			log.debug("[" + getName() + "] refreshRing failed.", e);
-		} catch (Exception e) {
-			log.warn("[" + getName() + "] refreshRing failed, it will be retried.", e);
+			});
+			validator.allowCoreThreadTimeOut(true);
 		}
+		return validator;
+	}
 
+	/**
+	 * Stops the threads validating the idle connections
+	 */
+	private synchronized void stopValidator() {
+		if (validator != null) {
+			validator.shutdown();
+			validator = null;
+		}
+	}
+	
+	/**
+	 * Refreshes the ring now, if automatic host discovery is enabled. If a refresh is already running, waits for it instead.
+	 */
+	public void refreshRing() {
+		RingRefresher refresher = getRingRefresher();
+		if (refresher != null) {
+			refresher.refresh();
+		}
+	}
+
+	/**
+	 * Asks for the ring to be refreshed in the background, if automatic host discovery is enabled. Requests are merged,
+	 * so this can be called whenever something suggests that the topology has changed.
+	 */
+	public void requestRingRefresh() {
+		RingRefresher refresher = getRingRefresher();
+		if (refresher != null) {
+			refresher.requestRefresh();
+		}
+	}
+
+	/**
+	 * @return the refresher of the ring of this pool, which is the one of its cluster if the cluster state is shared,
+	 *         or null if automatic host discovery is disabled
+	 */
+	private RingRefresher getRingRefresher() {
+		if (!poolProperties.isAutomaticHostDiscovery()) {
+			return null;
+		}
+		return poolProperties.isShareClusterState() ? ClusterRegistry.getRefresher(this) : ringRefresher;
 	}
 
 	/**
@@ -997,7 +2107,7 @@ public class ConnectionPool {
 	 * @param con
 	 */
 	protected void disconnectEvent(PooledConnection con, boolean finalizing) {
-		connectionMap.remove(con.getConnection());
+
 	}
 
 	/**
@@ -1015,6 +2125,238 @@ public class ConnectionPool {
 		return cassandraRing;
 	}
 
+	/**
+	 * Opens one connection if the pool is short of them, and returns it to the idle queue, which hands it to a waiting
+	 * borrower if there is one. Connections are missing when the sub-pool of a host of the ring has fewer than
+	 * {@link PoolConfiguration#getMinIdlePerHost()} idle connections, when the pool has fewer than {@link PoolConfiguration#getMinIdle()},
+	 * or when fewer than {@link PoolConfiguration#getIdleHeadroom()} are idle. Called by the {@link Replenisher}.
+	 * 
+	 * @return true if a connection has been opened, false if none was missing or there is no capacity left
+	 * @throws TException
+	 *             if the connection could not be opened
+	 */
+	protected boolean replenish() throws TException {
+		if (isClosed()) {
+			return false;
+		}
+		SubPool target = null;
+		int minIdlePerHost = getPoolProperties().getMinIdlePerHost();
+		if (hostSubPools != null && minIdlePerHost > 0) {
+			CassandraRing.Snapshot ring = cassandraRing.getSnapshot();
+			for (int i = 0; i < ring.size() && target == null; i++) {
+				SubPool subPool = getSubPool(ring.get(i));
+				if (subPool.idle.size() < minIdlePerHost && reserveCapacity(subPool)) {
+					target = subPool;
+				}
+			}
+		}
+		if (target == null) {
+			// asynchronous borrowers wait for the replenisher instead of opening connections themselves
+			if (getSize() >= getPoolProperties().getMinIdle() && idle.size() >= getPoolProperties().getIdleHeadroom() + getWaitCount()) {
+				return false;
+			}
+			for (SubPool subPool : getBorrowOrder()) {
+				if (reserveCapacity(subPool)) {
+					target = subPool;
+					break;
+				}
+			}
+			if (target == null) {
+				return false;
+			}
+		}
+		PooledConnection con = createConnection(System.currentTimeMillis(), null, target);
+		if (con == null) {
+			return false;
+		}
+		returnConnection(con);
+		return true;
+	}
+
+	/**
+	 * Wakes the {@link Replenisher} up, if there is one
+	 */
+	protected void wakeReplenisher() {
+		Replenisher replenisher = this.replenisher;
+		if (replenisher != null) {
+			replenisher.wakeUp();
+		}
+	}
+
+	/**
+	 * Returns the number of connections a sub-pool may create: {@link PoolConfiguration#getMaxActivePerHost()} for the sub-pool of a host,
+	 * otherwise its share of {@link PoolConfiguration#getMaxActive()}. Computed on every call, since both can be changed at runtime.
+	 * 
+	 * @param subPool
+	 * @return the maximum number of connections the sub-pool may create
+	 */
+	protected int getMaxActive(SubPool subPool) {
+		int maxActive = getPoolProperties().getMaxActive();
+		if (subPool.host != null) {
+			int maxActivePerHost = getPoolProperties().getMaxActivePerHost();
+			return (maxActivePerHost > 0) ? Math.min(maxActivePerHost, maxActive) : maxActive;
+		}
+		return maxActive / subPools.length + (subPool.index < maxActive % subPools.length ? 1 : 0);
+	}
+
+	/**
+	 * Counts a new connection against a sub-pool, if it is below its limit. The sub-pools of the hosts may add
+	 * up to more than {@link PoolConfiguration#getMaxActive()}, so for those the size of the whole pool is checked too.
+	 * 
+	 * @param subPool
+	 * @return true if the caller may create a connection in the sub-pool
+	 */
+	private boolean reserveCapacity(SubPool subPool) {
+		int maxActive = getMaxActive(subPool);
+		if (subPool.size.get() >= maxActive) {
+			return false;
+		}
+		// atomic duplicate check
+		if (subPool.size.incrementAndGet() > maxActive) {
+			// if we got here, two threads passed through the first if
+			subPool.size.decrementAndGet();
+			return false;
+		}
+		if (subPool.host != null && getSize() > getPoolProperties().getMaxActive()) {
+			subPool.size.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the sub-pools in the order a borrow should try them. When the pool is partitioned by host, this is
+	 * the order of the hosts chosen by the host cycle policy, otherwise the home sub-pool of the current thread
+	 * followed by its neighbours.
+	 * 
+	 * @return the sub-pools in borrow order
+	 * @throws TException if there are no hosts to borrow from
+	 */
+	protected SubPool[] getBorrowOrder() throws TException {
+		if (hostSubPools == null) {
+			return borrowOrders[SubPool.home(borrowOrders.length)];
+		}
+		HostIterator hosts = cassandraRing.hostIterator();
+		if (hosts.size() == 0) {
+			throw new TException("[" + getName() + "] No hosts available.");
+		}
+		SubPool[] order = new SubPool[hosts.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = getSubPool(hosts.next());
+		}
+		return ejectedLast(order);
+	}
+
+	/**
+	 * Moves the sub-pools of the hosts which have been ejected to the end of a borrow order, so that they are only
+	 * used when no other host has a connection. The order of the others is kept.
+	 * 
+	 * @param order
+	 *            - the borrow order of a pool partitioned by host
+	 * @return the order, or a reordered copy
+	 */
+	private static SubPool[] ejectedLast(SubPool[] order) {
+		SubPool[] sorted = null;
+		int good = 0;
+		int ejected = order.length - 1;
+		for (int i = 0; i < order.length; i++) {
+			if (order[i].host.isGood()) {
+				if (sorted != null) {
+					sorted[good] = order[i];
+				}
+				good++;
+			} else {
+				if (sorted == null) {
+					sorted = new SubPool[order.length];
+					System.arraycopy(order, 0, sorted, 0, good);
+				}
+				sorted[ejected--] = order[i];
+			}
+		}
+		return (sorted != null) ? sorted : order;
+	}
+
+	/**
+	 * Returns the sub-pools in the order a borrow for a row key should try them: the sub-pools of the replicas
+	 * of the row key, ordered by the host cycle policy, then the others
+	 * 
+	 * @param rowKey
+	 * @return the sub-pools in borrow order
+	 * @throws TException if there are no hosts to borrow from
+	 */
+	protected SubPool[] getBorrowOrder(ByteBuffer rowKey) throws TException {
+		if (hostSubPools == null) {
+			return getBorrowOrder();
+		}
+		List<CassandraHost> replicas = cassandraRing.getReplicas(rowKey);
+		if (replicas.isEmpty()) {
+			return getBorrowOrder();
+		}
+		HostIterator hosts = cassandraRing.hostIterator();
+		List<SubPool> order = new ArrayList<SubPool>(hosts.size() + replicas.size());
+		for (int i = 0; i < replicas.size(); i++) {
+			order.add(getSubPool(replicas.get(i)));
+		}
+		while (hosts.hasNext()) {
+			CassandraHost host = hosts.next();
+			if (!replicas.contains(host)) {
+				order.add(getSubPool(host));
+			}
+		}
+		return ejectedLast(order.toArray(new SubPool[order.size()]));
+	}
+
+	/**
+	 * Returns the sub-pool of a host, creating it the first time the host is seen. Only used when the pool is
+	 * partitioned by host.
+	 * 
+	 * @param host
+	 * @return the sub-pool of the host
+	 */
+	protected SubPool getSubPool(CassandraHost host) {
+		SubPool subPool = hostSubPools.get(host);
+		if (subPool == null) {
+			synchronized (hostSubPools) {
+				subPool = hostSubPools.get(host);
+				if (subPool == null) {
+					SubPool[] grown = new SubPool[subPools.length + 1];
+					System.arraycopy(subPools, 0, grown, 0, subPools.length);
+					subPool = new SubPool(subPools.length, host, createIdleQueue());
+					grown[subPool.index] = subPool;
+					// publish the array before the map, connections of the new sub-pool must find it
+					subPools = grown;
+					((SubPoolBlockingQueue) idle).setSubPools(grown);
+					hostSubPools.put(host, subPool);
+				}
+			}
+		}
+		return subPool;
+	}
+
+	/**
+	 * Polls the idle queues of the sub-pools in order
+	 * 
+	 * @param order
+	 * @return an idle connection, or null if all of the queues are empty
+	 */
+	protected PooledConnection poll(SubPool[] order) {
+		for (SubPool subPool : order) {
+			PooledConnection con = subPool.idle.poll();
+			if (con != null) {
+				return con;
+			}
+		}
+		return null;
+	}
+
+	private BlockingQueue<PooledConnection> createIdleQueue() {
+		if (getPoolProperties().isFairQueue()) {
+			return new FairBlockingQueue<PooledConnection>();
+		} else {
+			return new ArrayBlockingQueue<PooledConnection>(getPoolProperties().getMaxActive(), false);
+		}
+	}
+
 	/**
 	 * Create MBean object that can be registered.
 	 */
@@ -1026,60 +2368,62 @@ public class ConnectionPool {
 		}
 	}	
 
-	protected class PoolMaintenance extends Thread {
-		protected ConnectionPool pool;
-		protected long sleepTime;
-		protected volatile boolean run = true;
-
-		PoolMaintenance(String name, ConnectionPool pool, long sleepTime) {
-			super(name);
-			this.setDaemon(true);
-			this.pool = pool;
-			this.sleepTime = sleepTime;
-			if (sleepTime <= 0) {
-				log.warn("[" + getName() + "] Database connection pool maintenance thread interval is set to 0, defaulting to 30 seconds");
-				this.sleepTime = 1000 * 30;
-			} else if (sleepTime < 1000) {
-				log.warn("[" + getName() + "] Database connection pool maintenance thread interval is set to lower than 1 second.");
-			}
+	/**
+	 * A share of the pool, either a stripe or the connections to a single host: an idle queue with its own lock,
+	 * the number of connections created against this sub-pool and the number of threads waiting on it
+	 */
+	protected static class SubPool {
+		final int index;
+		/**
+		 * The host all of the connections of this sub-pool are bound to, null unless the pool is partitioned by host
+		 */
+		final CassandraHost host;
+		final BlockingQueue<PooledConnection> idle;
+		/**
+		 * Carries the size of the sub-pool, instead of relying on a queue
+		 * implementation that usually iterates over to get an exact count
+		 */
+		final AtomicInteger size = new AtomicInteger(0);
+		/**
+		 * counter to track how many threads are waiting for a connection
+		 */
+		final AtomicInteger waitcount = new AtomicInteger(0);
+
+		SubPool(int index, CassandraHost host, BlockingQueue<PooledConnection> idle) {
+			this.index = index;
+			this.host = host;
+			this.idle = idle;
 		}
 
-		@Override
-		public void run() {
-			while (run) {
-				try {
-					sleep(sleepTime);
-				} catch (InterruptedException e) {
-					// ignore it
-					Thread.interrupted();
-					continue;
-				} // catch
+		/**
+		 * Returns the stripe the current thread should borrow from first
+		 * 
+		 * @param stripes
+		 *            the number of stripes
+		 * @return the index of the home stripe of the current thread
+		 */
+		static int home(int stripes) {
+			return stripes == 1 ? 0 : (int) (Thread.currentThread().getId() % stripes);
+		}
+	}
 
-				if (pool.isClosed()) {
-					if (pool.getSize() <= 0) {
-						run = false;
-					}
-				} else {
-					try {
-						if (pool.getPoolProperties().isRemoveAbandoned())
-							pool.checkAbandoned();
-						if (pool.getPoolProperties().getMinIdle() < pool.idle.size())
-							pool.checkIdle();
-						if (pool.getPoolProperties().isTestWhileIdle())
-							pool.testAllIdle();
-						if (pool.getPoolProperties().isAutomaticHostDiscovery()) {
-							pool.refreshRing();
-						}
-					} catch (Exception x) {
-						log.error("", x);
-					} // catch
-				} // end if
-			} // while
-		} // run
+	/**
+	 * A task of the pool sweeper, run every {@link PoolConfiguration#getTimeBetweenEvictionRunsMillis()}
+	 */
+	protected abstract static class SweeperTask extends MaintenanceTask {
+		/**
+		 * The interval used if {@link PoolConfiguration#getTimeBetweenEvictionRunsMillis()} is not positive
+		 */
+		static final int DEFAULT_INTERVAL = 1000 * 30;
+
+		SweeperTask(String name, ConnectionPool pool) {
+			super(name, pool);
+		}
 
-		public void stopRunning() {
-			run = false;
-			interrupt();
+		@Override
+		protected long getInterval() {
+			int interval = pool.getPoolProperties().getTimeBetweenEvictionRunsMillis();
+			return (interval <= 0) ? DEFAULT_INTERVAL : interval;
 		}
 	}
 }
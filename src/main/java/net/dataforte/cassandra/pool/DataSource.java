@@ -218,6 +218,16 @@ public class DataSource extends DataSourceProxy implements PoolConfiguration, Ca
 		return this.poolProperties.isAutomaticHostDiscovery();
 	}
 
+	@Override
+	public void setRingRefreshInterval(long ringRefreshInterval) {
+		this.poolProperties.setRingRefreshInterval(ringRefreshInterval);
+	}
+
+	@Override
+	public long getRingRefreshInterval() {
+		return this.poolProperties.getRingRefreshInterval();
+	}
+
 	@Override
 	public void setFailoverPolicy(HostFailoverPolicy failoverPolicy) {
 		this.poolProperties.setFailoverPolicy(failoverPolicy);
@@ -229,6 +239,16 @@ public class DataSource extends DataSourceProxy implements PoolConfiguration, Ca
 		return this.poolProperties.getFailoverPolicy();
 	}
 
+	@Override
+	public void setHostCyclePolicy(HostCyclePolicy hostCyclePolicy) {
+		this.poolProperties.setHostCyclePolicy(hostCyclePolicy);
+	}
+
+	@Override
+	public HostCyclePolicy getHostCyclePolicy() {
+		return this.poolProperties.getHostCyclePolicy();
+	}
+
 	@Override
 	public void setAbandonWhenPercentageFull(int percentage) {
 		this.poolProperties.setAbandonWhenPercentageFull(percentage);
@@ -249,6 +269,206 @@ public class DataSource extends DataSourceProxy implements PoolConfiguration, Ca
 		this.poolProperties.setFairQueue(fairQueue);
 	}
 
+	@Override
+	public boolean isUseConnectionBag() {
+		return this.poolProperties.isUseConnectionBag();
+	}
+
+	@Override
+	public void setUseConnectionBag(boolean useConnectionBag) {
+		this.poolProperties.setUseConnectionBag(useConnectionBag);
+	}
+
+	@Override
+	public int getStripes() {
+		return this.poolProperties.getStripes();
+	}
+
+	@Override
+	public void setStripes(int stripes) {
+		this.poolProperties.setStripes(stripes);
+	}
+
+	@Override
+	public boolean isPartitionedByHost() {
+		return this.poolProperties.isPartitionedByHost();
+	}
+
+	@Override
+	public void setPartitionedByHost(boolean partitionedByHost) {
+		this.poolProperties.setPartitionedByHost(partitionedByHost);
+	}
+
+	@Override
+	public int getMaxActivePerHost() {
+		return this.poolProperties.getMaxActivePerHost();
+	}
+
+	@Override
+	public void setMaxActivePerHost(int maxActivePerHost) {
+		this.poolProperties.setMaxActivePerHost(maxActivePerHost);
+	}
+
+	@Override
+	public int getMinIdlePerHost() {
+		return this.poolProperties.getMinIdlePerHost();
+	}
+
+	@Override
+	public void setMinIdlePerHost(int minIdlePerHost) {
+		this.poolProperties.setMinIdlePerHost(minIdlePerHost);
+	}
+
+	@Override
+	public boolean isBackgroundReplenish() {
+		return this.poolProperties.isBackgroundReplenish();
+	}
+
+	@Override
+	public void setBackgroundReplenish(boolean backgroundReplenish) {
+		this.poolProperties.setBackgroundReplenish(backgroundReplenish);
+	}
+
+	@Override
+	public int getIdleHeadroom() {
+		return this.poolProperties.getIdleHeadroom();
+	}
+
+	@Override
+	public void setIdleHeadroom(int idleHeadroom) {
+		this.poolProperties.setIdleHeadroom(idleHeadroom);
+	}
+
+	@Override
+	public int getMaxReplenishRate() {
+		return this.poolProperties.getMaxReplenishRate();
+	}
+
+	@Override
+	public void setMaxReplenishRate(int maxReplenishRate) {
+		this.poolProperties.setMaxReplenishRate(maxReplenishRate);
+	}
+
+	@Override
+	public int getIdleValidationParallelism() {
+		return this.poolProperties.getIdleValidationParallelism();
+	}
+
+	@Override
+	public void setIdleValidationParallelism(int idleValidationParallelism) {
+		this.poolProperties.setIdleValidationParallelism(idleValidationParallelism);
+	}
+
+	@Override
+	public long getIdleValidationBudget() {
+		return this.poolProperties.getIdleValidationBudget();
+	}
+
+	@Override
+	public void setIdleValidationBudget(long idleValidationBudget) {
+		this.poolProperties.setIdleValidationBudget(idleValidationBudget);
+	}
+
+	@Override
+	public int getAsyncSelectorThreads() {
+		return this.poolProperties.getAsyncSelectorThreads();
+	}
+
+	@Override
+	public void setAsyncSelectorThreads(int asyncSelectorThreads) {
+		this.poolProperties.setAsyncSelectorThreads(asyncSelectorThreads);
+	}
+
+	@Override
+	public long getMaxOperationTime() {
+		return this.poolProperties.getMaxOperationTime();
+	}
+
+	@Override
+	public void setMaxOperationTime(long maxOperationTime) {
+		this.poolProperties.setMaxOperationTime(maxOperationTime);
+	}
+
+	@Override
+	public long getHedgeDelay() {
+		return this.poolProperties.getHedgeDelay();
+	}
+
+	@Override
+	public void setHedgeDelay(long hedgeDelay) {
+		this.poolProperties.setHedgeDelay(hedgeDelay);
+	}
+
+	@Override
+	public int getHedgeBudget() {
+		return this.poolProperties.getHedgeBudget();
+	}
+
+	@Override
+	public void setHedgeBudget(int hedgeBudget) {
+		this.poolProperties.setHedgeBudget(hedgeBudget);
+	}
+
+	@Override
+	public int getHostFailureThreshold() {
+		return this.poolProperties.getHostFailureThreshold();
+	}
+
+	@Override
+	public void setHostFailureThreshold(int hostFailureThreshold) {
+		this.poolProperties.setHostFailureThreshold(hostFailureThreshold);
+	}
+
+	@Override
+	public int getHostErrorRateThreshold() {
+		return this.poolProperties.getHostErrorRateThreshold();
+	}
+
+	@Override
+	public void setHostErrorRateThreshold(int hostErrorRateThreshold) {
+		this.poolProperties.setHostErrorRateThreshold(hostErrorRateThreshold);
+	}
+
+	@Override
+	public long getHostRetryInitialInterval() {
+		return this.poolProperties.getHostRetryInitialInterval();
+	}
+
+	@Override
+	public void setHostRetryInitialInterval(long hostRetryInitialInterval) {
+		this.poolProperties.setHostRetryInitialInterval(hostRetryInitialInterval);
+	}
+
+	@Override
+	public boolean isBackgroundHostProbe() {
+		return this.poolProperties.isBackgroundHostProbe();
+	}
+
+	@Override
+	public void setBackgroundHostProbe(boolean backgroundHostProbe) {
+		this.poolProperties.setBackgroundHostProbe(backgroundHostProbe);
+	}
+
+	@Override
+	public int getHostProbeTimeout() {
+		return this.poolProperties.getHostProbeTimeout();
+	}
+
+	@Override
+	public void setHostProbeTimeout(int hostProbeTimeout) {
+		this.poolProperties.setHostProbeTimeout(hostProbeTimeout);
+	}
+
+	@Override
+	public boolean isShareClusterState() {
+		return this.poolProperties.isShareClusterState();
+	}
+
+	@Override
+	public void setShareClusterState(boolean shareClusterState) {
+		this.poolProperties.setShareClusterState(shareClusterState);
+	}
+
 	@Override
 	public int getInitialSize() {
 		return this.poolProperties.getInitialSize();
@@ -259,6 +479,26 @@ public class DataSource extends DataSourceProxy implements PoolConfiguration, Ca
 		this.poolProperties.setInitialSize(initialSize);
 	}
 
+	@Override
+	public int getInitialFillParallelism() {
+		return this.poolProperties.getInitialFillParallelism();
+	}
+
+	@Override
+	public void setInitialFillParallelism(int initialFillParallelism) {
+		this.poolProperties.setInitialFillParallelism(initialFillParallelism);
+	}
+
+	@Override
+	public boolean isAsyncInit() {
+		return this.poolProperties.isAsyncInit();
+	}
+
+	@Override
+	public void setAsyncInit(boolean asyncInit) {
+		this.poolProperties.setAsyncInit(asyncInit);
+	}
+
 	@Override
 	public boolean isLogAbandoned() {
 		return this.poolProperties.isLogAbandoned();
@@ -16,6 +16,8 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.nio.ByteBuffer;
+
 import org.apache.cassandra.thrift.Cassandra;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
@@ -69,6 +71,54 @@ public class DataSourceProxy {
 		return pool.getConnection();
 	}
 
+	/**
+	 * Borrows a connection to a replica of a row key, see {@link ConnectionPool#getConnection(ByteBuffer)}
+	 * 
+	 * @param rowKey
+	 * @return a connection to a replica of the row key, if one is available
+	 * @throws TException
+	 */
+	public Cassandra.Client getConnection(ByteBuffer rowKey) throws TException {
+		if (pool == null)
+			return createPool().getConnection(rowKey);
+		return pool.getConnection(rowKey);
+	}
+
+	/**
+	 * Returns a proxy which borrows a connection for each call, see {@link ConnectionPool#getPerCallConnection()}
+	 * 
+	 * @return a proxy over the connections of the pool
+	 * @throws TException
+	 */
+	public Cassandra.Iface getPerCallConnection() throws TException {
+		if (pool == null)
+			return createPool().getPerCallConnection();
+		return pool.getPerCallConnection();
+	}
+
+	/**
+	 * Returns the executor which runs reads with hedging, see {@link ConnectionPool#getHedgingExecutor()}
+	 * 
+	 * @return the hedging executor of the pool
+	 * @throws TException
+	 */
+	public HedgingExecutor getHedgingExecutor() throws TException {
+		if (pool == null)
+			return createPool().getHedgingExecutor();
+		return pool.getHedgingExecutor();
+	}
+
+	/**
+	 * Borrows a connection without blocking, see {@link ConnectionPool#getConnectionAsync()}
+	 * 
+	 * @return a future which completes with the connection
+	 * @throws TException
+	 */
+	public ConnectionFuture getConnectionAsync() throws TException {
+		if (pool == null)
+			return createPool().getConnectionAsync();
+		return pool.getConnectionAsync();
+	}
 	
 	public void releaseConnection(Cassandra.Client connection) {
 		if(connection == null)
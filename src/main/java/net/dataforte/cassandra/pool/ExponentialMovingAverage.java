@@ -0,0 +1,83 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free exponentially weighted moving average. Samples are folded into the average with a CAS loop, so
+ * that concurrent updates are never lost.
+ * 
+ * @author Tristan Tarrant
+ */
+public class ExponentialMovingAverage {
+	private static final long NO_SAMPLES = Double.doubleToLongBits(Double.NaN);
+
+	private final double alpha;
+	private final AtomicLong average = new AtomicLong(NO_SAMPLES);
+
+	/**
+	 * @param alpha
+	 *            the weight of a new sample, between 0 and 1. The higher the weight, the faster older samples are
+	 *            forgotten
+	 */
+	public ExponentialMovingAverage(double alpha) {
+		if (alpha <= 0 || alpha > 1) {
+			throw new IllegalArgumentException("alpha must be in (0, 1]: " + alpha);
+		}
+		this.alpha = alpha;
+	}
+
+	/**
+	 * Folds a sample into the average. The first sample becomes the average.
+	 * 
+	 * @param sample
+	 */
+	public void update(double sample) {
+		while (true) {
+			long current = average.get();
+			double value = Double.longBitsToDouble(current);
+			double updated = Double.isNaN(value) ? sample : value + alpha * (sample - value);
+			if (average.compareAndSet(current, Double.doubleToLongBits(updated))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the average
+	 * 
+	 * @return the average, or {@link Double#NaN} if there have been no samples
+	 */
+	public double get() {
+		return Double.longBitsToDouble(average.get());
+	}
+
+	/**
+	 * Returns true if at least one sample has been folded into the average
+	 * 
+	 * @return true if the average is known
+	 */
+	public boolean hasSamples() {
+		return average.get() != NO_SAMPLES;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(get());
+	}
+}
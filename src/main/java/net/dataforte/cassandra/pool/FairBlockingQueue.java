@@ -16,11 +16,17 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -110,6 +116,8 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
         }
         //if we exchanged an object with another thread, wake it up.
         if (!isLinux && c!=null) c.countDown();
+        //and notify an asynchronous waiter, outside of the lock
+        if (c!=null && c.listener!=null) c.listener.itemAvailable(e);
         //we have an unbounded queue, so always return true
         return true;
     }
@@ -171,6 +179,16 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
      * @return - a future pending the result from the queue poll request
      */
     public Future<E> pollAsync() {
+        return pollAsync(null);
+    }
+
+    /**
+     * Request an item from the queue asynchronously, and get notified when it is available
+     * @param listener - notified once the item is available, by the thread offering it, or by the current thread
+     *            if an item is available immediately, can be null
+     * @return - a future pending the result from the queue poll request, cancelling it removes the waiter
+     */
+    public Future<E> pollAsync(ItemListener<E> listener) {
         Future<E> result = null;
         final ReentrantLock lock = this.lock;
         boolean error = true;
@@ -182,6 +200,7 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
             if (item==null) {
                 //queue is empty, add ourselves as waiters
                 ExchangeCountDownLatch<E> c = new ExchangeCountDownLatch<E>(1);
+                c.listener = listener;
                 waiters.addLast(c);
                 lock.unlock();
                 //return a future that will wait for the object
@@ -190,6 +209,7 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
                 lock.unlock();
                 //return a future with the item
                 result = new ItemFuture<E>(item);
+                if (listener!=null) listener.itemAvailable(item);
             }
             error = false;
         } finally {
@@ -227,6 +247,16 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
         return new FairIterator();
     }
 
+    /**
+     * Returns an iterator from the tail to the head. Since {@link #offer(Object)} adds to the head, this is the order
+     * in which the items were offered, oldest first. The items are copied a few at a time, so a caller which stops
+     * early doesn't copy the whole queue.
+     * @return an iterator in reverse order
+     */
+    public Iterator<E> descendingIterator() {
+        return new DescendingIterator();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -397,7 +427,8 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
 
 
     //------------------------------------------------------------------
-    // Non cancellable Future used to check and see if a connection has been made available
+    // Future used to check and see if a connection has been made available,
+    // cancelling it before then removes the waiter
     //------------------------------------------------------------------
     protected class ItemFuture<T> implements Future<T> {
         protected volatile T item = null;
@@ -413,7 +444,22 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
         }
         
         public boolean cancel(boolean mayInterruptIfRunning) {
-            return false; //don't allow cancel for now
+            if (item!=null || latch==null) {
+                return false;
+            }
+            //the item can only be handed over to a waiter still in the list
+            final ReentrantLock lock = FairBlockingQueue.this.lock;
+            lock.lock();
+            try {
+                if (canceled || !waiters.remove(latch)) {
+                    return false;
+                }
+                canceled = true;
+            } finally {
+                lock.unlock();
+            }
+            latch.countDown();
+            return true;
         }
 
         public T get() throws InterruptedException, ExecutionException {
@@ -421,6 +467,7 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
                 return item;
             } else if (latch!=null) {
                 latch.await();
+                if (canceled) throw new CancellationException();
                 return latch.getItem();
             } else {
                 throw new ExecutionException("ItemFuture incorrectly instantiated. Bug in the code?", new Exception());
@@ -433,27 +480,40 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
             } else if (latch!=null) {
                 boolean timedout = !latch.await(timeout, unit);
                 if (timedout) throw new TimeoutException();
-                else return latch.getItem();
+                if (canceled) throw new CancellationException();
+                return latch.getItem();
             } else {
                 throw new ExecutionException("ItemFuture incorrectly instantiated. Bug in the code?", new Exception());
             }
         }
 
         public boolean isCancelled() {
-            return false;
+            return canceled;
         }
 
         public boolean isDone() {
-            return (item!=null || latch.getItem()!=null);
+            return (item!=null || canceled || latch.getItem()!=null);
         }
         
     }
 
+    //------------------------------------------------------------------
+    // Callback of an asynchronous poll request
+    //------------------------------------------------------------------
+    public interface ItemListener<T> {
+        /**
+         * Called once with the item handed to the poll request, on the thread offering it
+         * @param item - the item, now owned by the listener
+         */
+        void itemAvailable(T item);
+    }
+
     //------------------------------------------------------------------
     // Count down latch that can be used to exchange information
     //------------------------------------------------------------------
     protected class ExchangeCountDownLatch<T> extends CountDownLatch {
         protected volatile T item;
+        protected volatile ItemListener<T> listener;
         public ExchangeCountDownLatch(int i) {
             super(i);
         }
@@ -509,4 +569,63 @@ public class FairBlockingQueue<E> implements BlockingQueue<E> {
         }
 
     }
+
+    /**
+     * Walks the queue from the tail, copying up to {@link #BATCH} items at a time under the lock. The items already
+     * returned are skipped, so removals meanwhile don't make the iterator lose its place. Items offered meanwhile are
+     * added to the head and may be returned last.
+     */
+    protected class DescendingIterator implements Iterator<E> {
+        static final int BATCH = 16;
+        final Set<E> seen = Collections.newSetFromMap(new IdentityHashMap<E, Boolean>());
+        final List<E> elements = new ArrayList<E>(BATCH);
+        int index = 0;
+        boolean exhausted = false;
+        E element = null;
+
+        public boolean hasNext() {
+            if (index == elements.size() && !exhausted) {
+                fill();
+            }
+            return index < elements.size();
+        }
+
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            element = elements.get(index++);
+            return element;
+        }
+
+        public void remove() {
+            final ReentrantLock lock = FairBlockingQueue.this.lock;
+            lock.lock();
+            try {
+                if (element!=null) {
+                    FairBlockingQueue.this.items.remove(element);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void fill() {
+            elements.clear();
+            index = 0;
+            final ReentrantLock lock = FairBlockingQueue.this.lock;
+            lock.lock();
+            try {
+                for (Iterator<E> i = FairBlockingQueue.this.items.descendingIterator(); i.hasNext() && elements.size() < BATCH;) {
+                    E e = i.next();
+                    if (seen.add(e)) {
+                        elements.add(e);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            exhausted = elements.size() < BATCH;
+        }
+    }
 }
@@ -0,0 +1,465 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ColumnPath;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.KeySlice;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs idempotent reads with hedging: if the first attempt of a read hasn't answered within
+ * {@link PoolProperties#hedgeDelay hedgeDelay}, or within the 95th percentile of the latency of its host, the same
+ * read is sent on a connection to another host, and whichever answer arrives first is used. If the first attempt
+ * loses, its connection is closed so that its call fails at once. If the hedge loses, it keeps its connection until
+ * its call completes, the connection is then returned to the pool, or closed if its transport failed. At most {@link PoolProperties#hedgeBudget hedgeBudget} percent of the reads are hedged.
+ * <br/>
+ * A read is only hedged if a connection to another host is at hand without waiting: an idle one, or a new one if
+ * the pool is below its capacity. The hosts of the connections are only known in advance if the pool is
+ * {@link PoolProperties#partitionedByHost partitionedByHost}, otherwise a hedge may find no connection to
+ * another host and be skipped.
+ * <br/>
+ * The first attempt always runs on the calling thread. The hedge is scheduled on the shared maintenance scheduler
+ * when the read starts, and cancelled if the first attempt answers in time, otherwise it runs on a thread of the
+ * executor.
+ * 
+ * @author Tristan Tarrant
+ */
+public class HedgingExecutor {
+	private static final Logger log = LoggerFactory.getLogger(HedgingExecutor.class);
+
+	/**
+	 * The percentile of the latency of its host after which a read is hedged, if no hedge delay is configured
+	 */
+	public static final double HEDGE_PERCENTILE = 0.95;
+	/**
+	 * The number of hedges which can be saved up while the reads need fewer than the budget allows
+	 */
+	public static final int MAX_SAVED_HEDGES = 10;
+
+	private static final int RUNNING = 0;
+	private static final int DONE = 1;
+	private static final int ABORTED = 2;
+	private static final int PENDING = 0;
+	private static final int SENT = 1;
+	private static final int CANCELLED = 2;
+
+	private final ConnectionPool pool;
+	/**
+	 * Runs the hedges
+	 */
+	private final ThreadPoolExecutor attempts;
+	/**
+	 * The hedges which can be sent, in hundredths of a hedge: each read earns hedgeBudget of them
+	 */
+	private final AtomicLong credit = new AtomicLong(0);
+	private final AtomicLong reads = new AtomicLong(0);
+	private final AtomicLong hedges = new AtomicLong(0);
+	private final AtomicLong hedgeWins = new AtomicLong(0);
+
+	public HedgingExecutor(ConnectionPool pool) {
+		this.pool = pool;
+		final String name = "[Pool-Hedge]:" + pool.getName();
+		// a hedge holds a connection, so there can't be more running than maxActive
+		attempts = new ThreadPoolExecutor(0, Math.max(1, pool.getPoolProperties().getMaxActive()), 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Hedged {@link Cassandra.Client#get(ByteBuffer, ColumnPath, ConsistencyLevel)}
+	 */
+	public ColumnOrSuperColumn get(final ByteBuffer key, final ColumnPath columnPath, final ConsistencyLevel consistencyLevel) throws Exception {
+		return execute(key, new Callback<Cassandra.Client, ColumnOrSuperColumn>() {
+			@Override
+			public ColumnOrSuperColumn execute(Cassandra.Client connection) throws Exception {
+				return connection.get(key, columnPath, consistencyLevel);
+			}
+		});
+	}
+
+	/**
+	 * Hedged {@link Cassandra.Client#get_slice(ByteBuffer, ColumnParent, SlicePredicate, ConsistencyLevel)}
+	 */
+	public List<ColumnOrSuperColumn> get_slice(final ByteBuffer key, final ColumnParent columnParent, final SlicePredicate predicate, final ConsistencyLevel consistencyLevel) throws Exception {
+		return execute(key, new Callback<Cassandra.Client, List<ColumnOrSuperColumn>>() {
+			@Override
+			public List<ColumnOrSuperColumn> execute(Cassandra.Client connection) throws Exception {
+				return connection.get_slice(key, columnParent, predicate, consistencyLevel);
+			}
+		});
+	}
+
+	/**
+	 * Hedged {@link Cassandra.Client#multiget_slice(List, ColumnParent, SlicePredicate, ConsistencyLevel)}
+	 */
+	public Map<ByteBuffer, List<ColumnOrSuperColumn>> multiget_slice(final List<ByteBuffer> keys, final ColumnParent columnParent, final SlicePredicate predicate,
+			final ConsistencyLevel consistencyLevel) throws Exception {
+		return execute(keys.size() == 1 ? keys.get(0) : null, new Callback<Cassandra.Client, Map<ByteBuffer, List<ColumnOrSuperColumn>>>() {
+			@Override
+			public Map<ByteBuffer, List<ColumnOrSuperColumn>> execute(Cassandra.Client connection) throws Exception {
+				return connection.multiget_slice(keys, columnParent, predicate, consistencyLevel);
+			}
+		});
+	}
+
+	/**
+	 * Hedged {@link Cassandra.Client#get_range_slices(ColumnParent, SlicePredicate, KeyRange, ConsistencyLevel)}
+	 */
+	public List<KeySlice> get_range_slices(final ColumnParent columnParent, final SlicePredicate predicate, final KeyRange range, final ConsistencyLevel consistencyLevel)
+			throws Exception {
+		return execute(null, new Callback<Cassandra.Client, List<KeySlice>>() {
+			@Override
+			public List<KeySlice> execute(Cassandra.Client connection) throws Exception {
+				return connection.get_range_slices(columnParent, predicate, range, consistencyLevel);
+			}
+		});
+	}
+
+	/**
+	 * Runs a read, hedging it if its first attempt is slow. The read must be idempotent, since it may run on two
+	 * connections.
+	 * 
+	 * @param rowKey
+	 *            the row key the read is about, to borrow connections to its replicas, or null
+	 * @param read
+	 *            the read
+	 * @return the first result of the read
+	 * @throws Exception
+	 *             the failure of the read if all of its attempts failed, or a {@link TException} if no connection
+	 *             could be borrowed
+	 */
+	public <T> T execute(ByteBuffer rowKey, Callback<Cassandra.Client, T> read) throws Exception {
+		reads.incrementAndGet();
+		int budget = pool.getPoolProperties().getHedgeBudget();
+		if (budget > 0) {
+			earn(budget);
+		}
+		PooledConnection con = borrow(rowKey);
+		long delay = (budget > 0) ? getHedgeDelay(con.getCassandraHost()) : -1;
+		Attempt<T> first = new Attempt<T>(con, read);
+		if (delay < 0) {
+			// the read won't be hedged
+			return first.call();
+		}
+		Hedge<T> hedge = new Hedge<T>(rowKey, read, first);
+		hedge.timer = MaintenanceTask.getScheduler().schedule(hedge, delay, TimeUnit.NANOSECONDS);
+		first.run();
+		if (hedge.cancel() || first.failure == null) {
+			// answered before the hedge was due, or before the hedge answered
+			return first.get();
+		}
+		// failed, or aborted because the hedge answered first
+		Attempt<T> second = hedge.await();
+		if (second != null && second.failure == null) {
+			hedgeWins.incrementAndGet();
+			return second.result;
+		}
+		return first.get();
+	}
+
+	/**
+	 * Returns how long the first attempt of a read is waited for before the read is hedged
+	 * 
+	 * @param host
+	 *            the host of the first attempt
+	 * @return the delay in nanoseconds, negative if the read shouldn't be hedged
+	 */
+	protected long getHedgeDelay(CassandraHost host) {
+		long delay = pool.getPoolProperties().getHedgeDelay();
+		if (delay > 0) {
+			return TimeUnit.MILLISECONDS.toNanos(delay);
+		}
+		double percentile = (host != null) ? host.getLatencyPercentile(HEDGE_PERCENTILE) : Double.NaN;
+		return Double.isNaN(percentile) ? -1 : (long) percentile;
+	}
+
+	private static Exception rethrow(Throwable failure) {
+		if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		return (Exception) failure;
+	}
+
+	private PooledConnection borrow(ByteBuffer rowKey) throws TException {
+		Cassandra.Client client = (rowKey != null) ? pool.getConnection(rowKey) : pool.getConnection();
+		return ((PooledCassandraClient) client).getPooledConnection();
+	}
+
+	/**
+	 * Adds to the hedges which can be sent
+	 * 
+	 * @param hundredths
+	 *            the hundredths of a hedge to add
+	 */
+	private void earn(long hundredths) {
+		while (true) {
+			long current = credit.get();
+			long updated = Math.min(MAX_SAVED_HEDGES * 100L, current + hundredths);
+			if (updated == current || credit.compareAndSet(current, updated)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes a hedge out of the budget
+	 * 
+	 * @return true if the budget allows a hedge
+	 */
+	private boolean spend() {
+		while (true) {
+			long current = credit.get();
+			if (current < 100) {
+				return false;
+			}
+			if (credit.compareAndSet(current, current - 100)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Stops the threads of the executor, the running attempts complete
+	 */
+	public void shutdown() {
+		attempts.shutdown();
+	}
+
+	/**
+	 * Returns the number of reads run by this executor
+	 * 
+	 * @return the number of reads
+	 */
+	public long getReadCount() {
+		return reads.get();
+	}
+
+	/**
+	 * Returns the number of reads which were hedged
+	 * 
+	 * @return the number of hedges
+	 */
+	public long getHedgeCount() {
+		return hedges.get();
+	}
+
+	/**
+	 * Returns the number of hedged reads whose hedge answered first
+	 * 
+	 * @return the number of hedges which won
+	 */
+	public long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * An attempt of a read on a connection, which is returned to the pool when the call completes
+	 */
+	private class Attempt<T> implements Runnable {
+		private final PooledConnection con;
+		private final Callback<Cassandra.Client, T> read;
+		/**
+		 * {@link #RUNNING}, then {@link #DONE} once the call has returned, or {@link #ABORTED} if the other attempt
+		 * answered first
+		 */
+		private final AtomicInteger state = new AtomicInteger(RUNNING);
+		private T result;
+		private Throwable failure;
+
+		Attempt(PooledConnection con, Callback<Cassandra.Client, T> read) {
+			this.con = con;
+			this.read = read;
+		}
+
+		@Override
+		public void run() {
+			try {
+				result = read.execute(con.getConnection());
+			} catch (TTransportException x) {
+				// the state of the connection is unknown, don't reuse it
+				con.setDiscarded(true);
+				failure = x;
+			} catch (Throwable x) {
+				failure = x;
+			} finally {
+				if (!state.compareAndSet(RUNNING, DONE)) {
+					// the connection has been closed under the call
+					con.setDiscarded(true);
+				}
+				pool.returnConnection(con);
+			}
+		}
+
+		/**
+		 * Makes the call fail, unless it has already returned
+		 */
+		void abort() {
+			if (state.compareAndSet(RUNNING, ABORTED)) {
+				con.abort();
+			}
+		}
+
+		boolean isDone() {
+			return state.get() != RUNNING;
+		}
+
+		/**
+		 * Runs the attempt on the calling thread
+		 */
+		T call() throws Exception {
+			run();
+			return get();
+		}
+
+		T get() throws Exception {
+			if (failure != null) {
+				throw rethrow(failure);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The hedge of a read, scheduled when the read starts and cancelled if its first attempt answers in time. It is
+	 * sent on a thread of the executor, on a connection to a host other than the one of the first attempt, and aborts
+	 * the first attempt if it answers first.
+	 */
+	private class Hedge<T> implements Runnable {
+		private final ByteBuffer rowKey;
+		private final Callback<Cassandra.Client, T> read;
+		private final Attempt<T> first;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private final CountDownLatch done = new CountDownLatch(1);
+		/**
+		 * Only used by the thread running the first attempt
+		 */
+		private ScheduledFuture<?> timer;
+		private Attempt<T> attempt;
+
+		Hedge(ByteBuffer rowKey, Callback<Cassandra.Client, T> read, Attempt<T> first) {
+			this.rowKey = rowKey;
+			this.read = read;
+			this.first = first;
+		}
+
+		/**
+		 * Called by the scheduler once the hedge is due
+		 */
+		@Override
+		public void run() {
+			if (!state.compareAndSet(PENDING, SENT)) {
+				return;
+			}
+			if (!spend()) {
+				finish(null);
+				return;
+			}
+			try {
+				attempts.execute(new Runnable() {
+					@Override
+					public void run() {
+						send();
+					}
+				});
+			} catch (RejectedExecutionException x) {
+				earn(100);
+				finish(null);
+			}
+		}
+
+		private void send() {
+			if (first.isDone()) {
+				earn(100);
+				finish(null);
+				return;
+			}
+			PooledConnection con = null;
+			try {
+				con = pool.borrowConnectionAvoiding(rowKey, first.con.getCassandraHost());
+			} catch (TException x) {
+				log.debug("[" + pool.getName() + "] Unable to borrow a connection to hedge a read", x);
+			}
+			if (con == null) {
+				earn(100);
+				finish(null);
+				return;
+			}
+			hedges.incrementAndGet();
+			Attempt<T> attempt = new Attempt<T>(con, read);
+			attempt.run();
+			if (attempt.failure == null) {
+				first.abort();
+			}
+			finish(attempt);
+		}
+
+		private void finish(Attempt<T> attempt) {
+			this.attempt = attempt;
+			done.countDown();
+		}
+
+		/**
+		 * Cancels the hedge, unless it is already due
+		 * 
+		 * @return true if the hedge won't be sent
+		 */
+		boolean cancel() {
+			if (state.compareAndSet(PENDING, CANCELLED)) {
+				timer.cancel(false);
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Waits for the hedge, once it is due
+		 * 
+		 * @return the attempt of the hedge, or null if it couldn't be sent
+		 */
+		Attempt<T> await() throws InterruptedException {
+			done.await();
+			return attempt;
+		}
+	}
+}
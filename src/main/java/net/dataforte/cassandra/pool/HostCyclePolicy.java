@@ -17,5 +17,15 @@
 package net.dataforte.cassandra.pool;
 
 public enum HostCyclePolicy {
-	ROUND_ROBIN, RANDOM
+	ROUND_ROBIN, RANDOM,
+	/**
+	 * Orders the hosts by their score (see {@link CassandraHost#getScore(long)}), fastest first. Once in a while the
+	 * hosts are shuffled instead, so that the statistics of the slower hosts are kept up to date.
+	 */
+	LATENCY_AWARE,
+	/**
+	 * Samples two random hosts and puts first the one with fewer connections checked out by the application, or with
+	 * fewer calls in flight if they tie (power of two choices). The other hosts follow in random order.
+	 */
+	LEAST_OUTSTANDING
 }
\ No newline at end of file
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Iterates over an array of hosts in the order of a {@link HostCyclePolicy} without copying the array into a new
+ * collection: the ordering is computed lazily, one host at a time, in scratch arrays which are reused across
+ * iterations. Since the caller usually stops at the first host, the cost is mostly that of choosing one host.
+ * <br/>
+ * An iterator is confined to a single thread, see {@link CassandraRing#hostIterator()}.
+ * 
+ * @author Tristan Tarrant
+ */
+public class HostIterator implements Iterator<CassandraHost> {
+	private final HostCyclePolicy policy;
+	private final AtomicInteger roundRobin;
+	private final Random random = new Random();
+	/**
+	 * The hosts being iterated, never modified
+	 */
+	private CassandraHost[] hosts;
+	/**
+	 * Scratch array: the hosts which have been returned are at the front, in order
+	 */
+	private CassandraHost[] order = new CassandraHost[0];
+	private double[] scores = new double[0];
+	private int size;
+	private int position;
+	private int start;
+	/**
+	 * The policy of the current iteration, {@link HostCyclePolicy#LATENCY_AWARE} explores in random order
+	 */
+	private HostCyclePolicy mode;
+
+	HostIterator(HostCyclePolicy policy, AtomicInteger roundRobin) {
+		this.policy = policy;
+		this.roundRobin = roundRobin;
+	}
+
+	/**
+	 * Starts a new iteration over the specified hosts
+	 * 
+	 * @param hosts
+	 *            the hosts, the array is not modified
+	 * @return this iterator
+	 */
+	HostIterator reset(CassandraHost[] hosts) {
+		this.hosts = hosts;
+		this.size = hosts.length;
+		this.position = 0;
+		this.mode = policy;
+		if (mode == HostCyclePolicy.LATENCY_AWARE && random.nextDouble() < CassandraRing.EXPLORATION_PROBABILITY) {
+			mode = HostCyclePolicy.RANDOM;
+		}
+		switch (mode) {
+		case ROUND_ROBIN:
+			start = (size == 0) ? 0 : (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % size;
+			break;
+		case LATENCY_AWARE:
+			if (scores.length < size) {
+				scores = new double[size];
+			}
+			// the scores are taken once, they change while ordering
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < size; i++) {
+				scores[i] = hosts[i].getScore(now);
+			}
+			// fall through
+		default:
+			if (order.length < size) {
+				order = new CassandraHost[size];
+			}
+			System.arraycopy(hosts, 0, order, 0, size);
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of hosts of this iteration
+	 * 
+	 * @return the number of hosts
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean hasNext() {
+		return position < size;
+	}
+
+	public CassandraHost next() {
+		if (position >= size) {
+			throw new NoSuchElementException();
+		}
+		switch (mode) {
+		case ROUND_ROBIN:
+			return hosts[(start + position++) % size];
+		case LATENCY_AWARE:
+			// selection sort, one step at a time
+			int best = position;
+			for (int i = position + 1; i < size; i++) {
+				if (scores[i] < scores[best]) {
+					best = i;
+				}
+			}
+			swap(position, best);
+			break;
+		case LEAST_OUTSTANDING:
+			if (position == 0 && size > 1) {
+				// power of two choices
+				int a = random.nextInt(size);
+				int b = random.nextInt(size - 1);
+				if (b >= a) {
+					b++;
+				}
+				swap(0, isLessLoaded(order[b], order[a]) ? b : a);
+				break;
+			}
+			// fall through
+		default:
+			// Fisher-Yates shuffle, one step at a time
+			swap(position, position + random.nextInt(size - position));
+		}
+		return order[position++];
+	}
+
+	/**
+	 * @throws UnsupportedOperationException - this operation is not supported
+	 */
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private void swap(int i, int j) {
+		CassandraHost host = order[i];
+		order[i] = order[j];
+		order[j] = host;
+		if (mode == HostCyclePolicy.LATENCY_AWARE) {
+			double score = scores[i];
+			scores[i] = scores[j];
+			scores[j] = score;
+		}
+	}
+
+	private static boolean isLessLoaded(CassandraHost a, CassandraHost b) {
+		int activeA = a.getActive();
+		int activeB = b.getActive();
+		return (activeA < activeB) || (activeA == activeB && a.getInFlight() < b.getInFlight());
+	}
+}
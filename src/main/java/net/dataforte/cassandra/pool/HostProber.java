@@ -0,0 +1,114 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFastFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retries the hosts which have been ejected off the request path: once the retry time of a host has come, the prober
+ * connects to it with a timeout of {@link PoolConfiguration#getHostProbeTimeout()} and asks for the cluster name. The
+ * host goes back into rotation only if the probe succeeds, otherwise it stays ejected for twice as long, see
+ * {@link CircuitBreaker}. Borrowers never connect to an ejected host meanwhile.
+ * <br/>
+ * The prober looks for hosts to probe every {@link PoolConfiguration#getHostRetryInitialInterval()}, and probes them
+ * one at a time.
+ * 
+ * @author Tristan Tarrant
+ */
+public class HostProber extends MaintenanceTask {
+	private static final Logger log = LoggerFactory.getLogger(HostProber.class);
+
+	private final AtomicLong probes = new AtomicLong(0);
+	private final AtomicLong failures = new AtomicLong(0);
+
+	public HostProber(ConnectionPool pool) {
+		super("probeHosts", pool);
+	}
+
+	@Override
+	protected long getInterval() {
+		return Math.max(1, pool.getPoolProperties().getHostRetryInitialInterval());
+	}
+
+	@Override
+	protected boolean isBlocking() {
+		return true;
+	}
+
+	@Override
+	protected void runTask() {
+		for (CassandraHost host : pool.getCassandraRing().getHosts()) {
+			if (!host.isGood() && host.getBreaker().tryTrial(System.currentTimeMillis())) {
+				probe(host);
+			}
+		}
+	}
+
+	/**
+	 * Probes a host, restoring it if it answers and ejecting it again otherwise
+	 * 
+	 * @param host
+	 *            a host whose trial has been claimed, see {@link CircuitBreaker#tryTrial(long)}
+	 * @return true if the host answered
+	 */
+	protected boolean probe(CassandraHost host) {
+		PoolConfiguration properties = pool.getPoolProperties();
+		TSocket socket = new TSocket(host.getHost(), properties.getPort(), properties.getHostProbeTimeout());
+		TTransport transport = properties.isFramed() ? new TFastFramedTransport(socket) : socket;
+		probes.incrementAndGet();
+		try {
+			transport.open();
+			new Cassandra.Client(new TBinaryProtocol(transport)).describe_cluster_name();
+			host.setGood(true);
+			log.info("[" + pool.getName() + "] Restored host " + host);
+			return true;
+		} catch (TException x) {
+			failures.incrementAndGet();
+			host.timestamp();
+			host.eject();
+			if (log.isDebugEnabled()) {
+				log.debug("[" + pool.getName() + "] Probe of " + host + " failed", x);
+			}
+			return false;
+		} finally {
+			transport.close();
+		}
+	}
+
+	/**
+	 * @return the number of hosts probed
+	 */
+	public long getProbeCount() {
+		return probes.get();
+	}
+
+	/**
+	 * @return the number of probes which failed
+	 */
+	public long getProbeFailureCount() {
+		return failures.get();
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * A transport which records the statistics of a {@link CassandraHost}: the time it takes to open the connection,
+ * the latency of each call, measured from the flush of the request to the first read of the response, the number
+ * of calls waiting for a response and the transport errors.
+ * <br/>
+ * Like any transport, it must be used by a single thread at a time, except for {@link #abort()}.
+ * 
+ * @author Tristan Tarrant
+ */
+public class HostStatsTransport extends TTransport {
+	private final TTransport transport;
+	private final CassandraHost host;
+	/**
+	 * When the last request was flushed, 0 if no response is pending
+	 */
+	private long flushed = 0;
+	private volatile boolean aborted = false;
+
+	public HostStatsTransport(TTransport transport, CassandraHost host) {
+		this.transport = transport;
+		this.host = host;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return transport.isOpen();
+	}
+
+	@Override
+	public boolean peek() {
+		return transport.peek();
+	}
+
+	@Override
+	public void open() throws TTransportException {
+		long start = System.nanoTime();
+		try {
+			transport.open();
+		} catch (TTransportException e) {
+			host.recordError();
+			throw e;
+		}
+		host.recordConnectTime(System.nanoTime() - start);
+	}
+
+	@Override
+	public void close() {
+		if (flushed != 0) {
+			completed();
+		}
+		transport.close();
+	}
+
+	/**
+	 * Closes the transport from another thread, so that the call in progress fails. The failure is not counted as an
+	 * error of the host.
+	 */
+	public void abort() {
+		aborted = true;
+		transport.close();
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws TTransportException {
+		int read;
+		try {
+			read = transport.read(buf, off, len);
+		} catch (TTransportException e) {
+			if (flushed != 0) {
+				completed();
+			}
+			if (!aborted) {
+				host.recordError();
+			}
+			throw e;
+		}
+		if (flushed != 0) {
+			host.recordLatency(System.nanoTime() - flushed);
+			completed();
+		}
+		return read;
+	}
+
+	@Override
+	public void write(byte[] buf, int off, int len) throws TTransportException {
+		try {
+			transport.write(buf, off, len);
+		} catch (TTransportException e) {
+			if (!aborted) {
+				host.recordError();
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public void flush() throws TTransportException {
+		long start = System.nanoTime();
+		try {
+			transport.flush();
+		} catch (TTransportException e) {
+			if (!aborted) {
+				host.recordError();
+			}
+			throw e;
+		}
+		if (flushed == 0) {
+			host.incrementInFlight();
+		}
+		flushed = start;
+	}
+
+	private void completed() {
+		flushed = 0;
+		host.decrementInFlight();
+	}
+
+	// the buffer methods are delegated, so that the protocol can still use the fast path of buffered transports
+
+	@Override
+	public byte[] getBuffer() {
+		return transport.getBuffer();
+	}
+
+	@Override
+	public int getBufferPosition() {
+		return transport.getBufferPosition();
+	}
+
+	@Override
+	public int getBytesRemainingInBuffer() {
+		return transport.getBytesRemainingInBuffer();
+	}
+
+	@Override
+	public void consumeBuffer(int len) {
+		transport.consumeBuffer(len);
+	}
+
+	/**
+	 * Returns the transport this transport wraps
+	 * 
+	 * @return the underlying transport
+	 */
+	public TTransport getTransport() {
+		return transport;
+	}
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of recent latencies, from which percentiles are estimated. The buckets grow exponentially,
+ * four per power of two, so that a percentile is accurate within 25%. Once a window of samples has been recorded, all
+ * the counts are halved, so that older samples fade away.
+ * 
+ * @author Tristan Tarrant
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = SUB_BUCKETS * 62;
+
+	private final int window;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicBoolean decaying = new AtomicBoolean(false);
+
+	/**
+	 * @param window
+	 *            the number of samples after which the counts are halved
+	 */
+	public LatencyHistogram(int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("window must be at least 2: " + window);
+		}
+		this.window = window;
+	}
+
+	/**
+	 * Records a sample
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void update(long nanos) {
+		counts.incrementAndGet(bucket(nanos));
+		if (count.incrementAndGet() >= window && decaying.compareAndSet(false, true)) {
+			try {
+				long total = 0;
+				for (int i = 0; i < BUCKETS; i++) {
+					long c = counts.get(i);
+					if (c > 0) {
+						total += counts.addAndGet(i, -(c / 2));
+					}
+				}
+				count.set(total);
+			} finally {
+				decaying.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Estimates a percentile of the recorded latencies
+	 * 
+	 * @param percentile
+	 *            between 0 and 1, e.g. 0.95
+	 * @return the upper bound of the bucket of the percentile in nanoseconds, or {@link Double#NaN} if there are no
+	 *         samples
+	 */
+	public double getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return Double.NaN;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return upperBound(i);
+			}
+		}
+		return upperBound(BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the number of samples the percentiles are computed on, which is halved at the end of each window
+	 * 
+	 * @return the number of samples
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) Math.max(0, nanos);
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (msb - 2)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, SUB_BUCKETS * (msb - 1) + sub);
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int msb = bucket / SUB_BUCKETS + 1;
+		int sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1L) << (msb - 2)) - 1;
+	}
+
+	@Override
+	public String toString() {
+		return "[p50=" + getPercentile(0.5) + ",p95=" + getPercentile(0.95) + ",p99=" + getPercentile(0.99) + "]";
+	}
+}
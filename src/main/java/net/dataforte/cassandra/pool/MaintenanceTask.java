@@ -0,0 +1,325 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A background task of a pool, run on a scheduler shared by all the pools of the JVM instead of a thread per pool.
+ * <br/>
+ * Each task has its own schedule: the next run is due {@link #getInterval()} milliseconds, give or take
+ * {@link #JITTER}, after the end of the previous one, so that the tasks of many pools do not wake up together, and a
+ * run which takes longer than the interval delays the next one instead of piling up behind it. A task never runs
+ * concurrently with itself. An earlier run can be asked for with {@link #runSoon(long)}.
+ * <br/>
+ * The shared scheduler has {@link #THREADS_PROPERTY} daemon threads, by default half the processors, between 1 and 4.
+ * It only keeps time: it runs the tasks which never wait on the network, and the timeouts of the borrowers. The tasks
+ * which open, validate or probe connections are {@link #isBlocking() blocking}: when they are due the scheduler hands
+ * them to a second shared executor, which has up to {@link #IO_THREADS_PROPERTY} daemon threads, by default as many as
+ * the processors, between 2 and 16. A host which does not answer can hold those threads until the socket timeout
+ * expires, but never delays a timeout. Both sizes are read once, when the first pool starts.
+ * 
+ * @author Tristan Tarrant
+ */
+public abstract class MaintenanceTask implements Runnable {
+	private static final Logger log = LoggerFactory.getLogger(MaintenanceTask.class);
+
+	/**
+	 * The system property which sets the number of threads of the shared scheduler
+	 */
+	public static final String THREADS_PROPERTY = "net.dataforte.cassandra.pool.maintenanceThreads";
+
+	/**
+	 * The system property which sets the maximum number of threads running the blocking tasks
+	 */
+	public static final String IO_THREADS_PROPERTY = "net.dataforte.cassandra.pool.maintenanceIoThreads";
+
+	/**
+	 * The fraction of the interval by which runs are randomly moved
+	 */
+	public static final double JITTER = 0.1;
+
+	private static final Random random = new Random();
+	private static ScheduledThreadPoolExecutor scheduler;
+	private static ThreadPoolExecutor ioExecutor;
+
+	protected final ConnectionPool pool;
+	private final String name;
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private final AtomicBoolean missed = new AtomicBoolean(false);
+	/**
+	 * Runs the task on the blocking executor, scheduled instead of the task when it is blocking
+	 */
+	private final Runnable dispatcher = new Runnable() {
+		@Override
+		public void run() {
+			getIoExecutor().execute(MaintenanceTask.this);
+		}
+	};
+	private volatile boolean cancelled = false;
+	/**
+	 * Guarded by this
+	 */
+	private ScheduledFuture<?> next;
+	/**
+	 * Guarded by this
+	 */
+	private long nextTime;
+
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong overrunCount = new AtomicLong();
+	private volatile long lastRunTime;
+	private volatile long maxRunTime;
+	private volatile long totalRunTime;
+	private volatile long lastRun;
+
+	protected MaintenanceTask(String name, ConnectionPool pool) {
+		this.name = name;
+		this.pool = pool;
+	}
+
+	/**
+	 * Does the work of the task
+	 * 
+	 * @throws Exception
+	 *             logged, the task runs again on its schedule
+	 */
+	protected abstract void runTask() throws Exception;
+
+	/**
+	 * Returns the time between the end of a run and the start of the next one. Called after every run, so that changes
+	 * to the configuration of the pool apply to the next run.
+	 * 
+	 * @return the interval in milliseconds
+	 */
+	protected abstract long getInterval();
+
+	/**
+	 * Tells whether the task may wait on the network, in which case it runs on the blocking executor rather than on
+	 * the scheduler
+	 * 
+	 * @return true if the task performs blocking I/O, false by default
+	 */
+	protected boolean isBlocking() {
+		return false;
+	}
+
+	/**
+	 * Schedules the first run, one interval from now
+	 */
+	public void start() {
+		runSoon(jitter(getInterval()));
+	}
+
+	/**
+	 * Stops the task. A run in progress completes, but no other run starts.
+	 */
+	public synchronized void cancel() {
+		cancelled = true;
+		if (next != null) {
+			next.cancel(false);
+			next = null;
+		}
+	}
+
+	/**
+	 * Makes sure that the task runs within the given delay. Does nothing if a run is already due by then.
+	 * 
+	 * @param delay
+	 *            in milliseconds
+	 */
+	public synchronized void runSoon(long delay) {
+		if (cancelled) {
+			return;
+		}
+		long time = System.currentTimeMillis() + Math.max(0, delay);
+		if (next != null) {
+			if (nextTime <= time) {
+				return;
+			}
+			next.cancel(false);
+		}
+		nextTime = time;
+		next = getScheduler().schedule(isBlocking() ? dispatcher : this, Math.max(0, delay), TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public final void run() {
+		synchronized (this) {
+			next = null;
+		}
+		if (cancelled) {
+			return;
+		}
+		if (!running.compareAndSet(false, true)) {
+			// asked for while running, run again once done
+			missed.set(true);
+			return;
+		}
+		long interval = getInterval();
+		long start = System.nanoTime();
+		lastRun = System.currentTimeMillis();
+		try {
+			runTask();
+		} catch (Exception x) {
+			log.warn("[" + pool.getName() + "] " + name + " failed, it will be retried.", x);
+		} finally {
+			long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			runCount.incrementAndGet();
+			lastRunTime = time;
+			maxRunTime = Math.max(maxRunTime, time);
+			totalRunTime += time;
+			if (time > interval) {
+				overrunCount.incrementAndGet();
+				if (log.isDebugEnabled()) {
+					log.debug("[" + pool.getName() + "] " + name + " took " + time + "ms, longer than its interval of " + interval + "ms");
+				}
+			}
+			running.set(false);
+			runSoon(missed.getAndSet(false) ? 0 : jitter(getInterval()));
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true once the task has been cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public ConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return the number of completed runs
+	 */
+	public long getRunCount() {
+		return runCount.get();
+	}
+
+	/**
+	 * @return the number of runs which took longer than the interval
+	 */
+	public long getOverrunCount() {
+		return overrunCount.get();
+	}
+
+	/**
+	 * @return the duration of the last run, in milliseconds
+	 */
+	public long getLastRunTime() {
+		return lastRunTime;
+	}
+
+	/**
+	 * @return the duration of the longest run, in milliseconds
+	 */
+	public long getMaxRunTime() {
+		return maxRunTime;
+	}
+
+	/**
+	 * @return the duration of all the runs, in milliseconds
+	 */
+	public long getTotalRunTime() {
+		return totalRunTime;
+	}
+
+	/**
+	 * @return the time the last run started, or 0 if the task has never run
+	 */
+	public long getLastRun() {
+		return lastRun;
+	}
+
+	@Override
+	public String toString() {
+		return "MaintenanceTask [name=" + name + ", runCount=" + getRunCount() + ", lastRunTime=" + lastRunTime + ", maxRunTime=" + maxRunTime
+				+ ", overrunCount=" + getOverrunCount() + "]";
+	}
+
+	private static long jitter(long interval) {
+		return interval + (long) (interval * JITTER * (2 * random.nextDouble() - 1));
+	}
+
+	/**
+	 * Returns the scheduler shared by all the pools, creating it on first use
+	 * 
+	 * @return the shared scheduler
+	 */
+	static synchronized ScheduledThreadPoolExecutor getScheduler() {
+		if (scheduler == null) {
+			int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+			threads = Integer.getInteger(THREADS_PROPERTY, threads);
+			scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "[Pool-Maintenance]-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Returns the executor of the blocking tasks shared by all the pools, creating it on first use. It also validates
+	 * the connections handed to a {@link ConnectionFuture}. Its threads are started on demand and stop after a minute
+	 * without work.
+	 * 
+	 * @return the shared executor of blocking tasks
+	 */
+	static synchronized ExecutorService getIoExecutor() {
+		if (ioExecutor == null) {
+			int threads = Math.max(2, Math.min(16, Runtime.getRuntime().availableProcessors()));
+			threads = Integer.getInteger(IO_THREADS_PROPERTY, threads);
+			ioExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger counter = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "[Pool-Maintenance-IO]-" + counter.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			ioExecutor.allowCoreThreadTimeOut(true);
+		}
+		return ioExecutor;
+	}
+}
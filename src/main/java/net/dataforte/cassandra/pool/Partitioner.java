@@ -0,0 +1,156 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The Cassandra partitioners whose tokens can be computed on the client side, so that a connection to a replica
+ * of a row key can be borrowed. Tokens are represented as byte arrays which sort in the same order as the tokens
+ * of the partitioner when compared with {@link #compare(byte[], byte[])}.
+ * 
+ * @author Tristan Tarrant
+ */
+public enum Partitioner {
+	/**
+	 * The token is the absolute value of the MD5 hash of the key, as a 128-bit unsigned integer
+	 */
+	RANDOM("org.apache.cassandra.dht.RandomPartitioner") {
+		@Override
+		public byte[] getToken(ByteBuffer key) {
+			MessageDigest md5 = MD5.get();
+			md5.reset();
+			md5.update(key.duplicate());
+			return toUnsigned(new BigInteger(md5.digest()).abs());
+		}
+
+		@Override
+		public byte[] parseToken(String token) {
+			return toUnsigned(new BigInteger(token));
+		}
+	},
+	/**
+	 * The token is the key itself, described by the ring as an hex string
+	 */
+	BYTE_ORDERED("org.apache.cassandra.dht.ByteOrderedPartitioner") {
+		@Override
+		public byte[] getToken(ByteBuffer key) {
+			byte[] token = new byte[key.remaining()];
+			key.duplicate().get(token);
+			return token;
+		}
+
+		@Override
+		public byte[] parseToken(String token) {
+			byte[] bytes = new byte[token.length() / 2];
+			for (int i = 0; i < bytes.length; i++) {
+				bytes[i] = (byte) Integer.parseInt(token.substring(i * 2, i * 2 + 2), 16);
+			}
+			return bytes;
+		}
+	};
+
+	private static final int RANDOM_TOKEN_LENGTH = 16;
+
+	private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final String className;
+
+	Partitioner(String className) {
+		this.className = className;
+	}
+
+	/**
+	 * Computes the token of a row key
+	 * 
+	 * @param key
+	 *            the row key, its position is not changed
+	 * @return the token
+	 */
+	public abstract byte[] getToken(ByteBuffer key);
+
+	/**
+	 * Parses a token as returned by describe_ring
+	 * 
+	 * @param token
+	 * @return the token
+	 */
+	public abstract byte[] parseToken(String token);
+
+	/**
+	 * Returns the fully qualified class name of the partitioner, as returned by describe_partitioner
+	 * 
+	 * @return the class name
+	 */
+	public String getClassName() {
+		return className;
+	}
+
+	/**
+	 * Returns the partitioner with the specified class name
+	 * 
+	 * @param className
+	 * @return the partitioner, or null if tokens of that partitioner can't be computed on the client side
+	 */
+	public static Partitioner forClassName(String className) {
+		for (Partitioner partitioner : values()) {
+			if (partitioner.className.equals(className)) {
+				return partitioner;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Compares two tokens as unsigned byte strings
+	 * 
+	 * @param a
+	 * @param b
+	 * @return a negative number, zero or a positive number if a is less than, equal to or greater than b
+	 */
+	public static int compare(byte[] a, byte[] b) {
+		int length = Math.min(a.length, b.length);
+		for (int i = 0; i < length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	private static byte[] toUnsigned(BigInteger token) {
+		// fixed width, so that tokens compare as unsigned byte strings
+		byte[] bytes = token.toByteArray();
+		byte[] unsigned = new byte[RANDOM_TOKEN_LENGTH];
+		int length = Math.min(bytes.length, RANDOM_TOKEN_LENGTH);
+		System.arraycopy(bytes, bytes.length - length, unsigned, RANDOM_TOKEN_LENGTH - length, length);
+		return unsigned;
+	}
+}
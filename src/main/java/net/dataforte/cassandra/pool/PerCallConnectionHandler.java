@@ -0,0 +1,225 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backs the {@link Cassandra.Iface} returned by {@link ConnectionPool#getPerCallConnection()}: each call borrows a
+ * connection and returns it as soon as the call completes, so that connections are only held while waiting for
+ * Cassandra. Calls taking a single row key borrow a connection to one of its replicas, see
+ * {@link ConnectionPool#getConnection(ByteBuffer)}.
+ * <br/>
+ * login and set_keyspace change the state of the connection they are called on, so after one of them succeeds the
+ * connection is pinned: all the following calls use it, until the proxy is closed with {@link Closeable#close()}.
+ * The keyspace of the pool is then restored, or the connection is closed if that is not possible. If the pinned
+ * connection fails, its state is lost with it: all the following calls fail too, rather than running on connections
+ * without the login or keyspace they expect, until the proxy is closed. An unpinned proxy can be shared between
+ * threads, a pinned one cannot.
+ * 
+ * @author Tristan Tarrant
+ */
+public class PerCallConnectionHandler implements InvocationHandler {
+	private static final Logger log = LoggerFactory.getLogger(PerCallConnectionHandler.class);
+
+	/**
+	 * The calls which change the state of the connection
+	 */
+	static final Set<String> PINNING = new HashSet<String>(Arrays.asList("login", "set_keyspace"));
+
+	/**
+	 * The calls whose first argument is a row key
+	 */
+	static final Set<String> KEYED = new HashSet<String>(Arrays.asList("get", "get_slice", "get_count", "insert", "add", "remove", "remove_counter"));
+
+	private final ConnectionPool pool;
+
+	/**
+	 * The connection all the calls go to after a login or set_keyspace, guarded by this
+	 */
+	private PooledCassandraClient pinned;
+	private boolean loggedIn;
+	private String keyspace;
+	/**
+	 * Set when the pinned connection has failed, until the proxy is closed, guarded by this
+	 */
+	private boolean lost;
+
+	public PerCallConnectionHandler(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Creates a proxy backed by a new handler
+	 * 
+	 * @param pool
+	 *            the pool the connections are borrowed from
+	 * @return a proxy implementing {@link Cassandra.Iface} and {@link Closeable}
+	 */
+	public static Cassandra.Iface newProxy(ConnectionPool pool) {
+		return (Cassandra.Iface) Proxy.newProxyInstance(PerCallConnectionHandler.class.getClassLoader(), new Class<?>[] { Cassandra.Iface.class, Closeable.class },
+				new PerCallConnectionHandler(pool));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (method.getDeclaringClass() == Object.class) {
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			} else if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			} else {
+				return "PerCallConnection@" + Integer.toHexString(System.identityHashCode(proxy)) + "[" + pool.getName() + "]";
+			}
+		}
+		if (method.getDeclaringClass() == Closeable.class) {
+			unpin();
+			return null;
+		}
+		synchronized (this) {
+			if (pinned != null || lost || PINNING.contains(name)) {
+				return invokePinned(method, args);
+			}
+		}
+		PooledCassandraClient client = borrow(name, args);
+		try {
+			return call(client, method, args);
+		} finally {
+			pool.release(client);
+		}
+	}
+
+	/**
+	 * Runs a call on the pinned connection, pinning the connection borrowed for a successful login or set_keyspace
+	 */
+	private synchronized Object invokePinned(Method method, Object[] args) throws Throwable {
+		String name = method.getName();
+		if (lost) {
+			throw new TTransportException(TTransportException.NOT_OPEN, "[" + pool.getName() + "] The pinned connection has failed, the proxy must be closed");
+		}
+		PooledCassandraClient client = pinned;
+		boolean leased = (client == null);
+		if (leased) {
+			client = borrow(name, args);
+		}
+		try {
+			Object result = call(client, method, args);
+			if ("login".equals(name)) {
+				loggedIn = true;
+			} else if ("set_keyspace".equals(name)) {
+				keyspace = (String) args[0];
+			}
+			if (leased) {
+				pinned = client;
+				leased = false;
+			}
+			return result;
+		} catch (TTransportException x) {
+			if (!leased) {
+				// the state of the connection is lost with it
+				pinned = null;
+				loggedIn = false;
+				keyspace = null;
+				lost = true;
+				pool.release(client);
+			}
+			throw x;
+		} finally {
+			if (leased) {
+				pool.release(client);
+			}
+		}
+	}
+
+	/**
+	 * Returns the pinned connection to the pool, restoring its keyspace first
+	 */
+	private synchronized void unpin() {
+		lost = false;
+		PooledCassandraClient client = pinned;
+		if (client == null) {
+			return;
+		}
+		pinned = null;
+		String poolKeyspace = pool.getPoolProperties().getKeySpace();
+		boolean restored = !loggedIn;
+		if (restored && keyspace != null && !keyspace.equals(poolKeyspace)) {
+			try {
+				// a keyspace can be changed, but not unset
+				restored = poolKeyspace != null;
+				if (restored) {
+					client.set_keyspace(poolKeyspace);
+				}
+			} catch (Exception x) {
+				restored = false;
+				log.debug("[" + pool.getName() + "] Unable to restore the keyspace of " + client, x);
+			}
+		}
+		loggedIn = false;
+		keyspace = null;
+		if (!restored) {
+			client.getPooledConnection().setDiscarded(true);
+		}
+		pool.release(client);
+	}
+
+	/**
+	 * @return the pinned connection, or null
+	 */
+	synchronized PooledCassandraClient getPinned() {
+		return pinned;
+	}
+
+	private PooledCassandraClient borrow(String name, Object[] args) throws Exception {
+		Cassandra.Client client;
+		if (KEYED.contains(name) && args[0] instanceof ByteBuffer) {
+			client = pool.getConnection((ByteBuffer) args[0]);
+		} else {
+			client = pool.getConnection();
+		}
+		return (PooledCassandraClient) client;
+	}
+
+	/**
+	 * Calls a method on a connection, closing the connection if its transport fails
+	 */
+	private Object call(PooledCassandraClient client, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(client, args);
+		} catch (InvocationTargetException x) {
+			Throwable cause = x.getCause();
+			if (cause instanceof TTransportException) {
+				client.getPooledConnection().setDiscarded(true);
+			}
+			throw cause;
+		}
+	}
+}
@@ -109,6 +109,21 @@ public interface PoolConfiguration {
      * @return whether automatic host discovery is being used
      */
     public boolean isAutomaticHostDiscovery();
+
+    /**
+     * Sets the number of milliseconds between two refreshes of the ring, when {@link #isAutomaticHostDiscovery()} is set.
+     * The ring is refreshed by a background thread over its own connection, and sooner when connecting to a host fails.
+     * The default value is 60000 (60 seconds).
+     * @param ringRefreshInterval
+     */
+    public void setRingRefreshInterval(long ringRefreshInterval);
+
+    /**
+     * Returns the number of milliseconds between two refreshes of the ring
+     * 
+     * @return the ring refresh interval
+     */
+    public long getRingRefreshInterval();
     
     /**
      * Sets the host failover policy, i.e. what to do when connecting to a host fails
@@ -122,6 +137,19 @@ public interface PoolConfiguration {
      */
     public HostFailoverPolicy getFailoverPolicy();
 
+    /**
+     * Sets the host cycle policy, i.e. in which order the hosts of the ring are tried when connecting. The default is
+     * {@link HostCyclePolicy#RANDOM}.
+     */
+    public void setHostCyclePolicy(HostCyclePolicy hostCyclePolicy);
+
+    /**
+     * Returns the host cycle policy.
+     * 
+     * @return the host cycle policy
+     */
+    public HostCyclePolicy getHostCyclePolicy();
+
     /**
      * Connections that have been abandoned (timed out) wont get closed and reported up unless the number of connections in use are 
      * above the percentage defined by abandonWhenPercentageFull. 
@@ -157,6 +185,296 @@ public interface PoolConfiguration {
      * @param fairQueue
      */
     public void setFairQueue(boolean fairQueue);
+
+    /**
+     * Returns true if the connection pool keeps its idle and busy connections in a {@link ConnectionBag}
+     * @return true if the lock-free connection bag is being used
+     */
+    public boolean isUseConnectionBag();
+
+    /**
+     * Set to true if the idle and busy connections should be kept in a lock-free {@link ConnectionBag}
+     * instead of a pair of queues. A thread will first attempt to reuse a connection it has returned
+     * recently, then claim any idle connection and will only wait when no connection is free.
+     * Waiting threads are not served in strict FIFO order, so this setting takes precedence over {@link #setFairQueue(boolean)}. 
+     * The default value is false.
+     * @param useConnectionBag
+     */
+    public void setUseConnectionBag(boolean useConnectionBag);
+
+    /**
+     * Returns the number of stripes the pool is split into
+     * @return the number of stripes
+     */
+    public int getStripes();
+
+    /**
+     * Splits the pool into the specified number of stripes, each one with its own idle queue and its own share of
+     * {@link #getMaxActive()}. A thread borrows from the stripe its id hashes to and steals from the neighbouring 
+     * stripes before waiting, which reduces lock contention when many threads borrow connections concurrently.
+     * The default value is 1, i.e. no striping. Ignored if {@link #isUseConnectionBag()} is set.
+     * @param stripes the number of stripes
+     */
+    public void setStripes(int stripes);
+
+    /**
+     * Returns true if the pool is split into one sub-pool per Cassandra host
+     * @return true if the pool is partitioned by host
+     */
+    public boolean isPartitionedByHost();
+
+    /**
+     * Splits the pool into one sub-pool per Cassandra host, each one with its own idle queue and limits.
+     * A borrow asks the host cycle policy for an ordering of the hosts and takes an idle connection from the
+     * sub-pool of the first host which has one, or creates a connection to the first host which is below
+     * {@link #getMaxActivePerHost()}. The default value is false. Ignored if {@link #isUseConnectionBag()} is set,
+     * and takes precedence over {@link #getStripes()}.
+     * @param partitionedByHost
+     */
+    public void setPartitionedByHost(boolean partitionedByHost);
+
+    /**
+     * Returns the maximum number of connections to a single host
+     * @return the maximum number of connections to a single host
+     */
+    public int getMaxActivePerHost();
+
+    /**
+     * The maximum number of connections that can be open to a single host, when the pool is partitioned by host.
+     * The total number of connections is still limited by {@link #getMaxActive()}. 
+     * The default value is 0, which means that only {@link #getMaxActive()} applies.
+     * @param maxActivePerHost
+     */
+    public void setMaxActivePerHost(int maxActivePerHost);
+
+    /**
+     * Returns the minimum number of idle connections to a single host that are kept in the pool
+     * @return the minimum number of idle connections to a single host
+     */
+    public int getMinIdlePerHost();
+
+    /**
+     * The minimum number of idle connections to a single host that should be kept in the pool at all times, when the pool is
+     * partitioned by host. Only idle connections count: borrowed ones do not make up for them. Idle connections are not
+     * evicted if that would leave fewer than this value idle in the sub-pool of their host, and the background replenisher
+     * opens connections to a host which has fewer, within {@link #getMaxActivePerHost()}.
+     * The default value is 0.
+     * @param minIdlePerHost
+     */
+    public void setMinIdlePerHost(int minIdlePerHost);
+
+    /**
+     * Returns true if idle connections are created by a background thread rather than by the borrowers
+     * @return true if the pool is replenished in the background
+     */
+    public boolean isBackgroundReplenish();
+
+    /**
+     * If set to true, a background thread keeps the pool at {@link #getMinIdle()} connections, {@link #getMinIdlePerHost()}
+     * idle connections per host and {@link #getIdleHeadroom()} idle connections, so that borrowers rarely have to open a connection
+     * themselves. Connections created by the thread are handed to waiting borrowers first.
+     * The default value is false.
+     * @param backgroundReplenish true if the pool should be replenished in the background
+     */
+    public void setBackgroundReplenish(boolean backgroundReplenish);
+
+    /**
+     * Returns the number of idle connections the background replenisher keeps ready for the next borrowers
+     * @return the number of spare idle connections
+     */
+    public int getIdleHeadroom();
+
+    /**
+     * The number of idle connections the background replenisher keeps ready for the next borrowers, on top of the
+     * ones in use, within {@link #getMaxActive()}. Idle connections are not evicted if that would leave fewer.
+     * Only used if {@link #isBackgroundReplenish()} is set. The default value is 0.
+     * @param idleHeadroom the number of spare idle connections
+     */
+    public void setIdleHeadroom(int idleHeadroom);
+
+    /**
+     * Returns the maximum number of connections per second the background replenisher opens
+     * @return the maximum number of connections opened per second
+     */
+    public int getMaxReplenishRate();
+
+    /**
+     * The maximum number of connections per second the background replenisher opens, so that it cannot flood the
+     * cluster with connection attempts. The default value is 10.
+     * @param maxReplenishRate the maximum number of connections opened per second
+     */
+    public void setMaxReplenishRate(int maxReplenishRate);
+
+    /**
+     * Returns the number of idle connections the pool sweeper validates at the same time
+     * @return the number of concurrent validations
+     */
+    public int getIdleValidationParallelism();
+
+    /**
+     * The number of idle connections the pool sweeper validates at the same time, when {@link #isTestWhileIdle()} is set.
+     * The validations run on threads of the pool, so that a slow host does not hold up the sweeper.
+     * If set to 1 the idle connections are validated one at a time by the sweeper itself. The default value is 4.
+     * @param idleValidationParallelism the number of concurrent validations
+     */
+    public void setIdleValidationParallelism(int idleValidationParallelism);
+
+    /**
+     * Returns the maximum time in milliseconds a pass of the idle validation may take
+     * @return the time budget of an idle validation pass
+     */
+    public long getIdleValidationBudget();
+
+    /**
+     * The maximum time in milliseconds a pass of the idle validation may take. Once it is spent no more
+     * connections are validated, the ones which have waited longest are validated first by the next pass.
+     * If zero or negative, {@link #getTimeBetweenEvictionRunsMillis()} is used. The default value is 0.
+     * @param idleValidationBudget the time budget of an idle validation pass in milliseconds
+     */
+    public void setIdleValidationBudget(long idleValidationBudget);
+
+    /**
+     * Returns the number of selector threads driving the connections of an {@link AsyncConnectionPool}
+     * @return the number of selector threads
+     */
+    public int getAsyncSelectorThreads();
+
+    /**
+     * The number of selector threads driving the non-blocking connections of an {@link AsyncConnectionPool}, each
+     * connection is assigned to one of them in turn. The default value is 2.
+     * @param asyncSelectorThreads the number of selector threads
+     */
+    public void setAsyncSelectorThreads(int asyncSelectorThreads);
+
+    /**
+     * Returns the maximum time in milliseconds an operation run by {@link ConnectionPool#execute(Callback)} may take, retries included
+     * @return the maximum time of an operation
+     */
+    public long getMaxOperationTime();
+
+    /**
+     * The maximum time in milliseconds an operation run by {@link ConnectionPool#execute(Callback)} may take, including
+     * the time spent waiting for connections and its retries. No retry is started once it has elapsed.
+     * If zero or negative, operations are only bounded by {@link #getMaxWait()} and the failover policy. The default value is 0.
+     * @param maxOperationTime the maximum time of an operation in milliseconds
+     */
+    public void setMaxOperationTime(long maxOperationTime);
+
+    /**
+     * Returns how long in milliseconds a read run by the {@link HedgingExecutor} waits for its first attempt before hedging it
+     * @return the hedge delay
+     */
+    public long getHedgeDelay();
+
+    /**
+     * How long in milliseconds a read run by the {@link HedgingExecutor} waits for its first attempt before sending
+     * the same read to another host. If zero or negative, the 95th percentile of the latency observed on the host
+     * of the first attempt is used, and reads are not hedged until the host has answered enough calls.
+     * The default value is 0.
+     * @param hedgeDelay the hedge delay in milliseconds
+     */
+    public void setHedgeDelay(long hedgeDelay);
+
+    /**
+     * Returns the maximum percentage of the reads run by the {@link HedgingExecutor} which may be hedged
+     * @return the hedge budget
+     */
+    public int getHedgeBudget();
+
+    /**
+     * The maximum percentage of the reads run by the {@link HedgingExecutor} which may be hedged, so that a slow
+     * cluster isn't flooded with duplicate reads. Zero disables hedging. The default value is 5.
+     * @param hedgeBudget the percentage of the reads which may be hedged
+     */
+    public void setHedgeBudget(int hedgeBudget);
+
+    /**
+     * Returns the number of consecutive failed calls after which a host is ejected
+     * @return the failure threshold of the hosts
+     */
+    public int getHostFailureThreshold();
+
+    /**
+     * The number of consecutive failed calls, e.g. timeouts, after which the circuit breaker of a host opens and the host
+     * is ejected: its idle connections are closed and no connection is opened to it until it is retried, see
+     * {@link #setHostRetryInitialInterval(long)}. A failed connection attempt ejects a host right away. The default value is 5.
+     * @param hostFailureThreshold the number of consecutive failures
+     */
+    public void setHostFailureThreshold(int hostFailureThreshold);
+
+    /**
+     * Returns the percentage of failed calls after which a host is ejected
+     * @return the error rate threshold of the hosts
+     */
+    public int getHostErrorRateThreshold();
+
+    /**
+     * The percentage of failed calls, in a moving average over the recent calls to a host, after which the host is ejected
+     * like after {@link #setHostFailureThreshold(int) hostFailureThreshold} consecutive failures. The rate is only considered
+     * once {@link CircuitBreaker#MIN_CALLS} calls have been made since the host was last restored. Zero disables it.
+     * The default value is 50.
+     * @param hostErrorRateThreshold the percentage of failed calls
+     */
+    public void setHostErrorRateThreshold(int hostErrorRateThreshold);
+
+    /**
+     * Returns the interval in milliseconds before a host is retried after it was first ejected
+     * @return milliseconds before the first retry of a host
+     */
+    public long getHostRetryInitialInterval();
+
+    /**
+     * The interval in milliseconds before a host is retried after it was ejected: the next connection to it is a trial, if
+     * it succeeds the host is restored, otherwise the interval doubles, up to {@link #getHostRetryInterval()}. Each
+     * interval is randomized between half and all of its value, so that the clients of a cluster don't retry a host all
+     * at once. The default value is 1000.
+     * @param hostRetryInitialInterval milliseconds before the first retry of a host
+     */
+    public void setHostRetryInitialInterval(long hostRetryInitialInterval);
+
+    /**
+     * Returns true if the hosts which have been ejected are retried by a background task
+     * @return true if the hosts are probed in the background
+     */
+    public boolean isBackgroundHostProbe();
+
+    /**
+     * If true, the hosts which have been ejected are retried by a background task, the {@link HostProber}, which connects to them
+     * with a timeout of {@link #getHostProbeTimeout()} milliseconds. A host only goes back into rotation after a successful probe,
+     * so that borrowers never pay for connecting to a host which is still down. If false, the first connection attempt after
+     * the retry time of a host is the trial. Read when the pool is created. The default value is true.
+     * @param backgroundHostProbe true to probe the hosts in the background
+     */
+    public void setBackgroundHostProbe(boolean backgroundHostProbe);
+
+    /**
+     * Returns the connect and read timeout in milliseconds of the probes of the hosts
+     * @return the timeout of a probe
+     */
+    public int getHostProbeTimeout();
+
+    /**
+     * The connect and read timeout in milliseconds of the probes of the hosts which have been ejected, see {@link #setBackgroundHostProbe(boolean)}.
+     * The default value is 1000.
+     * @param hostProbeTimeout the timeout of a probe in milliseconds
+     */
+    public void setHostProbeTimeout(int hostProbeTimeout);
+
+    /**
+     * Returns true if the pool shares the state of its cluster with the other pools of the JVM, see {@link ClusterRegistry}
+     * @return true if the cluster state is shared
+     */
+    public boolean isShareClusterState();
+
+    /**
+     * If true, the pool shares the state of its cluster with the other pools of the JVM which have the same hosts and port,
+     * see {@link ClusterRegistry}: the health and the statistics of the hosts, and with the pools which also have the same
+     * keyspace and {@link #getHostCyclePolicy() hostCyclePolicy}, the ring. All the rings of the cluster are refreshed by a single
+     * refresher, over a single connection. The thresholds of the circuit
+     * breakers of the hosts are those of the first pool. Read when the pool is created. The default value is false.
+     * @param shareClusterState true to share the state of the cluster
+     */
+    public void setShareClusterState(boolean shareClusterState);
     
     /**
      * Returns the number of connections that will be established when the connection pool is started.
@@ -174,6 +492,37 @@ public interface PoolConfiguration {
      */
     public void setInitialSize(int initialSize);
 
+    /**
+     * Returns the maximum number of connections which are opened concurrently when the pool is filled with its
+     * {@link #getInitialSize()} connections. Default value is 4.
+     * @return the number of connections opened in parallel during the initial fill
+     */
+    public int getInitialFillParallelism();
+
+    /**
+     * Sets the maximum number of connections which are opened concurrently when the pool is filled with its
+     * {@link #getInitialSize()} connections. A value of 1 opens them one after another.
+     * Default value is 4.
+     * @param initialFillParallelism the number of connections opened in parallel during the initial fill
+     */
+    public void setInitialFillParallelism(int initialFillParallelism);
+
+    /**
+     * Returns true if the pool is filled with its initial connections in the background.
+     * Default value is false.
+     * @return true if the initial fill does not block the creation of the pool
+     */
+    public boolean isAsyncInit();
+
+    /**
+     * If set to true, the creation of the pool returns right away and its {@link #getInitialSize()} connections
+     * are opened in the background: see {@link ConnectionPool#getReadyFuture()}. A failure of the initial fill is
+     * then logged instead of failing the creation of the pool.
+     * Default value is false.
+     * @param asyncInit true if the initial fill should not block the creation of the pool
+     */
+    public void setAsyncInit(boolean asyncInit);
+
     /**
      * boolean flag to set if stack traces should be logged for application code which abandoned a Connection. 
      * Logging of abandoned Connections adds overhead for every Connection borrow because a stack trace has to be generated. 
@@ -617,7 +966,7 @@ public interface PoolConfiguration {
 	String[] getConfiguredHosts();
 
 	/**
-	 * Returns the interval in milliseconds before retrying a host to which a connection has failed in the past.
+	 * Returns the maximum interval in milliseconds before retrying a host which has been ejected.
 	 * Default is 300000 (5 minutes)
 	 * 
 	 * @return milliseconds before host retry
@@ -625,7 +974,8 @@ public interface PoolConfiguration {
 	public long getHostRetryInterval();
 	
 	/**
-	 * Sets the interval in milliseconds before retrying a host to which a connection has failed in the past.
+	 * Sets the maximum interval in milliseconds before retrying a host which has been ejected, the interval starts
+	 * at {@link #getHostRetryInitialInterval()} and doubles after each failed retry.
 	 * @param hostRetryInterval number of millieseconds before retrying a host
 	 */
 	void setHostRetryInterval(long hostRetryInterval);
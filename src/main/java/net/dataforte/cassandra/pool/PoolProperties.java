@@ -51,10 +51,14 @@ public class PoolProperties implements PoolConfiguration {
 	protected int port = DEFAULT_THRIFT_PORT;
 	protected boolean framed = true;
 	protected boolean automaticHostDiscovery = false;
+	protected long ringRefreshInterval = 60000;
 	protected HostFailoverPolicy failoverPolicy = HostFailoverPolicy.ON_FAIL_TRY_ALL_AVAILABLE;
+	protected HostCyclePolicy hostCyclePolicy = HostCyclePolicy.RANDOM;
 	protected int socketTimeout = 5000;
 
 	protected int initialSize = 10;
+	protected int initialFillParallelism = 4;
+	protected boolean asyncInit = false;
 	protected int maxActive = 100;
 	protected int maxIdle = maxActive;
 	protected int minIdle = initialSize;
@@ -80,6 +84,26 @@ public class PoolProperties implements PoolConfiguration {
 
 	protected boolean testOnConnect = false;
 	protected boolean fairQueue = true;
+	protected boolean useConnectionBag = false;
+	protected int stripes = 1;
+	protected boolean partitionedByHost = false;
+	protected int maxActivePerHost = 0;
+	protected int minIdlePerHost = 0;
+	protected boolean backgroundReplenish = false;
+	protected int idleHeadroom = 0;
+	protected int maxReplenishRate = 10;
+	protected int idleValidationParallelism = 4;
+	protected long idleValidationBudget = 0;
+	protected int asyncSelectorThreads = 2;
+	protected long maxOperationTime = 0;
+	protected long hedgeDelay = 0;
+	protected int hedgeBudget = 5;
+	protected int hostFailureThreshold = 5;
+	protected int hostErrorRateThreshold = 50;
+	protected long hostRetryInitialInterval = 1000;
+	protected boolean backgroundHostProbe = true;
+	protected int hostProbeTimeout = 1000;
+	protected boolean shareClusterState = false;
 	protected boolean useEquals = true;
 	protected int abandonWhenPercentageFull = 0;
 	protected long maxAge = 0;
@@ -210,6 +234,326 @@ public class PoolProperties implements PoolConfiguration {
 		this.fairQueue = fairQueue;
 	}	
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isUseConnectionBag() {
+		return useConnectionBag;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setUseConnectionBag(boolean useConnectionBag) {
+		this.useConnectionBag = useConnectionBag;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getStripes() {
+		return stripes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setStripes(int stripes) {
+		this.stripes = stripes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isPartitionedByHost() {
+		return partitionedByHost;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setPartitionedByHost(boolean partitionedByHost) {
+		this.partitionedByHost = partitionedByHost;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getMaxActivePerHost() {
+		return maxActivePerHost;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setMaxActivePerHost(int maxActivePerHost) {
+		this.maxActivePerHost = maxActivePerHost;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getMinIdlePerHost() {
+		return minIdlePerHost;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setMinIdlePerHost(int minIdlePerHost) {
+		this.minIdlePerHost = minIdlePerHost;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isBackgroundReplenish() {
+		return backgroundReplenish;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setBackgroundReplenish(boolean backgroundReplenish) {
+		this.backgroundReplenish = backgroundReplenish;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getIdleHeadroom() {
+		return idleHeadroom;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setIdleHeadroom(int idleHeadroom) {
+		this.idleHeadroom = idleHeadroom;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getMaxReplenishRate() {
+		return maxReplenishRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setMaxReplenishRate(int maxReplenishRate) {
+		this.maxReplenishRate = maxReplenishRate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getIdleValidationParallelism() {
+		return idleValidationParallelism;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setIdleValidationParallelism(int idleValidationParallelism) {
+		this.idleValidationParallelism = idleValidationParallelism;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getIdleValidationBudget() {
+		return idleValidationBudget;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setIdleValidationBudget(long idleValidationBudget) {
+		this.idleValidationBudget = idleValidationBudget;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getAsyncSelectorThreads() {
+		return asyncSelectorThreads;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAsyncSelectorThreads(int asyncSelectorThreads) {
+		this.asyncSelectorThreads = asyncSelectorThreads;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getMaxOperationTime() {
+		return maxOperationTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setMaxOperationTime(long maxOperationTime) {
+		this.maxOperationTime = maxOperationTime;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getHedgeDelay() {
+		return hedgeDelay;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHedgeDelay(long hedgeDelay) {
+		this.hedgeDelay = hedgeDelay;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getHedgeBudget() {
+		return hedgeBudget;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHedgeBudget(int hedgeBudget) {
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getHostFailureThreshold() {
+		return hostFailureThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHostFailureThreshold(int hostFailureThreshold) {
+		this.hostFailureThreshold = hostFailureThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getHostErrorRateThreshold() {
+		return hostErrorRateThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHostErrorRateThreshold(int hostErrorRateThreshold) {
+		this.hostErrorRateThreshold = hostErrorRateThreshold;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long getHostRetryInitialInterval() {
+		return hostRetryInitialInterval;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHostRetryInitialInterval(long hostRetryInitialInterval) {
+		this.hostRetryInitialInterval = hostRetryInitialInterval;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isBackgroundHostProbe() {
+		return backgroundHostProbe;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setBackgroundHostProbe(boolean backgroundHostProbe) {
+		this.backgroundHostProbe = backgroundHostProbe;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getHostProbeTimeout() {
+		return hostProbeTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setHostProbeTimeout(int hostProbeTimeout) {
+		this.hostProbeTimeout = hostProbeTimeout;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isShareClusterState() {
+		return shareClusterState;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setShareClusterState(boolean shareClusterState) {
+		this.shareClusterState = shareClusterState;
+	}
+
 	@Override
 	public boolean isAutomaticHostDiscovery() {
 		return automaticHostDiscovery;
@@ -219,6 +563,16 @@ public class PoolProperties implements PoolConfiguration {
 		this.automaticHostDiscovery = automaticHostDiscovery;
 	}
 
+	@Override
+	public void setRingRefreshInterval(long ringRefreshInterval) {
+		this.ringRefreshInterval = ringRefreshInterval;
+	}
+
+	@Override
+	public long getRingRefreshInterval() {
+		return ringRefreshInterval;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -373,8 +727,7 @@ public class PoolProperties implements PoolConfiguration {
 
 	@Override
 	public long getHostRetryInterval() {
-		// TODO Auto-generated method stub
-		return 0;
+		return hostRetryInterval;
 	}
 
 	/**
@@ -393,6 +746,38 @@ public class PoolProperties implements PoolConfiguration {
 		this.initialSize = initialSize;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getInitialFillParallelism() {
+		return initialFillParallelism;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setInitialFillParallelism(int initialFillParallelism) {
+		this.initialFillParallelism = initialFillParallelism;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isAsyncInit() {
+		return asyncInit;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setAsyncInit(boolean asyncInit) {
+		this.asyncInit = asyncInit;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -882,6 +1267,16 @@ public class PoolProperties implements PoolConfiguration {
 		return failoverPolicy;
 	}
 
+	@Override
+	public void setHostCyclePolicy(HostCyclePolicy hostCyclePolicy) {
+		this.hostCyclePolicy = hostCyclePolicy;
+	}
+
+	@Override
+	public HostCyclePolicy getHostCyclePolicy() {
+		return hostCyclePolicy;
+	}
+
 	@Override
 	public void setDataSourceJNDI(String jndiDS) {
 		this.dataSourceJNDI = jndiDS;
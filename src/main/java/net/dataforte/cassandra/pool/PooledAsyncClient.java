@@ -0,0 +1,171 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingTransport;
+
+/**
+ * A {@link Cassandra.AsyncClient} handed out by an {@link AsyncConnectionPool}. It carries the state the pool keeps
+ * about the connection, so that returning it to the pool doesn't require any lookup.
+ * <br/>
+ * Like any {@link Cassandra.AsyncClient}, it can only run one call at a time, and its callbacks run on the selector
+ * thread, which must not be blocked. The client must not be used after it has been released.
+ * <br/>
+ * While the client is borrowed, the latency of each call which completes and the failure of each call which doesn't
+ * are reported to its {@link CassandraHost}, as for the blocking connections.
+ * 
+ * @author Tristan Tarrant
+ */
+public class PooledAsyncClient extends Cassandra.AsyncClient {
+	private final AsyncConnectionPool pool;
+	private final CassandraHost host;
+	private final long created = System.currentTimeMillis();
+	private volatile long timestamp = created;
+	private volatile long lastValidated = created;
+	private final AtomicBoolean borrowed = new AtomicBoolean(false);
+	/**
+	 * When the running call started, only read and written by the caller and then the selector thread
+	 */
+	private volatile long callStart;
+
+	public PooledAsyncClient(AsyncConnectionPool pool, CassandraHost host, TProtocolFactory protocolFactory, TAsyncClientManager manager,
+			TNonblockingTransport transport) {
+		super(protocolFactory, manager, transport);
+		this.pool = pool;
+		this.host = host;
+	}
+
+	/**
+	 * Returns the pool which owns this client
+	 * 
+	 * @return the pool
+	 */
+	public AsyncConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Returns the host this client is connected to
+	 * 
+	 * @return the host
+	 */
+	public CassandraHost getCassandraHost() {
+		return host;
+	}
+
+	/**
+	 * Returns true if a call is still running
+	 * 
+	 * @return true if the client is busy
+	 */
+	public boolean isBusy() {
+		return currentMethod != null;
+	}
+
+	/**
+	 * Returns when the connection was opened
+	 * 
+	 * @return a timestamp as defined by {@link System#currentTimeMillis()}
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * Returns when the client was last handed out or returned
+	 * 
+	 * @return a timestamp as defined by {@link System#currentTimeMillis()}
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Returns when the connection was last validated
+	 * 
+	 * @return a timestamp as defined by {@link System#currentTimeMillis()}
+	 */
+	public long getLastValidated() {
+		return lastValidated;
+	}
+
+	void setLastValidated(long lastValidated) {
+		this.lastValidated = lastValidated;
+	}
+
+	/**
+	 * Marks the client as handed out
+	 * 
+	 * @return false if it already was
+	 */
+	boolean borrow() {
+		return borrowed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Marks the client as returned
+	 * 
+	 * @return false if it already was, in which case it must not be returned to the pool again
+	 */
+	boolean release() {
+		return borrowed.compareAndSet(true, false);
+	}
+
+	@Override
+	protected void checkReady() {
+		super.checkReady();
+		callStart = System.nanoTime();
+	}
+
+	@Override
+	protected void onComplete() {
+		super.onComplete();
+		if (borrowed.get()) {
+			host.recordLatency(System.nanoTime() - callStart);
+		}
+	}
+
+	@Override
+	protected void onError(Exception exception) {
+		super.onError(exception);
+		if (borrowed.get()) {
+			host.timestamp();
+			host.recordError();
+		}
+	}
+
+	/**
+	 * Closes the connection
+	 */
+	void close() {
+		transport.close();
+	}
+
+	@Override
+	public String toString() {
+		return "PooledAsyncClient@" + Integer.toHexString(System.identityHashCode(this)) + "[" + host + "]";
+	}
+}
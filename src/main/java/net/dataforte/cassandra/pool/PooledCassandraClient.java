@@ -0,0 +1,87 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.thrift.protocol.TProtocol;
+
+/**
+ * A {@link Cassandra.Client} handed out by a {@link ConnectionPool}. It carries a reference to the
+ * {@link PooledConnection} which owns it, so that returning it to the pool doesn't require any lookup.
+ * <br/>
+ * Closing the client returns it to the pool, which allows it to be used in a try-with-resources block.
+ * The client must not be used after it has been closed or released, but closing or releasing it again has no effect.
+ * <br/>
+ * The pool lends the same client every time it lends its connection, until the connection is reopened, so a client
+ * closed once too often while its connection is lent to another thread would still return it: it is up to the
+ * application not to keep clients around.
+ * 
+ * @author Tristan Tarrant
+ */
+public class PooledCassandraClient extends Cassandra.Client implements Closeable {
+	private final PooledConnection pooledConnection;
+	/**
+	 * Set once the client has been returned to the pool, until the pool lends it again
+	 */
+	private final AtomicBoolean returned = new AtomicBoolean();
+
+	public PooledCassandraClient(TProtocol protocol, PooledConnection pooledConnection) {
+		super(protocol);
+		this.pooledConnection = pooledConnection;
+	}
+
+	/**
+	 * Returns the pooled connection which owns this client
+	 * 
+	 * @return the pooled connection
+	 */
+	public PooledConnection getPooledConnection() {
+		return pooledConnection;
+	}
+
+	/**
+	 * Returns this client to the pool it was borrowed from, see {@link ConnectionPool#release(Cassandra.Client)}
+	 */
+	@Override
+	public void close() {
+		pooledConnection.parent.release(this);
+	}
+
+	/**
+	 * Called by the pool when it lends the connection of this client
+	 */
+	void lend() {
+		returned.set(false);
+	}
+
+	/**
+	 * Marks this client as returned to the pool
+	 * 
+	 * @return true if it had not been returned since it was lent
+	 */
+	boolean markReturned() {
+		return returned.compareAndSet(false, true);
+	}
+
+	@Override
+	public String toString() {
+		return "PooledCassandraClient@" + Integer.toHexString(System.identityHashCode(this));
+	}
+}
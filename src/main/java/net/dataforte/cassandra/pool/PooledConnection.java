@@ -16,11 +16,13 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.cassandra.thrift.AuthenticationException;
@@ -73,6 +75,23 @@ public class PooledConnection {
      */
     public static final int VALIDATE_INIT = 4;
 
+    /**
+     * The connection is idle and may be claimed by a borrower
+     */
+    public static final int STATE_NOT_IN_USE = 0;
+    /**
+     * The connection has been handed out (or is being created) by the pool
+     */
+    public static final int STATE_IN_USE = 1;
+    /**
+     * The connection is idle but has been claimed by a maintenance task (validation, eviction, ring refresh)
+     */
+    public static final int STATE_RESERVED = 2;
+    /**
+     * The connection has been removed from the pool and will not be handed out again
+     */
+    public static final int STATE_REMOVED = -1;
+
     /**
      * The properties for the connection pool
      */
@@ -80,7 +99,7 @@ public class PooledConnection {
     /**
      * The underlying database connection
      */
-    private volatile Cassandra.Client connection;
+    private volatile PooledCassandraClient connection;
     
     /**
      * The underlying transport for the connection
@@ -124,7 +143,38 @@ public class PooledConnection {
     private AtomicBoolean released = new AtomicBoolean(false);
     
     private volatile boolean suspect = false;
-    
+
+    /**
+     * The ownership state of this connection, changed with CAS so that borrowers and maintenance tasks can claim
+     * a connection without looking it up in the pool queues. A new connection belongs to the thread which is creating it.
+     */
+    private final AtomicInteger state = new AtomicInteger(STATE_IN_USE);
+
+    /**
+     * The sub-pool of the pool whose limits this connection counts against
+     */
+    private volatile int subPool = 0;
+
+    /**
+     * The host this connection is connected to, or is bound to
+     */
+    private volatile CassandraHost cassandraHost = null;
+
+    /**
+     * The host whose active count this connection has been counted in, while it is checked out by the application
+     */
+    private final AtomicReference<CassandraHost> borrowedFrom = new AtomicReference<CassandraHost>();
+
+    /**
+     * If true, this connection only ever connects to {@link #cassandraHost} instead of cycling the hosts of the ring
+     */
+    private volatile boolean boundToHost = false;
+
+    /**
+     * The pending suspect or abandon check of this connection, while it is checked out by the application
+     */
+    private volatile TimingWheel.Timeout<PooledConnection> abandonTimer = null;
+
     /**
      * Constructor
      * @param prop - pool properties
@@ -137,6 +187,15 @@ public class PooledConnection {
     }
 
     public void connect() throws TException {
+        connect(Collections.<CassandraHost>emptySet());
+    }
+
+    /**
+     * Opens the connection to the first host of the ring which is not in the specified set
+     * @param avoid - the hosts not to connect to, e.g. those an operation has already failed on
+     * @throws TException if no host could be connected to
+     */
+    public void connect(Set<CassandraHost> avoid) throws TException {
         if (released.get()) throw new TException("[" + parent.getName() + "] A connection once released, can't be reestablished.");
         if (connection != null) {
             try {
@@ -146,30 +205,37 @@ public class PooledConnection {
             } //catch
         } //end if
         
-        List<CassandraHost> hosts = parent.getCassandraRing().getHosts();
-        Iterator<CassandraHost> hostIterator = hosts.iterator();
+        Iterator<CassandraHost> hostIterator = boundToHost ? Collections.singletonList(cassandraHost).iterator() : parent.getCassandraRing().hostIterator();
         int tried = 0;
         CassandraHost host = null;
         for(this.transport=null; this.transport==null; ) {
         	if(tried>poolProperties.getFailoverPolicy().numRetries || !hostIterator.hasNext()) {
-        		throw new TException("[" + parent.getName() + "] Could not connect to any hosts");
+        		throw new TException("[" + parent.getName() + "] Could not connect to " + (boundToHost ? "host " + cassandraHost.getHost() : "any hosts"));
         	}
         	host = hostIterator.next();
-        	// If the host is good or the validation interval has passed since last checking with it, attempt to get a connection
-        	if(host.isGood() || (host.getLastUsed()+poolProperties.getHostRetryInterval() < System.currentTimeMillis())) {        		
+        	if (avoid.contains(host)) {
+        		continue;
+        	}
+        	// If the host is in rotation or its retry time has come, attempt to get a connection
+        	long trial = host.acquireConnect(System.currentTimeMillis());
+        	if(trial != CircuitBreaker.DENIED) {
 		        try {
 			        TSocket socket = new TSocket(host.getHost(), poolProperties.getPort(), poolProperties.getSocketTimeout());	    
+					// record the connect time, call latency and errors of the host
 					if (poolProperties.isFramed())
-						this.transport = new TFastFramedTransport(socket);
+						this.transport = new HostStatsTransport(new TFastFramedTransport(socket), host);
 					else
-						this.transport = socket;
+						this.transport = new HostStatsTransport(socket, host);
 					host.timestamp();
 					this.transport.open();
-					host.setGood(true);
+					// a successful trial restores the host
+					host.recordTrialSuccess(trial);
 		        } catch (TTransportException tte) {
 		        	host.timestamp();
-		        	host.setGood(false);
-		        	log.warn("[" + parent.getName() + "] Failed connection to "+host);		        	
+		        	host.eject();
+		        	log.warn("[" + parent.getName() + "] Failed connection to "+host);
+		        	// the host may have left the ring
+		        	parent.requestRingRefresh();
 		        	this.transport = null;
 		        	tried++;
 		        }
@@ -177,7 +243,7 @@ public class PooledConnection {
         }
 		TProtocol protocol = new TBinaryProtocol(this.transport);
 
-		this.connection = new Cassandra.Client(protocol);
+		this.connection = new PooledCassandraClient(protocol, this);
 		
 		if(poolProperties.getUsername()!=null) {
 			AuthenticationRequest authenticationRequest = new AuthenticationRequest();
@@ -206,6 +272,7 @@ public class PooledConnection {
 		}
 		
                         
+        this.cassandraHost = host;
         this.discarded = false;
         this.lastConnected = System.currentTimeMillis();
         if(log.isDebugEnabled()) {
@@ -235,12 +302,24 @@ public class PooledConnection {
         this.connect();
     } //reconnect
 
+    /**
+     * Issues a call to {@link #disconnect(boolean)} with the argument false followed by a call to
+     * {@link #connect(Set)}
+     * @param avoid - the hosts not to reconnect to
+     * @throws TException if the call to {@link #connect(Set)} fails.
+     */
+    public void reconnect(Set<CassandraHost> avoid) throws TException {
+        this.disconnect(false);
+        this.connect(avoid);
+    }
+
     /**
      * Disconnects the connection. All exceptions are logged using debug level.
      * @param finalize if set to true, a call to {@link ConnectionPool#finalize(PooledConnection)} is called.
      */
     private void disconnect(boolean finalize) {
-        if (isDiscarded()) {
+        // a connection discarded by setDiscarded(true) still has to be closed
+        if (isDiscarded() && connection == null) {
             return;
         }
         setDiscarded(true);
@@ -325,13 +404,15 @@ public class PooledConnection {
         }
 
         try {
-        	if(parent.getPoolProperties().isAutomaticHostDiscovery()) {
-        		parent.getCassandraRing().refresh(connection); // Bonus: we validate the connection and also get an updated list of hosts from Cassandra
-        	} else {
-        		String cluster_name = connection.describe_cluster_name();
-        		if(log.isTraceEnabled()) {
-        			log.trace("[" + parent.getName() + "] Validated connection "+this.toString()+", cluster name = "+cluster_name);
-        		}
+        	// a cheap probe, the ring is refreshed by the RingRefresher of the pool
+        	long start = System.nanoTime();
+        	String cluster_name = connection.describe_cluster_name();
+        	CassandraHost host = cassandraHost;
+        	if (host != null) {
+        		host.recordValidationTime(System.nanoTime() - start);
+        	}
+        	if(log.isTraceEnabled()) {
+        		log.trace("[" + parent.getName() + "] Validated connection "+this.toString()+", cluster name = "+cluster_name);
         	}
             this.lastValidated = now;
             return true;
@@ -408,6 +489,14 @@ public class PooledConnection {
         this.suspect = suspect;
     }
 
+    public TimingWheel.Timeout<PooledConnection> getAbandonTimer() {
+        return abandonTimer;
+    }
+
+    public void setAbandonTimer(TimingWheel.Timeout<PooledConnection> abandonTimer) {
+        this.abandonTimer = abandonTimer;
+    }
+
     /**
      * An interceptor can call this method with the value true, and the connection will be closed when it is returned to the pool.
      * @param discarded - only valid value is true
@@ -506,6 +595,19 @@ public class PooledConnection {
     public TTransport getTransport() {
         return this.transport;
     }
+
+    /**
+     * Makes the call in progress on this connection fail, called by a thread other than the one running it. The
+     * connection must be discarded afterwards.
+     */
+    public void abort() {
+        TTransport transport = this.transport;
+        if (transport instanceof HostStatsTransport) {
+            ((HostStatsTransport) transport).abort();
+        } else if (transport != null) {
+            transport.close();
+        }
+    }
     
     
     /**
@@ -528,7 +630,98 @@ public class PooledConnection {
     public boolean isReleased() {
         return released.get();
     }
+
+    /**
+     * Returns the ownership state of this connection
+     * @return one of {@link #STATE_NOT_IN_USE}, {@link #STATE_IN_USE}, {@link #STATE_RESERVED} or {@link #STATE_REMOVED}
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * Atomically changes the ownership state of this connection if it currently is in the expected state
+     * @param expect the expected state
+     * @param update the new state
+     * @return true if the state was changed
+     */
+    public boolean compareAndSetState(int expect, int update) {
+        return state.compareAndSet(expect, update);
+    }
+
+    /**
+     * Unconditionally sets the ownership state of this connection
+     * @param update the new state
+     * @return the previous state
+     */
+    public int getAndSetState(int update) {
+        return state.getAndSet(update);
+    }
     
+    /**
+     * Returns the sub-pool of the pool which created this connection
+     * @return the index of the sub-pool
+     */
+    public int getSubPool() {
+        return subPool;
+    }
+
+    /**
+     * Sets the sub-pool of the pool which created this connection
+     * @param subPool the index of the sub-pool
+     */
+    public void setSubPool(int subPool) {
+        this.subPool = subPool;
+    }
+
+    /**
+     * Returns the host this connection is connected to, or is bound to
+     * @return the host, null if the connection has never been connected
+     */
+    public CassandraHost getCassandraHost() {
+        return cassandraHost;
+    }
+
+    /**
+     * Binds this connection to a host: from now on it will only connect to that host
+     * @param host the host
+     */
+    public void bindTo(CassandraHost host) {
+        this.cassandraHost = host;
+        this.boundToHost = true;
+    }
+
+    /**
+     * Marks this connection as checked out by the application or returned, keeping the active count of its host.
+     * Marking a connection twice in the same way has no effect.
+     * @param borrowed true when the connection is handed to the application, false when it comes back
+     */
+    public void setBorrowed(boolean borrowed) {
+        if (borrowed) {
+            PooledCassandraClient client = connection;
+            if (client != null) {
+                client.lend();
+            }
+            CassandraHost host = cassandraHost;
+            if (host != null && borrowedFrom.compareAndSet(null, host)) {
+                host.incrementActive();
+            }
+        } else {
+            CassandraHost host = borrowedFrom.getAndSet(null);
+            if (host != null) {
+                host.decrementActive();
+            }
+        }
+    }
+
+    /**
+     * Returns true if this connection has been bound to a host
+     * @return true if the connection only connects to {@link #getCassandraHost()}
+     */
+    public boolean isBoundToHost() {
+        return boundToHost;
+    }
+
     public HashMap<Object,Object> getAttributes() {
         return attributes;
     }
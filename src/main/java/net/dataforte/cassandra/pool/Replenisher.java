@@ -0,0 +1,71 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Opens connections off the request path, so that the pool keeps its minimum and spare idle connections without the
+ * borrowers paying for connect, login and set_keyspace. See {@link ConnectionPool#replenish()} for what is created.
+ * <br/>
+ * The pool wakes the replenisher up whenever a connection is borrowed or released, and it also looks by itself every
+ * {@link PoolConfiguration#getTimeBetweenEvictionRunsMillis()}. Connections are opened one at a time, at most
+ * {@link PoolConfiguration#getMaxReplenishRate()} per second, and after a failure it backs off until the next check.
+ * 
+ * @author Tristan Tarrant
+ */
+public class Replenisher extends MaintenanceTask {
+	private final AtomicBoolean pending = new AtomicBoolean(false);
+	private volatile long lastCreated = 0;
+
+	public Replenisher(ConnectionPool pool) {
+		super("replenish", pool);
+	}
+
+	@Override
+	protected long getInterval() {
+		return Math.max(1, pool.getPoolProperties().getTimeBetweenEvictionRunsMillis());
+	}
+
+	@Override
+	protected boolean isBlocking() {
+		return true;
+	}
+
+	@Override
+	protected void runTask() throws Exception {
+		pending.set(false);
+		if (pool.replenish()) {
+			lastCreated = System.currentTimeMillis();
+			// throttle, so that a burst of demand or a restarted cluster does not cause a connect storm
+			runSoon(getPause());
+		}
+	}
+
+	/**
+	 * Asks the replenisher to check the pool, without waiting for it. Cheap enough to be called on every borrow.
+	 */
+	public void wakeUp() {
+		if (!pending.get() && pending.compareAndSet(false, true)) {
+			runSoon(lastCreated + getPause() - System.currentTimeMillis());
+		}
+	}
+
+	private long getPause() {
+		return 1000 / Math.max(1, pool.getPoolProperties().getMaxReplenishRate());
+	}
+}
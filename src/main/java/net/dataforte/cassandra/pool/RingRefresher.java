@@ -0,0 +1,171 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the {@link CassandraRing} of a pool up to date, on its own schedule and over its own connection, so that
+ * neither borrowers nor the validation of pooled connections ever pay for the topology RPCs.
+ * <br/>
+ * Refreshes are deduplicated: requests which arrive while a refresh is pending are merged into it, a thread which
+ * asks for a refresh while another one is running waits for that one instead of starting its own, and requested
+ * refreshes are never closer than {@link #MIN_REFRESH_INTERVAL} to each other. The pools which share the state of
+ * their cluster have a single refresher, owned by the {@link ClusterRegistry} and run on the schedule of one of
+ * them, which refreshes all the rings of the cluster over one connection.
+ * <br/>
+ * The rings are only locked to publish what the RPCs returned, never while connecting or waiting for an answer.
+ * 
+ * @author Tristan Tarrant
+ */
+public class RingRefresher extends MaintenanceTask {
+	private static final Logger log = LoggerFactory.getLogger(RingRefresher.class);
+
+	/**
+	 * The minimum time between two refreshes, in milliseconds, even when refreshes are requested
+	 */
+	public static final long MIN_REFRESH_INTERVAL = 1000;
+
+	private volatile long lastRefresh = 0;
+	/**
+	 * Held while refreshing, so that refreshes run one at a time
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * The number of refreshes so far, only incremented under the lock
+	 */
+	private volatile long refreshes = 0;
+	/**
+	 * The outcome of the last refresh, guarded by the lock
+	 */
+	private boolean refreshed = false;
+	/**
+	 * Guarded by the lock
+	 */
+	private PooledConnection connection;
+
+	public RingRefresher(ConnectionPool pool) {
+		super("ringRefresh", pool);
+		if (getInterval() <= 0) {
+			throw new IllegalArgumentException("The ring refresh interval must be positive: " + getInterval());
+		}
+	}
+
+	@Override
+	protected long getInterval() {
+		return pool.getPoolProperties().getRingRefreshInterval();
+	}
+
+	@Override
+	protected boolean isBlocking() {
+		return true;
+	}
+
+	@Override
+	protected void runTask() {
+		refresh();
+	}
+
+	/**
+	 * Asks for a refresh as soon as possible, without waiting for it. Requests made while one is pending are merged.
+	 */
+	public void requestRefresh() {
+		runSoon(lastRefresh + MIN_REFRESH_INTERVAL - System.currentTimeMillis());
+	}
+
+	/**
+	 * Refreshes the rings on the calling thread. If another refresh is running, waits for it instead of starting a new one.
+	 * 
+	 * @return true if the rings have been refreshed, by this thread or by the one which was already refreshing them
+	 */
+	public boolean refresh() {
+		long count = refreshes;
+		lock.lock();
+		try {
+			if (refreshes != count) {
+				// refreshed while we were waiting
+				return refreshed;
+			}
+			try {
+				if (connection == null) {
+					connection = new PooledConnection(pool.getPoolProperties(), pool);
+					connection.connect();
+				}
+				for (Map.Entry<CassandraRing, String> ring : getRings().entrySet()) {
+					ring.getKey().refresh(connection.getConnection(), ring.getValue());
+					if (log.isDebugEnabled()) {
+						log.debug("[" + pool.getName() + "] refreshRing success, ring = " + ring.getKey());
+					}
+				}
+				refreshed = true;
+			} catch (Exception e) {
+				log.warn("[" + pool.getName() + "] refreshRing failed, it will be retried.", e);
+				// start over with a connection to another host
+				disconnect();
+				refreshed = false;
+			} finally {
+				refreshes++;
+				lastRefresh = System.currentTimeMillis();
+				if (isCancelled()) {
+					disconnect();
+				}
+			}
+			return refreshed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the rings to refresh, with the keyspace whose replicas each of them maps
+	 * 
+	 * @return the ring of the pool, or all the rings of its cluster if it shares them
+	 */
+	protected Map<CassandraRing, String> getRings() {
+		if (pool.getPoolProperties().isShareClusterState()) {
+			return ClusterRegistry.getRings(pool);
+		}
+		return Collections.singletonMap(pool.getCassandraRing(), pool.getPoolProperties().getKeySpace());
+	}
+
+	/**
+	 * Stops the refresher without waiting for a refresh in progress, which closes the connection once done
+	 */
+	@Override
+	public void cancel() {
+		super.cancel();
+		if (lock.tryLock()) {
+			try {
+				disconnect();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void disconnect() {
+		if (connection != null) {
+			connection.release();
+			connection = null;
+		}
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An idle queue split into several sub-pools, each one with its own queue and lock. Borrowers poll and wait
+ * on the queues of the sub-pools directly, in the order chosen by the pool; this queue presents all of them
+ * as a single queue to the rest of the pool.
+ * <br/>
+ * A connection is offered back to the sub-pool which created it. Striped sub-pools hand it over to another
+ * sub-pool which has waiting threads if their own has none; the connections of a per-host sub-pool are bound
+ * to its host, so they always stay in it.
+ * <br/>
+ * Not all of the methods of the {@link java.util.concurrent.BlockingQueue} are implemented.
+ * 
+ * @author Tristan Tarrant
+ */
+public class SubPoolBlockingQueue extends AbstractQueue<PooledConnection> implements BlockingQueue<PooledConnection> {
+
+	volatile ConnectionPool.SubPool[] subPools;
+
+	public SubPoolBlockingQueue(ConnectionPool.SubPool[] subPools) {
+		this.subPools = subPools;
+	}
+
+	/**
+	 * Replaces the sub-pools, when the pool grows a new one. The new array must contain all of the previous sub-pools
+	 * at the same positions.
+	 * 
+	 * @param subPools
+	 */
+	public void setSubPools(ConnectionPool.SubPool[] subPools) {
+		this.subPools = subPools;
+	}
+
+	//------------------------------------------------------------------
+	// USED BY CONPOOL IMPLEMENTATION
+	//------------------------------------------------------------------
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean offer(PooledConnection e) {
+		ConnectionPool.SubPool[] subPools = this.subPools;
+		ConnectionPool.SubPool own = subPools[e.getSubPool()];
+		if (own.host == null && own.waitcount.get() == 0) {
+			for (int i = 1; i < subPools.length; i++) {
+				ConnectionPool.SubPool neighbour = subPools[(own.index + i) % subPools.length];
+				if (neighbour.waitcount.get() > 0) {
+					return neighbour.idle.offer(e);
+				}
+			}
+		}
+		return own.idle.offer(e);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean offer(PooledConnection e, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(e);
+	}
+
+	/**
+	 * Polls the sub-pools in order
+	 * {@inheritDoc}
+	 */
+	public PooledConnection poll() {
+		for (ConnectionPool.SubPool subPool : subPools) {
+			PooledConnection con = subPool.idle.poll();
+			if (con != null) {
+				return con;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Polls all the sub-pools, then waits on the first one
+	 * {@inheritDoc}
+	 */
+	public PooledConnection poll(long timeout, TimeUnit unit) throws InterruptedException {
+		PooledConnection con = poll();
+		ConnectionPool.SubPool[] subPools = this.subPools;
+		if (con == null && timeout > 0 && subPools.length > 0) {
+			con = subPools[0].idle.poll(timeout, unit);
+		}
+		return con;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(Object o) {
+		PooledConnection con = (PooledConnection) o;
+		ConnectionPool.SubPool[] subPools = this.subPools;
+		// the connection is most likely in its own sub-pool, but it may have been handed to another one
+		for (int i = 0; i < subPools.length; i++) {
+			if (subPools[(con.getSubPool() + i) % subPools.length].idle.remove(con)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean contains(Object o) {
+		for (ConnectionPool.SubPool subPool : subPools) {
+			if (subPool.idle.contains(o)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int size() {
+		int size = 0;
+		for (ConnectionPool.SubPool subPool : subPools) {
+			size += subPool.idle.size();
+		}
+		return size;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<PooledConnection> iterator() {
+		return new SubPoolIterator(subPools);
+	}
+
+	//------------------------------------------------------------------
+	// NOT USED BY CONPOOL IMPLEMENTATION
+	//------------------------------------------------------------------
+	/**
+	 * {@inheritDoc}
+	 */
+	public void put(PooledConnection e) throws InterruptedException {
+		offer(e);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public PooledConnection take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int remainingCapacity() {
+		int capacity = 0;
+		for (ConnectionPool.SubPool subPool : subPools) {
+			capacity += subPool.idle.remainingCapacity();
+			if (capacity < 0) {
+				return Integer.MAX_VALUE;
+			}
+		}
+		return capacity;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @throws UnsupportedOperationException - this operation is not supported
+	 */
+	public int drainTo(Collection<? super PooledConnection> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @throws UnsupportedOperationException - this operation is not supported
+	 */
+	public int drainTo(Collection<? super PooledConnection> c, int maxElements) {
+		throw new UnsupportedOperationException("int drainTo(Collection<? super E> c, int maxElements)");
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @throws UnsupportedOperationException - this operation is not supported
+	 */
+	public PooledConnection peek() {
+		throw new UnsupportedOperationException("E peek()");
+	}
+
+	//------------------------------------------------------------------
+	// Iterator chaining the iterators of the sub-pools
+	//------------------------------------------------------------------
+	protected static class SubPoolIterator implements Iterator<PooledConnection> {
+		final ConnectionPool.SubPool[] subPools;
+		int index = -1;
+		Iterator<PooledConnection> current = null;
+
+		SubPoolIterator(ConnectionPool.SubPool[] subPools) {
+			this.subPools = subPools;
+		}
+
+		public boolean hasNext() {
+			while ((current == null || !current.hasNext()) && index < subPools.length - 1) {
+				current = subPools[++index].idle.iterator();
+			}
+			return current != null && current.hasNext();
+		}
+
+		public PooledConnection next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException();
+			}
+			current.remove();
+		}
+	}
+}
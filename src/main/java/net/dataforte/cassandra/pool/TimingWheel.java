@@ -0,0 +1,235 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hashed timing wheel: timeouts are hashed by their deadline into a ring of buckets, one per tick, so that
+ * scheduling and cancelling a timeout are O(1) and {@link #advance(long)} only visits the buckets of the elapsed ticks,
+ * instead of scanning every pending timeout.
+ * <br/>
+ * Timeouts expire at most one tick late, when {@link #advance(long)} is called at least once per tick. A timeout
+ * further away than a whole turn of the wheel stays in its bucket until its turn comes.
+ * 
+ * @author Tristan Tarrant
+ * 
+ * @param <T>
+ *            the type of the objects the timeouts are attached to
+ */
+public class TimingWheel<T> {
+
+	/**
+	 * Receives the timeouts which expire
+	 */
+	public interface Handler<T> {
+		/**
+		 * Called by {@link TimingWheel#advance(long)}, outside of any lock of the wheel, for each expired timeout
+		 * 
+		 * @param timeout
+		 */
+		void expired(Timeout<T> timeout);
+	}
+
+	private final long tickMillis;
+	private final Timeout<T>[] buckets;
+	private final int mask;
+	private final Handler<T> handler;
+	private final AtomicInteger size = new AtomicInteger();
+	/**
+	 * The last tick processed by {@link #advance(long)}, guarded by this
+	 */
+	private volatile long tick;
+
+	/**
+	 * @param tickMillis
+	 *            the duration of a tick, in milliseconds
+	 * @param ticksPerWheel
+	 *            the number of buckets, rounded up to a power of two
+	 * @param handler
+	 *            receives the expired timeouts
+	 */
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickMillis, int ticksPerWheel, Handler<T> handler) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("The tick must be positive: " + tickMillis);
+		}
+		int n = 1;
+		while (n < ticksPerWheel) {
+			n <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.mask = n - 1;
+		this.handler = handler;
+		this.tick = System.currentTimeMillis() / tickMillis;
+		// each bucket is the sentinel of a circular list
+		this.buckets = new Timeout[n];
+		for (int i = 0; i < n; i++) {
+			buckets[i] = new Timeout<T>(null, null, 0, 0, null);
+			buckets[i].prev = buckets[i];
+			buckets[i].next = buckets[i];
+		}
+	}
+
+	/**
+	 * Schedules a timeout
+	 * 
+	 * @param target
+	 *            the object the timeout is attached to
+	 * @param deadline
+	 *            the time the timeout expires, in milliseconds
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout<T> schedule(T target, long deadline) {
+		// round up, and never into a tick which has already been processed
+		long expiry = Math.max((deadline + tickMillis - 1) / tickMillis, tick + 1);
+		Timeout<T> bucket = buckets[(int) (expiry & mask)];
+		Timeout<T> timeout = new Timeout<T>(this, target, deadline, expiry, bucket);
+		synchronized (bucket) {
+			timeout.prev = bucket.prev;
+			timeout.next = bucket;
+			bucket.prev.next = timeout;
+			bucket.prev = timeout;
+		}
+		size.incrementAndGet();
+		return timeout;
+	}
+
+	/**
+	 * Expires the timeouts whose deadline has passed, visiting the buckets of the ticks elapsed since the previous call
+	 * 
+	 * @param now
+	 *            the current time, in milliseconds
+	 * @return the number of expired timeouts
+	 */
+	public int advance(long now) {
+		List<Timeout<T>> expired = new ArrayList<Timeout<T>>();
+		synchronized (this) {
+			long current = now / tickMillis;
+			// a whole turn visits every bucket
+			long last = Math.min(current, tick + buckets.length);
+			for (long t = tick + 1; t <= last; t++) {
+				Timeout<T> bucket = buckets[(int) (t & mask)];
+				synchronized (bucket) {
+					Timeout<T> timeout = bucket.next;
+					while (timeout != bucket) {
+						Timeout<T> next = timeout.next;
+						if (timeout.expiry <= current) {
+							timeout.unlink();
+							expired.add(timeout);
+						}
+						timeout = next;
+					}
+				}
+			}
+			tick = Math.max(tick, current);
+		}
+		int count = 0;
+		for (Timeout<T> timeout : expired) {
+			size.decrementAndGet();
+			if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+				handler.expired(timeout);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of pending timeouts
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * A pending timeout of a {@link TimingWheel}
+	 */
+	public static final class Timeout<T> {
+		static final int PENDING = 0;
+		static final int CANCELLED = 1;
+		static final int EXPIRED = 2;
+
+		private final TimingWheel<T> wheel;
+		private final T target;
+		private final long deadline;
+		private final long expiry;
+		private final Timeout<T> bucket;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		/**
+		 * Guarded by the bucket
+		 */
+		private Timeout<T> prev, next;
+
+		Timeout(TimingWheel<T> wheel, T target, long deadline, long expiry, Timeout<T> bucket) {
+			this.wheel = wheel;
+			this.target = target;
+			this.deadline = deadline;
+			this.expiry = expiry;
+			this.bucket = bucket;
+		}
+
+		public T getTarget() {
+			return target;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		/**
+		 * Cancels the timeout in O(1), unless it has already expired
+		 * 
+		 * @return true if the timeout has been cancelled
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			synchronized (bucket) {
+				// expiring timeouts are unlinked by advance(), and counted there
+				if (next == null) {
+					return true;
+				}
+				unlink();
+			}
+			wheel.size.decrementAndGet();
+			return true;
+		}
+
+		private void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+	}
+}
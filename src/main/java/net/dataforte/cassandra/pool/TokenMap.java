@@ -0,0 +1,134 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.TokenRange;
+
+/**
+ * An immutable lookup from the tokens of a ring to the replicas of the token range which contains them, built from
+ * the token ranges returned by describe_ring. The ranges are kept sorted by their end token, so that a lookup is a
+ * binary search.
+ * 
+ * @author Tristan Tarrant
+ */
+public class TokenMap {
+	private final Partitioner partitioner;
+	/**
+	 * The end tokens of the ranges, sorted. A range contains the tokens which are greater than the end token
+	 * of the previous range and less than or equal to its own end token; the first range wraps around the ring.
+	 */
+	private final byte[][] endTokens;
+	private final List<List<CassandraHost>> replicas;
+
+	/**
+	 * Builds a token map
+	 * 
+	 * @param partitioner
+	 *            the partitioner of the cluster
+	 * @param ranges
+	 *            the token ranges, as returned by describe_ring
+	 * @param hosts
+	 *            the known hosts, by address. The endpoints of the ranges are looked up here, so that the
+	 *            replicas returned by the map are the same instances as the hosts of the ring
+	 */
+	public TokenMap(Partitioner partitioner, List<TokenRange> ranges, Map<String, CassandraHost> hosts) {
+		this.partitioner = partitioner;
+		List<Range> sorted = new ArrayList<Range>(ranges.size());
+		for (TokenRange range : ranges) {
+			List<CassandraHost> endpoints = new ArrayList<CassandraHost>(range.getEndpointsSize());
+			for (String endpoint : range.getEndpoints()) {
+				CassandraHost host = hosts.get(endpoint);
+				endpoints.add(host != null ? host : new CassandraHost(endpoint));
+			}
+			sorted.add(new Range(partitioner.parseToken(range.getEnd_token()), Collections.unmodifiableList(endpoints)));
+		}
+		Collections.sort(sorted, new Comparator<Range>() {
+			@Override
+			public int compare(Range o1, Range o2) {
+				return Partitioner.compare(o1.endToken, o2.endToken);
+			}
+		});
+		this.endTokens = new byte[sorted.size()][];
+		this.replicas = new ArrayList<List<CassandraHost>>(sorted.size());
+		for (int i = 0; i < endTokens.length; i++) {
+			endTokens[i] = sorted.get(i).endToken;
+			replicas.add(sorted.get(i).endpoints);
+		}
+	}
+
+	public Partitioner getPartitioner() {
+		return partitioner;
+	}
+
+	/**
+	 * Returns the replicas of a row key
+	 * 
+	 * @param key
+	 *            the row key
+	 * @return the replicas, in the order returned by describe_ring. The list is empty if the map is empty
+	 */
+	public List<CassandraHost> getReplicas(ByteBuffer key) {
+		return getReplicasForToken(partitioner.getToken(key));
+	}
+
+	/**
+	 * Returns the replicas of a token
+	 * 
+	 * @param token
+	 * @return the replicas, in the order returned by describe_ring. The list is empty if the map is empty
+	 */
+	public List<CassandraHost> getReplicasForToken(byte[] token) {
+		if (endTokens.length == 0) {
+			return Collections.emptyList();
+		}
+		// find the first range whose end token is not less than the token
+		int low = 0;
+		int high = endTokens.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (Partitioner.compare(endTokens[mid], token) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		// past the last end token, the token belongs to the range which wraps around the ring
+		return replicas.get(low == endTokens.length ? 0 : low);
+	}
+
+	@Override
+	public String toString() {
+		return "TokenMap [partitioner=" + partitioner + ", ranges=" + endTokens.length + "]";
+	}
+
+	private static class Range {
+		final byte[] endToken;
+		final List<CassandraHost> endpoints;
+
+		Range(byte[] endToken, List<CassandraHost> endpoints) {
+			this.endToken = endToken;
+			this.endpoints = endpoints;
+		}
+	}
+}
@@ -39,6 +39,7 @@ import javax.management.NotificationBroadcasterSupport;
 import javax.management.NotificationListener;
 import javax.management.ReflectionException;
 
+import net.dataforte.cassandra.pool.MaintenanceTask;
 import net.dataforte.cassandra.pool.PoolConfiguration;
 import net.dataforte.cassandra.pool.PoolProperties;
 
@@ -51,6 +52,11 @@ public class ConnectionPoolMBean extends NotificationBroadcasterSupport implemen
 	 */
 	private static final Logger log = LoggerFactory.getLogger(ConnectionPoolMBean.class);
 
+	/**
+	 * The statistics of each maintenance task, exposed as attributes named after the task, e.g. checkIdleLastRunTime
+	 */
+	public static final String[] TASK_STATS = { "RunCount", "OverrunCount", "LastRunTime", "MaxRunTime", "TotalRunTime" };
+
 	/**
 	 * the connection pool
 	 */
@@ -110,6 +116,16 @@ public class ConnectionPoolMBean extends NotificationBroadcasterSupport implemen
 		attributes.add(new MBeanAttributeInfo("active", "int", "active", true, false, false));
 		attributes.add(new MBeanAttributeInfo("idle", "int", "idle", true, false, false));
 		attributes.add(new MBeanAttributeInfo("waitCount", "int", "waitCount", true, false, false));		
+		attributes.add(new MBeanAttributeInfo("ready", "boolean", "ready", true, false, true));
+		attributes.add(new MBeanAttributeInfo("clusterDown", "boolean", "clusterDown", true, false, true));
+
+		// Add the statistics of the maintenance tasks
+		for (MaintenanceTask task : pool.getMaintenanceTasks()) {
+			for (String stat : TASK_STATS) {
+				String name = task.getName() + stat;
+				attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+			}
+		}
 		
 		List<MBeanOperationInfo> operations = new ArrayList<MBeanOperationInfo>();
 		String ops[] = new String[]{ "checkIdle", "checkAbandoned", "testIdle" };
@@ -156,9 +172,40 @@ public class ConnectionPoolMBean extends NotificationBroadcasterSupport implemen
 			return pool.getIdle();
 		} else if("waitCount".equals(attribute)) {
 			return pool.getWaitCount();
+		} else if("ready".equals(attribute)) {
+			return pool.isReady();
+		} else if("clusterDown".equals(attribute)) {
+			return pool.isClusterDown();
 		} else {
-			return pool.getPoolProperties().get(attribute);
+			Long stat = getTaskStat(attribute);
+			return (stat != null) ? stat : pool.getPoolProperties().get(attribute);
+		}
+	}
+
+	/**
+	 * Returns a statistic of a maintenance task, named after the task followed by one of {@link #TASK_STATS}
+	 * 
+	 * @param attribute
+	 * @return the value of the statistic, or null if the attribute is not a statistic of a task
+	 */
+	private Long getTaskStat(String attribute) {
+		for (MaintenanceTask task : pool.getMaintenanceTasks()) {
+			if (!attribute.startsWith(task.getName()))
+				continue;
+			String stat = attribute.substring(task.getName().length());
+			if ("RunCount".equals(stat)) {
+				return task.getRunCount();
+			} else if ("OverrunCount".equals(stat)) {
+				return task.getOverrunCount();
+			} else if ("LastRunTime".equals(stat)) {
+				return task.getLastRunTime();
+			} else if ("MaxRunTime".equals(stat)) {
+				return task.getMaxRunTime();
+			} else if ("TotalRunTime".equals(stat)) {
+				return task.getTotalRunTime();
+			}
 		}
+		return null;
 	}
 
 	@Override
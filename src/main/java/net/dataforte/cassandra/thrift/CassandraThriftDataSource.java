@@ -16,10 +16,13 @@
 
 package net.dataforte.cassandra.thrift;
 
+import java.util.concurrent.Future;
+
 import org.apache.cassandra.thrift.Cassandra;
 import org.apache.thrift.TException;
 
 public interface CassandraThriftDataSource {
 	Cassandra.Client getConnection() throws TException;
+	Future<Cassandra.Client> getConnectionAsync() throws TException;
 	void releaseConnection(Cassandra.Client connection);
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void testConsecutiveFailures() {
+		PoolProperties prop = new PoolProperties();
+		prop.setHostFailureThreshold(3);
+		prop.setHostErrorRateThreshold(0);
+		CircuitBreaker breaker = new CircuitBreaker(prop);
+		long now = System.currentTimeMillis();
+
+		Assert.assertFalse(breaker.onFailure(now));
+		Assert.assertFalse(breaker.onFailure(now));
+		// a success resets the count
+		breaker.onSuccess();
+		Assert.assertFalse(breaker.onFailure(now));
+		Assert.assertFalse(breaker.onFailure(now));
+		Assert.assertTrue(breaker.onFailure(now));
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		Assert.assertFalse(breaker.allowRequest(now));
+	}
+
+	@Test
+	public void testErrorRate() {
+		PoolProperties prop = new PoolProperties();
+		prop.setHostFailureThreshold(0);
+		prop.setHostErrorRateThreshold(50);
+		CircuitBreaker breaker = new CircuitBreaker(prop);
+		long now = System.currentTimeMillis();
+
+		// every other call fails, the rate isn't considered before enough calls
+		boolean tripped = false;
+		int calls = 0;
+		while (!tripped && calls < 100) {
+			breaker.onSuccess();
+			tripped = breaker.onFailure(now);
+			calls += 2;
+		}
+		Assert.assertTrue(tripped);
+		Assert.assertTrue(calls >= CircuitBreaker.MIN_CALLS);
+	}
+
+	@Test
+	public void testBackoff() {
+		PoolProperties prop = new PoolProperties();
+		prop.setHostRetryInitialInterval(1000);
+		prop.setHostRetryInterval(3000);
+		// the borrowers make the trials
+		prop.setBackgroundHostProbe(false);
+		CircuitBreaker breaker = new CircuitBreaker(prop);
+		long now = 0;
+
+		Assert.assertTrue(breaker.trip(now));
+		Assert.assertFalse(breaker.trip(now));
+		// between half and all of the interval
+		long retryAt = breaker.getRetryAt();
+		Assert.assertTrue(retryAt >= 500 && retryAt <= 1000);
+		Assert.assertFalse(breaker.allowRequest(retryAt - 1));
+
+		// a single trial is let through
+		now = retryAt;
+		Assert.assertTrue(breaker.allowRequest(now));
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		Assert.assertFalse(breaker.allowRequest(now));
+
+		// the trial fails, the interval doubles
+		Assert.assertTrue(breaker.onFailure(now));
+		retryAt = breaker.getRetryAt();
+		Assert.assertTrue(retryAt - now >= 1000 && retryAt - now <= 2000);
+
+		// and is capped
+		now = retryAt;
+		Assert.assertTrue(breaker.allowRequest(now));
+		Assert.assertTrue(breaker.onFailure(now));
+		retryAt = breaker.getRetryAt();
+		Assert.assertTrue(retryAt - now >= 1500 && retryAt - now <= 3000);
+
+		// only the last trial closes the breaker, not the late answers to calls made before the trip
+		now = retryAt;
+		long stale = breaker.acquire(now);
+		Assert.assertTrue(stale > 0);
+		Assert.assertEquals(CircuitBreaker.DENIED, breaker.acquire(now));
+		now = breaker.getRetryAt();
+		long trial = breaker.acquire(now);
+		Assert.assertTrue(trial > stale);
+		breaker.onSuccess();
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		Assert.assertFalse(breaker.onTrialSuccess(stale));
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+		// the trial succeeds, the breaker closes and the interval starts over
+		Assert.assertTrue(breaker.onTrialSuccess(trial));
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Assert.assertEquals(CircuitBreaker.NO_TRIAL, breaker.acquire(now));
+		Assert.assertTrue(breaker.trip(now));
+		Assert.assertTrue(breaker.getRetryAt() - now <= 1000);
+	}
+
+	@Test
+	public void testBackgroundProbe() {
+		PoolProperties prop = new PoolProperties();
+		prop.setHostRetryInitialInterval(1000);
+		CircuitBreaker breaker = new CircuitBreaker(prop);
+		long now = 0;
+
+		Assert.assertTrue(breaker.allowRequest(now));
+		Assert.assertTrue(breaker.trip(now));
+		// the trials are left to the prober
+		now = breaker.getRetryAt();
+		Assert.assertFalse(breaker.allowRequest(now));
+		Assert.assertTrue(breaker.tryTrial(now));
+		Assert.assertFalse(breaker.tryTrial(now));
+		Assert.assertFalse(breaker.allowRequest(now));
+		// the prober restores the host itself
+		breaker.onSuccess();
+		Assert.assertFalse(breaker.allowRequest(now));
+		Assert.assertTrue(breaker.reset());
+		Assert.assertTrue(breaker.allowRequest(now));
+	}
+}
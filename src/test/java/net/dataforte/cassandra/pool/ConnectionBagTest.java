@@ -0,0 +1,166 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionBagTest {
+
+	@Test
+	public void testBorrowAndReturn() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		ConnectionBag bag = new ConnectionBag();
+		BlockingQueue<PooledConnection> idle = bag.getIdleQueue();
+		BlockingQueue<PooledConnection> busy = bag.getBusyQueue();
+
+		PooledConnection a = new PooledConnection(prop, null);
+		PooledConnection b = new PooledConnection(prop, null);
+		// new connections are owned by their creator
+		Assert.assertTrue(busy.offer(a));
+		Assert.assertTrue(busy.offer(b));
+		Assert.assertEquals(2, busy.size());
+		Assert.assertEquals(0, idle.size());
+		Assert.assertNull(idle.poll());
+
+		Assert.assertTrue(busy.remove(a));
+		Assert.assertTrue(idle.offer(a));
+		Assert.assertTrue(busy.remove(b));
+		Assert.assertTrue(idle.offer(b));
+		Assert.assertEquals(0, busy.size());
+		Assert.assertEquals(2, idle.size());
+		Assert.assertTrue(idle.contains(a));
+		Assert.assertFalse(busy.contains(a));
+
+		// the most recently returned connection is reused by the same thread
+		Assert.assertSame(b, idle.poll());
+		Assert.assertEquals(1, busy.size());
+		Assert.assertEquals(1, idle.size());
+		// a connection which isn't in use can't be returned twice
+		Assert.assertFalse(idle.offer(a));
+
+		Assert.assertTrue(bag.remove(a));
+		Assert.assertEquals(PooledConnection.STATE_REMOVED, a.getState());
+		Assert.assertEquals(0, idle.size());
+		Assert.assertNull(idle.poll());
+		Assert.assertFalse(bag.remove(a));
+	}
+
+	@Test
+	public void testReserved() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		ConnectionBag bag = new ConnectionBag();
+		BlockingQueue<PooledConnection> idle = bag.getIdleQueue();
+		PooledConnection con = new PooledConnection(prop, null);
+		bag.getBusyQueue().offer(con);
+		idle.offer(con);
+
+		// a connection reserved by a maintenance task can't be borrowed, but is still idle
+		Assert.assertTrue(con.compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_RESERVED));
+		Assert.assertNull(idle.poll());
+		Assert.assertEquals(1, idle.size());
+		Assert.assertFalse(idle.iterator().hasNext());
+
+		Assert.assertTrue(con.compareAndSetState(PooledConnection.STATE_RESERVED, PooledConnection.STATE_NOT_IN_USE));
+		Assert.assertSame(con, idle.poll());
+		Assert.assertEquals(0, idle.size());
+		Assert.assertEquals(1, bag.getBusyQueue().size());
+	}
+
+	@Test
+	public void testOldestIdleFirst() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		ConnectionBag bag = new ConnectionBag();
+		BlockingQueue<PooledConnection> idle = bag.getIdleQueue();
+		PooledConnection[] cons = new PooledConnection[3];
+		for (int i = 0; i < cons.length; i++) {
+			cons[i] = new PooledConnection(prop, null);
+			bag.getBusyQueue().offer(cons[i]);
+			cons[i].setTimestamp(i);
+			idle.offer(cons[i]);
+		}
+		// the first one is borrowed and returned again, it becomes the most recent
+		Assert.assertTrue(cons[0].compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE));
+		cons[0].setTimestamp(3);
+		idle.offer(cons[0]);
+		Iterator<PooledConnection> oldest = bag.oldestIdleFirst();
+		Assert.assertSame(cons[1], oldest.next());
+		Assert.assertSame(cons[2], oldest.next());
+		Assert.assertSame(cons[0], oldest.next());
+		Assert.assertFalse(oldest.hasNext());
+
+		// the returns which are no longer live don't pile up
+		for (int i = 0; i < 1000; i++) {
+			Assert.assertTrue(cons[1].compareAndSetState(PooledConnection.STATE_NOT_IN_USE, PooledConnection.STATE_IN_USE));
+			cons[1].setTimestamp(4 + i);
+			idle.offer(cons[1]);
+		}
+		Assert.assertTrue(bag.returns.size() <= 2 * cons.length + ConnectionBag.THREAD_LIST_SIZE + 1);
+	}
+
+	@Test
+	public void testThreadListPruned() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		ConnectionBag bag = new ConnectionBag();
+		BlockingQueue<PooledConnection> idle = bag.getIdleQueue();
+		PooledConnection cons[] = new PooledConnection[ConnectionBag.THREAD_LIST_SIZE];
+		for (int i = 0; i < cons.length; i++) {
+			cons[i] = new PooledConnection(prop, null);
+			bag.getBusyQueue().offer(cons[i]);
+			idle.offer(cons[i]);
+		}
+		Assert.assertEquals(ConnectionBag.THREAD_LIST_SIZE, bag.threadList.get().size());
+
+		// the removed connections make room for the next return
+		for (PooledConnection con : cons) {
+			bag.remove(con);
+		}
+		PooledConnection con = new PooledConnection(prop, null);
+		bag.getBusyQueue().offer(con);
+		idle.offer(con);
+		Assert.assertEquals(1, bag.threadList.get().size());
+		Assert.assertSame(con, bag.threadList.get().get(0).get());
+		Assert.assertSame(con, idle.poll());
+	}
+
+	@Test
+	public void testHandoff() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		final ConnectionBag bag = new ConnectionBag();
+		final PooledConnection con = new PooledConnection(prop, null);
+		bag.getBusyQueue().offer(con);
+
+		Thread returner = new Thread() {
+			@Override
+			public void run() {
+				while (bag.getWaitingThreadCount() == 0) {
+					Thread.yield();
+				}
+				bag.getIdleQueue().offer(con);
+			}
+		};
+		returner.start();
+		Assert.assertSame(con, bag.getIdleQueue().poll(5, TimeUnit.SECONDS));
+		returner.join();
+		Assert.assertEquals(PooledConnection.STATE_IN_USE, con.getState());
+		Assert.assertNull(bag.getIdleQueue().poll(10, TimeUnit.MILLISECONDS));
+	}
+}
@@ -16,10 +16,26 @@
 
 package net.dataforte.cassandra.pool;
 
+import java.io.Closeable;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.CfDef;
+import org.apache.cassandra.thrift.InvalidRequestException;
+import org.apache.cassandra.thrift.KsDef;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
 import org.apache.thrift.transport.TTransportException;
 import org.junit.Assert;
 import org.junit.Test;
@@ -63,6 +79,239 @@ public class ConnectionPoolTest extends BaseEmbededServerSetupTest {
 		pool.close();
 	}
 
+	@Test
+	public void testConnectionBag() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(2);
+		prop.setMinIdle(1);
+		prop.setMaxIdle(4);
+		prop.setMaxActive(4);
+		prop.setUseConnectionBag(true);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(2, pool.getIdle());
+		Assert.assertEquals(2, pool.getSize());
+
+		Cassandra.Client connection = pool.getConnection();
+		Assert.assertNotNull(connection);
+		Assert.assertEquals(1, pool.getActive());
+		Assert.assertEquals(1, pool.getIdle());
+
+		pool.release(connection);
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(2, pool.getIdle());
+
+		// the same thread gets back the connection it just returned
+		Assert.assertSame(connection, pool.getConnection());
+		pool.release(connection);
+
+		pool.close();
+		Assert.assertEquals(0, pool.getSize());
+	}
+
+	@Test
+	public void testCloseClient() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(1);
+		prop.setMaxActive(4);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Cassandra.Client connection = pool.getConnection();
+		Assert.assertTrue(connection instanceof PooledCassandraClient);
+		Assert.assertEquals(1, pool.getActive());
+
+		// closing the client returns it to the pool
+		((PooledCassandraClient) connection).close();
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(1, pool.getIdle());
+
+		// closing or releasing it again doesn't touch the idle connection
+		((PooledCassandraClient) connection).close();
+		pool.release(connection);
+		Assert.assertEquals(1, pool.getIdle());
+		Assert.assertEquals(1, pool.getSize());
+
+		// once lent again, it can be returned again, once
+		Assert.assertSame(connection, pool.getConnection());
+		pool.release(connection);
+		((PooledCassandraClient) connection).close();
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(1, pool.getIdle());
+
+		pool.close();
+	}
+
+	@Test
+	public void testStripes() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(3);
+		prop.setMinIdle(1);
+		prop.setMaxIdle(4);
+		prop.setMaxActive(4);
+		prop.setStripes(3);
+		prop.setMaxWait(1000);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(3, pool.getIdle());
+		Assert.assertEquals(3, pool.getSize());
+
+		// the home stripe runs out first, the others are stolen from, then maxActive is reached
+		Cassandra.Client connections[] = new Cassandra.Client[4];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = pool.getConnection();
+		}
+		Assert.assertEquals(4, pool.getActive());
+		Assert.assertEquals(0, pool.getIdle());
+		Assert.assertEquals(4, pool.getSize());
+		try {
+			pool.getConnection();
+			Assert.fail("maxActive should have been reached");
+		} catch (TException e) {
+			// Expected exception
+		}
+		Assert.assertEquals(0, pool.getWaitCount());
+
+		for (Cassandra.Client connection : connections) {
+			pool.release(connection);
+		}
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(4, pool.getIdle());
+
+		pool.close();
+	}
+
+	@Test
+	public void testPartitionedByHost() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		// two names for the same node, which the pool sees as two hosts
+		prop.setHost("127.0.0.1,localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setMaxActive(3);
+		prop.setMaxActivePerHost(2);
+		prop.setPartitionedByHost(true);
+		prop.setMaxWait(1000);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Map<CassandraHost, Integer> perHost = new HashMap<CassandraHost, Integer>();
+		Cassandra.Client connections[] = new Cassandra.Client[3];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = pool.getConnection();
+			CassandraHost host = ((PooledCassandraClient) connections[i]).getPooledConnection().getCassandraHost();
+			Integer count = perHost.get(host);
+			perHost.put(host, count == null ? 1 : count + 1);
+		}
+		Assert.assertEquals(3, pool.getActive());
+		Assert.assertEquals(3, pool.getSize());
+		// neither host may go above maxActivePerHost
+		Assert.assertEquals(2, perHost.size());
+		for (Integer count : perHost.values()) {
+			Assert.assertTrue(count <= 2);
+		}
+		try {
+			pool.getConnection();
+			Assert.fail("maxActive should have been reached");
+		} catch (TException e) {
+			// Expected exception
+		}
+
+		// a borrower waiting on the sub-pool of one host gets a connection returned to the other one just as well
+		final ConnectionPool waited = pool;
+		final AtomicReference<Object> borrowed = new AtomicReference<Object>();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					borrowed.set(waited.getConnection());
+				} catch (Throwable t) {
+					borrowed.set(t);
+				}
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+		long start = System.currentTimeMillis();
+		pool.release(connections[0]);
+		waiter.join(2000);
+		Assert.assertTrue(borrowed.get() instanceof Cassandra.Client);
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+		connections[0] = (Cassandra.Client) borrowed.get();
+
+		for (Cassandra.Client connection : connections) {
+			pool.release(connection);
+		}
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(3, pool.getIdle());
+		// the connections stay in the sub-pool of their host
+		for (CassandraHost host : perHost.keySet()) {
+			for (PooledConnection con : pool.getSubPool(host).idle) {
+				Assert.assertSame(host, con.getCassandraHost());
+			}
+		}
+
+		// idle connections are reused, whichever host the policy picks first
+		Cassandra.Client connection = pool.getConnection();
+		Assert.assertEquals(3, pool.getSize());
+		pool.release(connection);
+
+		pool.close();
+	}
+
+	@Test
+	public void testTokenAwareRouting() throws Exception {
+		createKeyspace("TokenAwareRouting");
+
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setKeySpace("TokenAwareRouting");
+		prop.setInitialSize(1);
+		prop.setAutomaticHostDiscovery(true);
+		prop.setPartitionedByHost(true);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		// the ring has been refreshed by the initial connection
+		Assert.assertNotNull(pool.getCassandraRing().getTokenMap());
+		ByteBuffer key = ByteBuffer.wrap("key".getBytes());
+		List<CassandraHost> replicas = pool.getCassandraRing().getReplicas(key);
+		Assert.assertEquals(1, replicas.size());
+		Cassandra.Client client = pool.getConnection(key);
+		Assert.assertEquals(replicas.get(0), ((PooledCassandraClient) client).getPooledConnection().getCassandraHost());
+		pool.release(client);
+
+		pool.close();
+	}
+
+	@Test
+	public void testHostStats() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setHostCyclePolicy(HostCyclePolicy.LATENCY_AWARE);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Cassandra.Client client = pool.getConnection();
+		client.describe_cluster_name();
+		CassandraHost host = ((PooledCassandraClient) client).getPooledConnection().getCassandraHost();
+		Assert.assertTrue(host.getConnectTime() > 0);
+		Assert.assertTrue(host.getLatency() > 0);
+		Assert.assertEquals(0, host.getLastError());
+		Assert.assertEquals(0, host.getInFlight());
+		Assert.assertEquals(1, host.getActive());
+		pool.release(client);
+		Assert.assertEquals(0, host.getActive());
+
+		pool.close();
+	}
+
 	@Test
 	public void testAbandoned() throws Exception {
 		PoolConfiguration prop = new PoolProperties();
@@ -101,6 +350,131 @@ public class ConnectionPoolTest extends BaseEmbededServerSetupTest {
 		pool.close();
 	}
 
+	@Test
+	public void testAbandonedTimer() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(2);
+		prop.setRemoveAbandoned(true);
+		prop.setRemoveAbandonedTimeout(4);
+		prop.setSuspectTimeout(1);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Cassandra.Client returned = pool.getConnection();
+		PooledConnection abandoned = ((PooledCassandraClient) pool.getConnection()).getPooledConnection();
+		Assert.assertNotNull(abandoned.getAbandonTimer());
+		// returning a connection cancels its check
+		pool.release(returned);
+		Assert.assertNull(((PooledCassandraClient) returned).getPooledConnection().getAbandonTimer());
+
+		// first marked as suspect, then abandoned, without a call to checkAbandoned()
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!abandoned.isSuspect() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(abandoned.isSuspect());
+		Assert.assertEquals(1, pool.getActive());
+		// the connection leaves the busy queue before it is closed
+		while ((pool.getActive() > 0 || !abandoned.isReleased()) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertTrue(abandoned.isReleased());
+		pool.close();
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		// the idle queue of each kind of pool is visited oldest first
+		for (int kind = 0; kind < 3; kind++) {
+			PoolConfiguration prop = new PoolProperties();
+			prop.setHost("127.0.0.1");
+			prop.setPort(DatabaseDescriptor.getRpcPort());
+			prop.setInitialSize(5);
+			prop.setMinIdle(2);
+			prop.setMinEvictableIdleTimeMillis(200);
+			prop.setTimeBetweenEvictionRunsMillis(60000);
+			prop.setFairQueue(kind != 1);
+			prop.setUseConnectionBag(kind == 2);
+			ConnectionPool pool = new ConnectionPool(prop);
+
+			List<Cassandra.Client> clients = new ArrayList<Cassandra.Client>();
+			for (int i = 0; i < 5; i++) {
+				clients.add(pool.getConnection());
+			}
+			for (int i = 0; i < 3; i++) {
+				pool.release(clients.get(i));
+			}
+			Thread.sleep(300);
+			for (int i = 3; i < 5; i++) {
+				pool.release(clients.get(i));
+			}
+			Assert.assertEquals(5, pool.getIdle());
+
+			// only the old ones go, and no more than down to minIdle
+			pool.checkIdle();
+			Assert.assertEquals(2, pool.getIdle());
+			Assert.assertEquals(2, pool.getSize());
+			for (int i = 0; i < 5; i++) {
+				Assert.assertEquals(i < 3, ((PooledCassandraClient) clients.get(i)).getPooledConnection().isReleased());
+			}
+			Thread.sleep(300);
+			pool.checkIdle();
+			Assert.assertEquals(2, pool.getIdle());
+			pool.close();
+		}
+	}
+
+	@Test
+	public void testIdleEvictionWhileBorrowing() throws Exception {
+		// the sweeper must not hold an idle connection reserved while locking it, as a borrower may hold its lock
+		for (int kind = 0; kind < 3; kind++) {
+			PoolConfiguration prop = new PoolProperties();
+			prop.setHost("127.0.0.1");
+			prop.setPort(DatabaseDescriptor.getRpcPort());
+			prop.setInitialSize(4);
+			prop.setMinIdle(0);
+			prop.setMinEvictableIdleTimeMillis(1);
+			prop.setTimeBetweenEvictionRunsMillis(60000);
+			prop.setFairQueue(kind != 1);
+			prop.setUseConnectionBag(kind == 2);
+			final ConnectionPool pool = new ConnectionPool(prop);
+
+			final long deadline = System.currentTimeMillis() + 1000;
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			List<Thread> borrowers = new ArrayList<Thread>();
+			for (int i = 0; i < 4; i++) {
+				Thread borrower = new Thread() {
+					@Override
+					public void run() {
+						try {
+							while (System.currentTimeMillis() < deadline) {
+								pool.release(pool.getConnection());
+							}
+						} catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						}
+					}
+				};
+				borrower.start();
+				borrowers.add(borrower);
+			}
+			while (System.currentTimeMillis() < deadline) {
+				pool.checkIdle();
+				pool.closeIdle(pool.getCassandraRing().getHosts().get(0));
+			}
+			for (Thread borrower : borrowers) {
+				borrower.join(5000);
+				Assert.assertFalse("borrower stuck", borrower.isAlive());
+			}
+			Assert.assertNull(failure.get());
+			Assert.assertEquals(0, pool.getActive());
+			Assert.assertEquals(pool.getSize(), pool.getIdle());
+			pool.close();
+		}
+	}
+
 	@Test
 	public void testRing() throws Exception {
 		PoolConfiguration prop = new PoolProperties();
@@ -119,4 +493,743 @@ public class ConnectionPoolTest extends BaseEmbededServerSetupTest {
 		Assert.assertNotNull(hosts);
 		Assert.assertEquals(1, hosts.size());
 	}
+
+	@Test
+	public void testRingRefresher() throws Exception {
+		// the ring can only be described for a keyspace other than system
+		createKeyspace("TokenAwareRouting");
+
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setAutomaticHostDiscovery(true);
+		prop.setTestOnBorrow(true);
+		ConnectionPool pool = new ConnectionPool(prop);
+		CassandraRing cassandraRing = pool.getCassandraRing();
+		// the ring has been learnt by the refresher during init
+		long version = cassandraRing.getVersion();
+		Assert.assertTrue(version > 0);
+		Assert.assertEquals(1, cassandraRing.getHosts().size());
+
+		// validating a connection does not refresh the ring any more
+		Cassandra.Client connection = pool.getConnection();
+		pool.release(connection);
+		connection = pool.getConnection();
+		Assert.assertEquals(version, cassandraRing.getVersion());
+		pool.release(connection);
+
+		pool.refreshRing();
+		Assert.assertEquals(version + 1, cassandraRing.getVersion());
+		pool.close();
+	}
+
+	@Test
+	public void testAsyncInit() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(8);
+		prop.setInitialFillParallelism(4);
+		prop.setAsyncInit(true);
+		ConnectionPool pool = new ConnectionPool(prop);
+		pool.getReadyFuture().get(10, TimeUnit.SECONDS);
+		Assert.assertTrue(pool.isReady());
+		Assert.assertEquals(8, pool.getSize());
+		Assert.assertEquals(8, pool.getIdle());
+		pool.close();
+
+		// a failed initial fill does not fail the creation of the pool
+		prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(1);
+		prop.setAsyncInit(true);
+		pool = new ConnectionPool(prop);
+		try {
+			pool.getReadyFuture().get(10, TimeUnit.SECONDS);
+			Assert.fail("The initial fill should have failed");
+		} catch (ExecutionException e) {
+			// Expected exception
+		}
+		Assert.assertFalse(pool.isReady());
+		pool.close();
+	}
+
+	@Test
+	public void testBackgroundReplenish() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setMinIdle(2);
+		prop.setIdleHeadroom(3);
+		prop.setBackgroundReplenish(true);
+		prop.setMaxReplenishRate(100);
+		ConnectionPool pool = new ConnectionPool(prop);
+		// the headroom is larger than minIdle
+		waitForIdle(pool, 3);
+		Assert.assertEquals(3, pool.getSize());
+
+		// borrowed connections are replaced by the replenisher
+		Cassandra.Client c1 = pool.getConnection();
+		Cassandra.Client c2 = pool.getConnection();
+		waitForIdle(pool, 3);
+		Assert.assertEquals(5, pool.getSize());
+		pool.release(c1);
+		pool.release(c2);
+		Assert.assertEquals(5, pool.getIdle());
+		pool.close();
+	}
+
+	@Test
+	public void testIdleValidation() throws Exception {
+		for (int kind = 0; kind < 2; kind++) {
+			PoolConfiguration prop = new PoolProperties();
+			prop.setHost("127.0.0.1");
+			prop.setPort(DatabaseDescriptor.getRpcPort());
+			prop.setInitialSize(6);
+			prop.setTestWhileIdle(true);
+			prop.setValidationInterval(0);
+			prop.setTimeBetweenEvictionRunsMillis(60000);
+			prop.setIdleValidationParallelism(3);
+			prop.setUseConnectionBag(kind == 1);
+			ConnectionPool pool = new ConnectionPool(prop);
+
+			List<PooledConnection> cons = new ArrayList<PooledConnection>();
+			for (int i = 0; i < 6; i++) {
+				cons.add(((PooledCassandraClient) pool.getConnection()).getPooledConnection());
+			}
+			long before = System.currentTimeMillis();
+			Thread.sleep(10);
+			for (PooledConnection con : cons) {
+				pool.returnConnection(con);
+			}
+			// a broken connection is dropped, the others are validated and stay idle
+			cons.get(0).setDiscarded(true);
+			pool.testAllIdle();
+			Assert.assertEquals(5, pool.getIdle());
+			Assert.assertEquals(5, pool.getSize());
+			for (int i = 1; i < 6; i++) {
+				Assert.assertTrue(cons.get(i).getLastValidated() > before);
+				Assert.assertEquals(PooledConnection.STATE_NOT_IN_USE, cons.get(i).getState());
+			}
+			Assert.assertTrue(cons.get(1).getCassandraHost().getValidationTime() > 0);
+
+			// the validated connections can be borrowed again
+			for (int i = 0; i < 5; i++) {
+				Assert.assertNotNull(pool.getConnection());
+			}
+			pool.close(true);
+		}
+	}
+
+	@Test
+	public void testAsyncBorrow() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(1);
+		prop.setMaxActive(1);
+		prop.setMaxWait(5000);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		// an idle connection is handed out immediately
+		ConnectionFuture f1 = pool.getConnectionAsync();
+		Assert.assertTrue(f1.isDone());
+		Cassandra.Client c1 = f1.get();
+
+		// the next borrower waits, and gets the connection when it is released
+		final AtomicReference<Cassandra.Client> notified = new AtomicReference<Cassandra.Client>();
+		final CountDownLatch listened = new CountDownLatch(1);
+		ConnectionFuture f2 = pool.getConnectionAsync();
+		f2.addListener(new ConnectionFuture.Listener() {
+			@Override
+			public void onConnection(Cassandra.Client connection) {
+				notified.set(connection);
+				listened.countDown();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+			}
+		});
+		Assert.assertFalse(f2.isDone());
+		Assert.assertEquals(1, pool.getWaitCount());
+		pool.release(c1);
+		// the hand-off completes on another thread
+		Cassandra.Client c2 = f2.get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(listened.await(5, TimeUnit.SECONDS));
+		Assert.assertSame(c2, notified.get());
+		Assert.assertEquals(0, pool.getWaitCount());
+
+		// cancelling removes the waiter, the connection goes back to the pool
+		ConnectionFuture f3 = pool.getConnectionAsync();
+		Assert.assertTrue(f3.cancel(false));
+		Assert.assertTrue(f3.isCancelled());
+		Assert.assertEquals(0, pool.getWaitCount());
+		pool.release(f2.get());
+		Assert.assertEquals(1, pool.getIdle());
+		Assert.assertFalse(f2.cancel(false));
+
+		// a waiter gives up after maxWait
+		prop.setMaxWait(200);
+		Cassandra.Client c4 = pool.getConnection();
+		ConnectionFuture f4 = pool.getConnectionAsync();
+		try {
+			f4.get(5, TimeUnit.SECONDS);
+			Assert.fail("The wait should have timed out");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof TException);
+		}
+		Assert.assertEquals(0, pool.getWaitCount());
+		pool.release(c4);
+		Assert.assertEquals(1, pool.getIdle());
+		pool.close();
+	}
+
+	/**
+	 * Collects the outcome of an asynchronous call
+	 */
+	static class Result<T> implements AsyncMethodCallback<T> {
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile T response;
+		volatile Exception error;
+
+		@Override
+		public void onComplete(T response) {
+			this.response = response;
+			done.countDown();
+		}
+
+		@Override
+		public void onError(Exception error) {
+			this.error = error;
+			done.countDown();
+		}
+
+		T get() throws Exception {
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+			if (error != null) {
+				throw error;
+			}
+			return response;
+		}
+	}
+
+	@Test
+	public void testAsyncPool() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setMaxActive(1);
+		prop.setMaxWait(200);
+		prop.setTestOnBorrow(true);
+		prop.setValidationInterval(0);
+		ConnectionPool pool = new ConnectionPool(prop);
+		AsyncConnectionPool asyncPool = new AsyncConnectionPool(pool);
+
+		Result<Cassandra.AsyncClient> borrowed = new Result<Cassandra.AsyncClient>();
+		asyncPool.getConnection(borrowed);
+		Cassandra.AsyncClient client = borrowed.get();
+		Result<Cassandra.AsyncClient.describe_cluster_name_call> call = new Result<Cassandra.AsyncClient.describe_cluster_name_call>();
+		client.describe_cluster_name(call);
+		Assert.assertEquals("Test Cluster", call.get().getResult());
+		Assert.assertEquals(1, asyncPool.getActive());
+		// the calls of a borrowed connection feed the statistics of its host
+		Assert.assertFalse(Double.isNaN(((PooledAsyncClient) client).getCassandraHost().getLatency()));
+
+		// the pool is full, the next borrower waits for the connection
+		Result<Cassandra.AsyncClient> waiting = new Result<Cassandra.AsyncClient>();
+		asyncPool.getConnection(waiting);
+		Assert.assertEquals(1, asyncPool.getWaitCount());
+		asyncPool.release(client);
+		Assert.assertSame(client, waiting.get());
+		Assert.assertEquals(0, asyncPool.getWaitCount());
+
+		// and gives up after maxWait
+		Result<Cassandra.AsyncClient> timedOut = new Result<Cassandra.AsyncClient>();
+		asyncPool.getConnection(timedOut);
+		try {
+			timedOut.get();
+			Assert.fail("The wait should have timed out");
+		} catch (TException e) {
+			// expected
+		}
+		Assert.assertEquals(0, asyncPool.getWaitCount());
+
+		asyncPool.release(client);
+		Assert.assertEquals(1, asyncPool.getIdle());
+		Assert.assertEquals(1, asyncPool.getSize());
+		// releasing it twice is ignored
+		asyncPool.release(client);
+		Assert.assertEquals(1, asyncPool.getIdle());
+		Assert.assertEquals(0, asyncPool.getActive());
+		asyncPool.close();
+		Assert.assertEquals(0, asyncPool.getSize());
+		pool.close();
+	}
+
+	@Test
+	public void testPerCallConnection() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(2);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		// each call borrows a connection and returns it
+		Cassandra.Iface iface = pool.getPerCallConnection();
+		Assert.assertEquals("Test Cluster", iface.describe_cluster_name());
+		Assert.assertEquals(0, pool.getActive());
+		Assert.assertEquals(2, pool.getIdle());
+
+		// set_keyspace pins a connection until the proxy is closed
+		iface.set_keyspace("system");
+		Assert.assertEquals(1, pool.getActive());
+		Assert.assertNotNull(iface.describe_keyspace("system"));
+		Assert.assertEquals(1, pool.getActive());
+		((Closeable) iface).close();
+		Assert.assertEquals(0, pool.getActive());
+		// the pool has no keyspace to restore, so the connection is closed
+		Assert.assertEquals(1, pool.getSize());
+
+		// a failed set_keyspace doesn't pin anything
+		try {
+			iface.set_keyspace("NoSuchKeyspace");
+			Assert.fail("The keyspace doesn't exist");
+		} catch (InvalidRequestException e) {
+			// expected
+		}
+		Assert.assertEquals(0, pool.getActive());
+
+		// once the pinned connection fails, calls fail instead of running without the keyspace until the proxy is closed
+		iface.set_keyspace("system");
+		((PerCallConnectionHandler) Proxy.getInvocationHandler(iface)).getPinned().getPooledConnection().getTransport().close();
+		for (int i = 0; i < 2; i++) {
+			try {
+				iface.describe_keyspace("system");
+				Assert.fail("The pinned connection is closed");
+			} catch (TTransportException e) {
+				// expected
+			}
+			Assert.assertEquals(0, pool.getActive());
+		}
+		((Closeable) iface).close();
+		Assert.assertEquals("Test Cluster", iface.describe_cluster_name());
+		Assert.assertEquals(0, pool.getActive());
+		pool.close();
+	}
+
+	@Test
+	public void testExecuteFailover() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		// two names for the same server, so that there is another host to fail over to
+		prop.setHost("127.0.0.1,localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(2);
+		prop.setFailoverPolicy(HostFailoverPolicy.ON_FAIL_TRY_ALL_AVAILABLE);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		final List<CassandraHost> hosts = new ArrayList<CassandraHost>();
+		Callback<Cassandra.Client, String> failOnce = new Callback<Cassandra.Client, String>() {
+			@Override
+			public String execute(Cassandra.Client connection) throws Exception {
+				hosts.add(((PooledCassandraClient) connection).getPooledConnection().getCassandraHost());
+				if (hosts.size() == 1) {
+					throw new TTransportException("Simulated failure");
+				}
+				return connection.describe_cluster_name();
+			}
+		};
+
+		// an idempotent operation is retried on the other host
+		Assert.assertEquals("Test Cluster", pool.execute(failOnce, true));
+		Assert.assertEquals(2, hosts.size());
+		Assert.assertFalse(hosts.get(0).equals(hosts.get(1)));
+		// a single failure is recorded, but doesn't eject the host
+		Assert.assertTrue(hosts.get(0).getLastError() > 0);
+		Assert.assertTrue(hosts.get(0).isGood());
+		Assert.assertEquals(0, pool.getActive());
+
+		// other operations are not
+		hosts.clear();
+		try {
+			pool.execute(failOnce);
+			Assert.fail("The operation should not have been retried");
+		} catch (TTransportException e) {
+			// expected
+		}
+		Assert.assertEquals(1, hosts.size());
+		Assert.assertEquals(0, pool.getActive());
+
+		// no retry starts after the deadline
+		prop.setMaxOperationTime(100);
+		hosts.clear();
+		try {
+			pool.execute(new Callback<Cassandra.Client, String>() {
+				@Override
+				public String execute(Cassandra.Client connection) throws Exception {
+					hosts.add(((PooledCassandraClient) connection).getPooledConnection().getCassandraHost());
+					Thread.sleep(200);
+					throw new TTransportException("Simulated failure");
+				}
+			}, true);
+			Assert.fail("The operation should have failed");
+		} catch (TTransportException e) {
+			// expected
+		}
+		Assert.assertEquals(1, hosts.size());
+		pool.close();
+	}
+
+	@Test
+	public void testHedgedRead() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		// two names for the same server, so that there is another host to hedge on
+		prop.setHost("127.0.0.1,localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setPartitionedByHost(true);
+		prop.setHedgeDelay(50);
+		prop.setHedgeBudget(50);
+		ConnectionPool pool = new ConnectionPool(prop);
+		HedgingExecutor hedging = pool.getHedgingExecutor();
+
+		final List<CassandraHost> hosts = Collections.synchronizedList(new ArrayList<CassandraHost>());
+		Callback<Cassandra.Client, CassandraHost> slow = new Callback<Cassandra.Client, CassandraHost>() {
+			@Override
+			public CassandraHost execute(Cassandra.Client connection) throws Exception {
+				hosts.add(((PooledCassandraClient) connection).getPooledConnection().getCassandraHost());
+				Thread.sleep(500);
+				connection.describe_cluster_name();
+				return hosts.get(hosts.size() - 1);
+			}
+		};
+		Callback<Cassandra.Client, CassandraHost> slowFirst = new Callback<Cassandra.Client, CassandraHost>() {
+			@Override
+			public CassandraHost execute(Cassandra.Client connection) throws Exception {
+				PooledConnection con = ((PooledCassandraClient) connection).getPooledConnection();
+				hosts.add(con.getCassandraHost());
+				if (hosts.size() == 1) {
+					// wait for an answer which doesn't come, as from a slow host
+					con.getTransport().read(new byte[1], 0, 1);
+				}
+				connection.describe_cluster_name();
+				return con.getCassandraHost();
+			}
+		};
+
+		// the first read only earns half a hedge, it isn't hedged
+		long start = System.currentTimeMillis();
+		CassandraHost answered = hedging.execute(null, slow);
+		Assert.assertTrue(System.currentTimeMillis() - start >= 500);
+		Assert.assertEquals(1, hosts.size());
+		Assert.assertEquals(0, hedging.getHedgeCount());
+
+		// the second one is hedged on the other host, which answers first and aborts the first attempt
+		hosts.clear();
+		start = System.currentTimeMillis();
+		answered = hedging.execute(null, slowFirst);
+		Assert.assertTrue(System.currentTimeMillis() - start < 500);
+		Assert.assertEquals(2, hosts.size());
+		Assert.assertFalse(hosts.get(0).equals(hosts.get(1)));
+		Assert.assertEquals(hosts.get(1), answered);
+		Assert.assertEquals(2, hedging.getReadCount());
+		Assert.assertEquals(1, hedging.getHedgeCount());
+		Assert.assertEquals(1, hedging.getHedgeWinCount());
+		// being aborted isn't an error of the slow host
+		Assert.assertEquals(0, hosts.get(0).getLastError());
+
+		// a read which answers in time isn't hedged
+		hosts.clear();
+		answered = hedging.execute(null, new Callback<Cassandra.Client, CassandraHost>() {
+			@Override
+			public CassandraHost execute(Cassandra.Client connection) throws Exception {
+				hosts.add(((PooledCassandraClient) connection).getPooledConnection().getCassandraHost());
+				return hosts.get(0);
+			}
+		});
+		Assert.assertEquals(1, hosts.size());
+		Assert.assertEquals(1, hedging.getHedgeCount());
+
+		// the losing hedge returns its connection when it completes
+		hosts.clear();
+		answered = hedging.execute(null, new Callback<Cassandra.Client, CassandraHost>() {
+			@Override
+			public CassandraHost execute(Cassandra.Client connection) throws Exception {
+				CassandraHost host = ((PooledCassandraClient) connection).getPooledConnection().getCassandraHost();
+				hosts.add(host);
+				if (hosts.size() == 1) {
+					Thread.sleep(100);
+				} else {
+					Thread.sleep(500);
+				}
+				return host;
+			}
+		});
+		Assert.assertEquals(hosts.get(0), answered);
+		Assert.assertEquals(2, hedging.getHedgeCount());
+		Assert.assertEquals(1, hedging.getHedgeWinCount());
+		Assert.assertEquals(1, pool.getActive());
+		for (int i = 0; i < 100 && pool.getActive() > 0; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, pool.getActive());
+		pool.close();
+	}
+
+	@Test
+	public void testHostEjection() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		// two names for the same server, so that one can be ejected
+		prop.setHost("127.0.0.1,localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setMaxActivePerHost(1);
+		prop.setPartitionedByHost(true);
+		prop.setHostFailureThreshold(3);
+		prop.setHostRetryInitialInterval(200);
+		ConnectionPool pool = new ConnectionPool(prop);
+
+		Cassandra.Client first = pool.getConnection();
+		Cassandra.Client second = pool.getConnection();
+		CassandraHost sick = ((PooledCassandraClient) first).getPooledConnection().getCassandraHost();
+		CassandraHost healthy = ((PooledCassandraClient) second).getPooledConnection().getCassandraHost();
+		Assert.assertFalse(sick.equals(healthy));
+		pool.release(first);
+		pool.release(second);
+		Assert.assertEquals(2, pool.getIdle());
+
+		// failed calls eject the host, and its idle connection is closed
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(sick.isGood());
+			sick.recordError();
+		}
+		Assert.assertFalse(sick.isGood());
+		for (int i = 0; i < 100 && pool.getIdle() > 1; i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, pool.getIdle());
+
+		// borrowers get connections to the other host
+		for (int i = 0; i < 5; i++) {
+			Cassandra.Client client = pool.getConnection();
+			Assert.assertEquals(healthy, ((PooledCassandraClient) client).getPooledConnection().getCassandraHost());
+			pool.release(client);
+		}
+
+		// once the retry time has come, the prober restores the host
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!sick.isGood() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(sick.isGood());
+		Cassandra.Client busy = pool.getConnection();
+		Cassandra.Client other = pool.getConnection();
+		Assert.assertFalse(((PooledCassandraClient) busy).getPooledConnection().getCassandraHost().equals(
+				((PooledCassandraClient) other).getPooledConnection().getCassandraHost()));
+		pool.release(busy);
+		pool.release(other);
+		pool.close();
+	}
+
+	@Test
+	public void testHostProber() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		// nothing listens on the second address
+		prop.setHost("127.0.0.1,127.0.0.2");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setMaxActivePerHost(1);
+		prop.setPartitionedByHost(true);
+		prop.setHostRetryInitialInterval(100);
+		prop.setHostProbeTimeout(200);
+		ConnectionPool pool = new ConnectionPool(prop);
+		HostProber prober = null;
+		for (MaintenanceTask task : pool.getMaintenanceTasks()) {
+			if (task instanceof HostProber) {
+				prober = (HostProber) task;
+			}
+		}
+		Assert.assertNotNull(prober);
+		CassandraHost down = pool.getCassandraRing().getSnapshot().get("127.0.0.2");
+		CassandraHost up = pool.getCassandraRing().getSnapshot().get("127.0.0.1");
+		down.eject();
+		up.eject();
+
+		// borrowers leave the trials to the prober, even after the retry time
+		Thread.sleep(150);
+		Assert.assertFalse(down.allowConnect(System.currentTimeMillis()));
+
+		// the host which answers is restored, the other one stays ejected and is probed less and less often
+		long deadline = System.currentTimeMillis() + 10000;
+		while ((!up.isGood() || prober.getProbeFailureCount() < 2) && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(up.isGood());
+		Assert.assertFalse(down.isGood());
+		Assert.assertTrue(down.getBreaker().getRetryAt() - down.getLastUsed() > 100);
+		Cassandra.Client client = pool.getConnection();
+		Assert.assertEquals(up, ((PooledCassandraClient) client).getPooledConnection().getCassandraHost());
+		pool.release(client);
+		pool.close();
+	}
+
+	@Test
+	public void testSharedClusterState() throws Exception {
+		ConnectionPool pools[] = new ConnectionPool[3];
+		for (int i = 0; i < pools.length; i++) {
+			PoolConfiguration prop = new PoolProperties();
+			// the same cluster, whatever the order of its hosts
+			prop.setHost(i == 0 ? "127.0.0.1,localhost" : "localhost,127.0.0.1");
+			prop.setPort(DatabaseDescriptor.getRpcPort());
+			prop.setInitialSize(0);
+			prop.setHostRetryInitialInterval(60000);
+			prop.setShareClusterState(i < 2);
+			pools[i] = new ConnectionPool(prop);
+		}
+		Assert.assertSame(pools[0].getCassandraRing(), pools[1].getCassandraRing());
+		Assert.assertNotSame(pools[0].getCassandraRing(), pools[2].getCassandraRing());
+		Assert.assertEquals(1, ClusterRegistry.size());
+
+		// a host ejected through one pool is ejected for the other
+		pools[0].getCassandraRing().getSnapshot().get("localhost").eject();
+		Assert.assertFalse(pools[1].getCassandraRing().getSnapshot().get("localhost").isGood());
+		Assert.assertFalse(ClusterRegistry.getHosts(pools[1].getPoolProperties()).get("localhost").isGood());
+		Assert.assertTrue(pools[2].getCassandraRing().getSnapshot().get("localhost").isGood());
+		for (int i = 0; i < 5; i++) {
+			Cassandra.Client client = pools[1].getConnection();
+			Assert.assertEquals("127.0.0.1", ((PooledCassandraClient) client).getPooledConnection().getCassandraHost().getHost());
+			pools[1].release(client);
+		}
+
+		// the cluster is forgotten with its last pool
+		pools[0].close();
+		Assert.assertEquals(1, ClusterRegistry.size());
+		pools[1].close();
+		Assert.assertEquals(0, ClusterRegistry.size());
+		pools[2].close();
+	}
+
+	@Test
+	public void testClusterDown() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1,localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(0);
+		prop.setMaxWait(5000);
+		prop.setHostRetryInitialInterval(500);
+		ConnectionPool pool = new ConnectionPool(prop);
+		Assert.assertFalse(pool.isClusterDown());
+
+		// one host left, borrows still work
+		CassandraRing.Snapshot snapshot = pool.getCassandraRing().getSnapshot();
+		snapshot.get(0).eject();
+		Assert.assertFalse(pool.isClusterDown());
+		pool.release(pool.getConnection());
+
+		// all the hosts are down, borrows fail right away
+		snapshot.get(1).eject();
+		Assert.assertTrue(pool.isClusterDown());
+		long start = System.currentTimeMillis();
+		try {
+			pool.getConnection();
+			Assert.fail("The borrow should have failed");
+		} catch (ClusterDownException e) {
+			// expected
+		}
+		try {
+			pool.getConnectionAsync();
+			Assert.fail("The borrow should have failed");
+		} catch (ClusterDownException e) {
+			// expected
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+
+		// until a probe succeeds
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.isClusterDown() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(pool.isClusterDown());
+		pool.release(pool.getConnection());
+		pool.close();
+	}
+
+	@Test
+	public void testMaintenanceTasks() throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("127.0.0.1");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		prop.setInitialSize(2);
+		prop.setTestWhileIdle(true);
+		prop.setTimeBetweenEvictionRunsMillis(50);
+		ConnectionPool pool = new ConnectionPool(prop);
+		Assert.assertEquals(4, pool.getMaintenanceTasks().size());
+		MaintenanceTask testIdle = null;
+		for (MaintenanceTask task : pool.getMaintenanceTasks()) {
+			if ("testIdle".equals(task.getName())) {
+				testIdle = task;
+			}
+		}
+		Assert.assertNotNull(testIdle);
+		// each task runs on its own schedule, on the shared scheduler
+		long deadline = System.currentTimeMillis() + 10000;
+		while (testIdle.getRunCount() < 3 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertTrue(testIdle.getRunCount() >= 3);
+		Assert.assertEquals(testIdle.getRunCount(), ((Long) pool.getJmxPool().getAttribute("testIdleRunCount")).longValue(), 1);
+		// blocking tasks are handed to the executor of blocking tasks, so that they never hold up a timeout
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final AtomicReference<String> thread = new AtomicReference<String>();
+		pool.startTask(new MaintenanceTask("blocking", pool) {
+			@Override
+			protected long getInterval() {
+				return 10;
+			}
+
+			@Override
+			protected boolean isBlocking() {
+				return true;
+			}
+
+			@Override
+			protected void runTask() {
+				thread.set(Thread.currentThread().getName());
+				blocked.countDown();
+			}
+		});
+		Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+		Assert.assertTrue(thread.get(), thread.get().startsWith("[Pool-Maintenance-IO]"));
+		pool.close();
+		// a run in progress completes, but no other run starts
+		Thread.sleep(100);
+		long runs = testIdle.getRunCount();
+		Thread.sleep(200);
+		Assert.assertEquals(runs, testIdle.getRunCount());
+	}
+
+	private void waitForIdle(ConnectionPool pool, int idle) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (pool.getIdle() < idle && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(idle, pool.getIdle());
+	}
+
+	private void createKeyspace(String keyspace) throws Exception {
+		PoolConfiguration prop = new PoolProperties();
+		prop.setHost("localhost");
+		prop.setPort(DatabaseDescriptor.getRpcPort());
+		ConnectionPool pool = new ConnectionPool(prop);
+		Cassandra.Client client = pool.getConnection();
+		if (!client.describe_keyspaces().toString().contains(keyspace)) {
+			KsDef ksDef = new KsDef(keyspace, "org.apache.cassandra.locator.SimpleStrategy", new ArrayList<CfDef>());
+			ksDef.putToStrategy_options("replication_factor", "1");
+			client.system_add_keyspace(ksDef);
+		}
+		pool.release(client);
+		pool.close();
+	}
 }
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HostCyclePolicyTest {
+
+	@Test
+	public void testMovingAverage() throws Exception {
+		ExponentialMovingAverage average = new ExponentialMovingAverage(0.5);
+		Assert.assertFalse(average.hasSamples());
+		Assert.assertTrue(Double.isNaN(average.get()));
+		average.update(10);
+		Assert.assertEquals(10, average.get(), 0);
+		average.update(20);
+		Assert.assertEquals(15, average.get(), 0);
+		average.update(15);
+		Assert.assertEquals(15, average.get(), 0);
+	}
+
+	@Test
+	public void testLatencyAware() throws Exception {
+		CassandraRing ring = new CassandraRing(new String[] { "a", "b", "c" }, HostCyclePolicy.LATENCY_AWARE);
+		CassandraHost a = host(ring, "a");
+		CassandraHost b = host(ring, "b");
+		CassandraHost c = host(ring, "c");
+
+		// a host which has never been used is tried first
+		a.recordLatency(10000000);
+		b.recordConnectTime(1000000);
+		Assert.assertSame(c, mostFrequentlyFirst(ring));
+		c.recordLatency(5000000);
+		Assert.assertSame(b, mostFrequentlyFirst(ring));
+		b.recordLatency(1000000);
+		Assert.assertEquals(1000000, b.getLatency(), 0);
+
+		// an error makes the fastest host slower than the slowest one, for a while
+		b.recordError();
+		Assert.assertTrue(b.getScore(System.currentTimeMillis()) > a.getScore(System.currentTimeMillis()));
+		Assert.assertSame(c, mostFrequentlyFirst(ring));
+		Assert.assertEquals(b.getLatency(), b.getScore(b.getLastError() + 100 * CassandraHost.ERROR_DECAY_MILLIS), 1);
+
+		// a host which failed before ever being used is tried last
+		CassandraHost unknown = new CassandraHost("d");
+		Assert.assertEquals(0, unknown.getScore(System.currentTimeMillis()), 0);
+		unknown.recordError();
+		Assert.assertTrue(Double.isInfinite(unknown.getScore(System.currentTimeMillis())));
+	}
+
+	@Test
+	public void testLeastOutstanding() throws Exception {
+		CassandraRing ring = new CassandraRing(new String[] { "a", "b", "c" }, HostCyclePolicy.LEAST_OUTSTANDING);
+		CassandraHost a = host(ring, "a");
+		CassandraHost b = host(ring, "b");
+		CassandraHost c = host(ring, "c");
+		a.incrementActive();
+		a.incrementActive();
+		b.incrementActive();
+		c.incrementActive();
+		c.incrementInFlight();
+
+		// the most loaded host is never picked, the other two only lose to each other
+		int bFirst = 0;
+		for (int i = 0; i < 1000; i++) {
+			List<CassandraHost> hosts = ring.getHosts();
+			Assert.assertEquals(3, hosts.size());
+			Assert.assertNotSame(a, hosts.get(0));
+			if (hosts.get(0) == b) {
+				bFirst++;
+			}
+		}
+		// c is only picked when sampled together with a
+		Assert.assertTrue("b first " + bFirst + " times", bFirst > 500);
+
+		b.decrementActive();
+		for (int i = 0; i < 100; i++) {
+			Assert.assertNotSame(a, ring.getHosts().get(0));
+		}
+		Assert.assertEquals(0, b.getActive());
+		Assert.assertEquals(1, c.getInFlight());
+	}
+
+	@Test
+	public void testHostIterator() throws Exception {
+		String[] addresses = new String[] { "a", "b", "c", "d", "e" };
+		for (HostCyclePolicy policy : HostCyclePolicy.values()) {
+			CassandraRing ring = new CassandraRing(addresses, policy);
+			Assert.assertEquals(0, ring.getVersion());
+			// the iterator is reused by the thread
+			HostIterator iterator = ring.hostIterator();
+			Assert.assertSame(iterator, ring.hostIterator());
+			for (int round = 0; round < 100; round++) {
+				iterator = ring.hostIterator();
+				Assert.assertEquals(addresses.length, iterator.size());
+				Set<CassandraHost> seen = new HashSet<CassandraHost>();
+				while (iterator.hasNext()) {
+					Assert.assertTrue(policy.toString(), seen.add(iterator.next()));
+				}
+				Assert.assertEquals(addresses.length, seen.size());
+			}
+		}
+
+		// round robin starts from the next host at each iteration
+		CassandraRing ring = new CassandraRing(addresses, HostCyclePolicy.ROUND_ROBIN);
+		CassandraHost first = ring.hostIterator().next();
+		CassandraHost second = ring.hostIterator().next();
+		Assert.assertNotSame(first, second);
+		HostIterator iterator = ring.hostIterator();
+		Assert.assertNotSame(second, iterator.next());
+		Assert.assertNotSame(first, iterator.next());
+		Assert.assertSame(ring.getSnapshot().get(second.getHost()), second);
+	}
+
+	@Test
+	public void testRejoiningHost() throws Exception {
+		CassandraRing ring = new CassandraRing(new String[] { "a", "b" }, HostCyclePolicy.ROUND_ROBIN);
+		CassandraHost a = host(ring, "a");
+		a.recordLatency(1000000);
+
+		// a host which leaves the ring and joins it again is the same host
+		ring.refresh(ring(Arrays.asList("b")), "ks");
+		Assert.assertEquals(1, ring.getHosts().size());
+		ring.refresh(ring(Arrays.asList("a", "b")), "ks");
+		Assert.assertSame(a, host(ring, "a"));
+		Assert.assertEquals(1000000, a.getLatency(), 0);
+	}
+
+	/**
+	 * @return a connection whose ring has a single token range, replicated on the specified hosts
+	 */
+	private static Cassandra.Iface ring(final List<String> endpoints) {
+		return (Cassandra.Iface) Proxy.newProxyInstance(Cassandra.Iface.class.getClassLoader(), new Class<?>[] { Cassandra.Iface.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if ("describe_ring".equals(method.getName())) {
+					return Collections.singletonList(new TokenRange("0", "0", endpoints));
+				} else if ("describe_partitioner".equals(method.getName())) {
+					return "org.apache.cassandra.dht.RandomPartitioner";
+				}
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static CassandraHost host(CassandraRing ring, String name) {
+		for (CassandraHost host : ring.getHosts()) {
+			if (host.getHost().equals(name)) {
+				return host;
+			}
+		}
+		throw new IllegalArgumentException(name);
+	}
+
+	private static CassandraHost mostFrequentlyFirst(CassandraRing ring) {
+		// the hosts are shuffled once in a while, to keep exploring
+		int samples = 1000;
+		Map<CassandraHost, Integer> counts = new HashMap<CassandraHost, Integer>();
+		for (int i = 0; i < samples; i++) {
+			List<CassandraHost> hosts = ring.getHosts();
+			Assert.assertEquals(3, hosts.size());
+			Integer count = counts.get(hosts.get(0));
+			counts.put(hosts.get(0), count == null ? 1 : count + 1);
+		}
+		CassandraHost first = null;
+		for (Map.Entry<CassandraHost, Integer> entry : counts.entrySet()) {
+			if (first == null || entry.getValue() > counts.get(first)) {
+				first = entry.getKey();
+			}
+		}
+		Assert.assertTrue("exploration too frequent: " + counts, counts.get(first) > samples * (1 - 4 * CassandraRing.EXPLORATION_PROBABILITY));
+		return first;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		for (long nanos : new long[] { 0, 1, 3, 4, 5, 7, 8, 100, 1000000, 123456789, Long.MAX_VALUE }) {
+			int bucket = LatencyHistogram.bucket(nanos);
+			Assert.assertTrue(nanos + " above its bucket", nanos <= LatencyHistogram.upperBound(bucket));
+			if (bucket > 0) {
+				Assert.assertTrue(nanos + " below its bucket", nanos > LatencyHistogram.upperBound(bucket - 1));
+			}
+		}
+	}
+
+	@Test
+	public void testPercentile() {
+		LatencyHistogram histogram = new LatencyHistogram(1000);
+		Assert.assertTrue(Double.isNaN(histogram.getPercentile(0.95)));
+		for (int i = 0; i < 90; i++) {
+			histogram.update(1000000);
+		}
+		for (int i = 0; i < 10; i++) {
+			histogram.update(50000000);
+		}
+		Assert.assertEquals(100, histogram.getCount());
+		double p50 = histogram.getPercentile(0.5);
+		Assert.assertTrue(p50 >= 1000000 && p50 < 1250000);
+		double p95 = histogram.getPercentile(0.95);
+		Assert.assertTrue(p95 >= 50000000 && p95 < 62500000);
+	}
+
+	@Test
+	public void testDecay() {
+		LatencyHistogram histogram = new LatencyHistogram(100);
+		for (int i = 0; i < 99; i++) {
+			histogram.update(50000000);
+		}
+		// the window is full, the counts are halved
+		histogram.update(50000000);
+		Assert.assertEquals(50, histogram.getCount());
+		// the recent samples take over
+		for (int i = 0; i < 99; i++) {
+			histogram.update(1000000);
+		}
+		Assert.assertTrue(histogram.getPercentile(0.5) < 1250000);
+	}
+}
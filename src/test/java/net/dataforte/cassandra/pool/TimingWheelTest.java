@@ -0,0 +1,63 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	@Test
+	public void testTimingWheel() throws Exception {
+		final List<String> expired = new ArrayList<String>();
+		TimingWheel<String> wheel = new TimingWheel<String>(100, 8, new TimingWheel.Handler<String>() {
+			@Override
+			public void expired(TimingWheel.Timeout<String> timeout) {
+				expired.add(timeout.getTarget());
+			}
+		});
+		long now = System.currentTimeMillis();
+		wheel.schedule("a", now + 250);
+		TimingWheel.Timeout<String> b = wheel.schedule("b", now + 450);
+		// more than a turn of the wheel away
+		wheel.schedule("c", now + 2000);
+		// already due, expires on the next tick
+		wheel.schedule("d", now - 1000);
+		Assert.assertEquals(4, wheel.size());
+
+		Assert.assertEquals(1, wheel.advance(now + 100));
+		Assert.assertEquals("d", expired.get(0));
+		Assert.assertEquals(0, wheel.advance(now + 150));
+		Assert.assertEquals(1, wheel.advance(now + 350));
+		Assert.assertEquals("a", expired.get(1));
+
+		Assert.assertTrue(b.cancel());
+		Assert.assertTrue(b.isCancelled());
+		Assert.assertFalse(b.cancel());
+		Assert.assertEquals(1, wheel.size());
+		Assert.assertEquals(0, wheel.advance(now + 1000));
+
+		// after a turn, and skipping many ticks at once
+		Assert.assertEquals(1, wheel.advance(now + 5000));
+		Assert.assertEquals("c", expired.get(2));
+		Assert.assertEquals(0, wheel.size());
+		Assert.assertEquals(3, expired.size());
+	}
+}
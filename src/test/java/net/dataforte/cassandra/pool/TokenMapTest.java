@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 Tristan Tarrant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dataforte.cassandra.pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.dht.ByteOrderedPartitioner;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.RandomPartitioner;
+import org.apache.cassandra.thrift.TokenRange;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TokenMapTest {
+
+	@Test
+	public void testTokens() throws Exception {
+		// tokens must sort like the ones computed by the server
+		checkTokens(Partitioner.RANDOM, new RandomPartitioner());
+		checkTokens(Partitioner.BYTE_ORDERED, new ByteOrderedPartitioner());
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void checkTokens(Partitioner partitioner, IPartitioner server) {
+		Assert.assertSame(partitioner, Partitioner.forClassName(server.getClass().getName()));
+		List<ByteBuffer> keys = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 100; i++) {
+			keys.add(ByteBuffer.wrap(("key" + i).getBytes()));
+		}
+		keys.add(ByteBuffer.wrap(new byte[] { (byte) 0xff, 0x00 }));
+		for (ByteBuffer a : keys) {
+			org.apache.cassandra.dht.Token serverToken = server.getToken(a);
+			byte[] token = partitioner.getToken(a);
+			Assert.assertArrayEquals(token, partitioner.parseToken(server.getTokenFactory().toString(serverToken)));
+			for (ByteBuffer b : keys) {
+				int expected = Integer.signum(serverToken.compareTo(server.getToken(b)));
+				Assert.assertEquals(expected, Integer.signum(Partitioner.compare(token, partitioner.getToken(b))));
+			}
+		}
+	}
+
+	@Test
+	public void testReplicas() throws Exception {
+		Map<String, CassandraHost> hosts = new HashMap<String, CassandraHost>();
+		for (String host : new String[] { "a", "b", "c" }) {
+			hosts.put(host, new CassandraHost(host));
+		}
+		List<TokenRange> ranges = new ArrayList<TokenRange>();
+		// unsorted, the first range wraps around the ring
+		ranges.add(new TokenRange("90", "10", Arrays.asList("a", "b")));
+		ranges.add(new TokenRange("50", "90", Arrays.asList("c", "a")));
+		ranges.add(new TokenRange("10", "50", Arrays.asList("b", "c")));
+		TokenMap tokenMap = new TokenMap(Partitioner.RANDOM, ranges, hosts);
+
+		Assert.assertEquals(Arrays.asList(hosts.get("a"), hosts.get("b")), tokenMap.getReplicasForToken(Partitioner.RANDOM.parseToken("0")));
+		Assert.assertEquals(Arrays.asList(hosts.get("a"), hosts.get("b")), tokenMap.getReplicasForToken(Partitioner.RANDOM.parseToken("10")));
+		Assert.assertEquals(Arrays.asList(hosts.get("b"), hosts.get("c")), tokenMap.getReplicasForToken(Partitioner.RANDOM.parseToken("11")));
+		Assert.assertEquals(Arrays.asList(hosts.get("b"), hosts.get("c")), tokenMap.getReplicasForToken(Partitioner.RANDOM.parseToken("50")));
+		Assert.assertEquals(Arrays.asList(hosts.get("c"), hosts.get("a")), tokenMap.getReplicasForToken(Partitioner.RANDOM.parseToken("90")));
+		Assert.assertEquals(Arrays.asList(hosts.get("a"), hosts.get("b")), tokenMap.getReplicasForToken(Partitioner.RANDOM.parseToken("91")));
+		// the replicas are the hosts of the ring
+		List<CassandraHost> replicas = tokenMap.getReplicas(ByteBuffer.wrap("key".getBytes()));
+		Assert.assertEquals(2, replicas.size());
+		for (CassandraHost replica : replicas) {
+			Assert.assertSame(hosts.get(replica.getHost()), replica);
+		}
+
+		Assert.assertTrue(new TokenMap(Partitioner.RANDOM, new ArrayList<TokenRange>(), hosts).getReplicasForToken(new byte[0]).isEmpty());
+	}
+}